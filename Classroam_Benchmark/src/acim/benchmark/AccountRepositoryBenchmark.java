@@ -0,0 +1,188 @@
+package acim.benchmark;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+import javax.sql.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import acim.data.*;
+
+/**
+ * Measures account lookups per second through the {@link AccountRepository},
+ * the way logins look accounts up.
+ *
+ * "pooled-cached" borrows from a {@link ConnectionPool} that caches prepared
+ * statements, "pooled" uses the pool without the statement cache, and
+ * "unpooled" opens a new connection for every lookup, which is what
+ * DatabaseManager did before it had a pool. "embedded" uses a
+ * {@link LogAccountRepository} in a temporary file and needs no database.
+ *
+ * The other modes need a database it can create tables in, given with the
+ * system properties benchmark.jdbc.url, benchmark.jdbc.user and
+ * benchmark.jdbc.password. It defaults to a local MySQL database named
+ * classroam_benchmark. An embedded database with MySQL syntax works as a
+ * stand-in, e.g. H2 with its jar in Classroam_Benchmark/lib and the URL
+ * "jdbc:h2:mem:benchmark;MODE=MySQL;DB_CLOSE_DELAY=-1".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountRepositoryBenchmark {
+	private static final String URL = System.getProperty("benchmark.jdbc.url",
+			"jdbc:mysql://localhost:3306/classroam_benchmark?useServerPrepStmts=true");
+	private static final String USER = System.getProperty("benchmark.jdbc.user", "root");
+	private static final String PASSWORD = System.getProperty("benchmark.jdbc.password", "");
+
+	@Param({ "10000" })
+	public int accountCount;
+
+	@Param({ "pooled-cached", "pooled", "unpooled", "embedded" })
+	public String mode;
+
+	private ConnectionPool pool;
+	private LogAccountRepository embedded;
+	private Path embeddedLog;
+	private AccountRepository repository;
+
+	/**
+	 * The usernames a benchmark thread looks up, in a random order.
+	 */
+	@State(Scope.Thread)
+	public static class Lookups {
+		private String[] usernames;
+		private int next = 0;
+
+		@Setup(Level.Trial)
+		public void setUp(AccountRepositoryBenchmark benchmark) {
+			Random random = new Random(42);
+			usernames = new String[4096];
+			for (int i = 0; i < usernames.length; i++)
+				usernames[i] = username(random.nextInt(benchmark.accountCount));
+		}
+
+		private String nextUsername() {
+			String username = usernames[next];
+			next = (next + 1) % usernames.length;
+			return username;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws SQLException, IOException {
+		if (mode.equals("embedded")) {
+			embeddedLog = Files.createTempFile("accounts", ".log");
+			embedded = LogAccountRepository.open(embeddedLog);
+			ArrayList<Account> accounts = new ArrayList<Account>(accountCount);
+			for (int i = 0; i < accountCount; i++)
+				accounts.add(new Account(0, username(i), "cGFzc3dvcmQ=", "First" + i, "Last" + i,
+						username(i) + "@example.com", "555-" + i, null));
+			embedded.createAll(accounts, 1000);
+			repository = embedded;
+			return;
+		}
+
+		try (Connection conn = DriverManager.getConnection(URL, USER, PASSWORD);
+				Statement stmt = conn.createStatement()) {
+			stmt.execute("DROP VIEW IF EXISTS StudentSnippet");
+			stmt.execute("DROP TABLE IF EXISTS Students");
+			stmt.execute("CREATE TABLE Students (student_id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+					+ "username VARCHAR(64) NOT NULL UNIQUE, password VARCHAR(255), first_name VARCHAR(64), "
+					+ "last_name VARCHAR(64), email VARCHAR(255), phone_number VARCHAR(32), notes TEXT, "
+					+ "is_active TINYINT NOT NULL DEFAULT 1, available_seconds BIGINT)");
+			stmt.execute("CREATE VIEW StudentSnippet AS SELECT username, first_name, last_name, email, "
+					+ "phone_number, notes FROM Students WHERE is_active = 1");
+
+			conn.setAutoCommit(false);
+			try (PreparedStatement insert = conn.prepareStatement("INSERT INTO Students(username, password, "
+					+ "first_name, last_name, email, phone_number, notes) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+				for (int i = 0; i < accountCount; i++) {
+					insert.setString(1, username(i));
+					insert.setString(2, "cGFzc3dvcmQ=");
+					insert.setString(3, "First" + i);
+					insert.setString(4, "Last" + i);
+					insert.setString(5, username(i) + "@example.com");
+					insert.setString(6, "555-" + i);
+					insert.setString(7, null);
+					insert.addBatch();
+					if (i % 1000 == 999)
+						insert.executeBatch();
+				}
+				insert.executeBatch();
+			}
+			conn.commit();
+		}
+
+		if (mode.equals("unpooled")) {
+			repository = new JdbcAccountRepository(new UnpooledDataSource());
+		} else {
+			int statementCacheSize = mode.equals("pooled-cached") ? 64 : 0;
+			pool = new ConnectionPool(URL, USER, PASSWORD, 1, 8, 10000, 1000, 600000, 0, statementCacheSize);
+			repository = new JdbcAccountRepository(pool);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		if (pool != null) {
+			System.out.println(pool.getStatistics());
+			pool.close();
+		}
+		if (embedded != null) {
+			System.out.println(embedded.getStatistics());
+			embedded.close();
+			Files.deleteIfExists(embeddedLog);
+		}
+	}
+
+	private static String username(int index) {
+		return "student" + index;
+	}
+
+	@Benchmark
+	public Account findActiveByUsername(Lookups lookups) throws SQLException {
+		return repository.findActiveByUsername(lookups.nextUsername());
+	}
+
+	/**
+	 * Opens a new connection on every request, like DatabaseManager used to.
+	 */
+	private static class UnpooledDataSource implements DataSource {
+		@Override
+		public Connection getConnection() throws SQLException {
+			return DriverManager.getConnection(URL, USER, PASSWORD);
+		}
+
+		@Override
+		public Connection getConnection(String username, String password) throws SQLException {
+			return DriverManager.getConnection(URL, username, password);
+		}
+
+		@Override
+		public PrintWriter getLogWriter() { return null; }
+		@Override
+		public void setLogWriter(PrintWriter out) {}
+		@Override
+		public void setLoginTimeout(int seconds) {}
+		@Override
+		public int getLoginTimeout() { return 0; }
+		@Override
+		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+		@Override
+		public <T> T unwrap(Class<T> type) throws SQLException {
+			throw new SQLException("Not a wrapper for " + type.getName());
+		}
+		@Override
+		public boolean isWrapperFor(Class<?> type) { return false; }
+	}
+}
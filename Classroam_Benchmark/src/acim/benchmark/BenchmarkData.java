@@ -0,0 +1,93 @@
+package acim.benchmark;
+
+import java.util.*;
+
+/**
+ * Generates the synthetic domain lists and query mixes used by the benchmarks.
+ * Everything is derived from a fixed seed, so every run and every structure
+ * sees exactly the same data.
+ */
+public class BenchmarkData {
+	private static final long SEED = 0x41434c4dL;
+	private static final String[] WORDS = { "casino", "bet", "shop", "news", "game", "free", "best", "online", "my",
+			"the", "tube", "app", "cloud", "web", "mail", "photo", "video", "stream", "media", "data" };
+	private static final String[] TOP_LEVEL_DOMAINS = { "com", "net", "org", "xyz", "io", "ru", "de", "info", "co.uk",
+			"top" };
+	private static final String[] SUBDOMAINS = { "www", "cdn", "m", "api", "static", "img", "ads", "track" };
+
+	/**
+	 * How many labels are put in front of the registrable domain.
+	 */
+	public enum Depth {
+		/** Only registrable domains, like "example.com". */
+		SHALLOW,
+		/** Zero to three extra labels, weighted towards fewer. */
+		MIXED,
+		/** Two to four extra labels, like "a.b.cdn.example.com". */
+		DEEP;
+
+		private int extraLabels(Random random) {
+			switch (this) {
+			case SHALLOW:
+				return 0;
+			case MIXED:
+				int roll = random.nextInt(10);
+				return roll < 5 ? 0 : roll < 8 ? 1 : roll < 9 ? 2 : 3;
+			default:
+				return 2 + random.nextInt(3);
+			}
+		}
+	}
+
+	private final List<String> domains;
+	private final String[] queries;
+
+	private BenchmarkData(List<String> domains, String[] queries) {
+		this.domains = domains;
+		this.queries = queries;
+	}
+
+	/**
+	 * Generates a ban list and a query mix.
+	 *
+	 * @param size the number of distinct banned domains.
+	 * @param hitRatio the fraction of queries that are banned domains.
+	 * @param depth the label depth of both the list and the queries.
+	 * @param queryCount the number of queries to generate.
+	 * @return the generated data.
+	 */
+	public static BenchmarkData generate(int size, double hitRatio, Depth depth, int queryCount) {
+		Random random = new Random(SEED);
+		LinkedHashSet<String> banned = new LinkedHashSet<String>(size * 2);
+		while (banned.size() < size)
+			banned.add(randomDomain(random, depth));
+		ArrayList<String> domains = new ArrayList<String>(banned);
+
+		String[] queries = new String[queryCount];
+		for (int i = 0; i < queryCount; i++) {
+			if (random.nextDouble() < hitRatio) {
+				queries[i] = domains.get(random.nextInt(size));
+			} else {
+				String miss;
+				do {
+					miss = randomDomain(random, depth);
+				} while (banned.contains(miss));
+				queries[i] = miss;
+			}
+		}
+		return new BenchmarkData(Collections.unmodifiableList(domains), queries);
+	}
+
+	private static String randomDomain(Random random, Depth depth) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = depth.extraLabels(random); i > 0; i--)
+			builder.append(SUBDOMAINS[random.nextInt(SUBDOMAINS.length)]).append('.');
+		builder.append(WORDS[random.nextInt(WORDS.length)]).append(WORDS[random.nextInt(WORDS.length)]);
+		builder.append(Integer.toString(random.nextInt(1 << 24), 36)).append('.');
+		builder.append(TOP_LEVEL_DOMAINS[random.nextInt(TOP_LEVEL_DOMAINS.length)]);
+		return builder.toString();
+	}
+
+	public List<String> getDomains() { return domains; }
+	public String[] getQueries() { return queries; }
+}
@@ -0,0 +1,26 @@
+package acim.benchmark;
+
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Runs the JMH benchmarks of the master and the client.
+ *
+ * The module needs the JMH jars in Classroam_Benchmark/lib, with the annotation
+ * processor enabled, and the sources of Classroam_Master and Classroam_Client on
+ * the class path. Classroam_Benchmark/lib/README.md lists the jars and the
+ * commands to build and run. Pass a regular expression to only run matching
+ * benchmarks, e.g. "DomainSetBenchmark".
+ */
+public class Benchmarks {
+	public static void main(String[] args) throws RunnerException {
+		ChainedOptionsBuilder options = new OptionsBuilder();
+		if (args.length > 0) {
+			for (String include : args)
+				options.include(include);
+		} else {
+			options.include("acim\\.benchmark\\..*");
+		}
+		new Runner(options.build()).run();
+	}
+}
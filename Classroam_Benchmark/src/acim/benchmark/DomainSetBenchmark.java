@@ -0,0 +1,124 @@
+package acim.benchmark;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import acim.data.BanFilter;
+import acim.data.structure.*;
+
+/**
+ * Measures a single ban list lookup for every {@link DomainSet} implementation
+ * that WebsiteChecker can be configured with, over different list sizes, hit
+ * ratios and domain depths. Each invocation looks up the next query of a
+ * pregenerated mix, so the JIT cannot specialize on a single name, either
+ * as a String or in place in DNS wire format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DomainSetBenchmark {
+	private static final int QUERY_COUNT = 1 << 16;
+
+	@Param({ "10000", "100000", "1000000" })
+	public int listSize;
+
+	@Param({ "0.01", "0.5" })
+	public double hitRatio;
+
+	@Param({ "SHALLOW", "MIXED", "DEEP" })
+	public BenchmarkData.Depth depth;
+
+	@Param({ "node", "compact", "dafsa", "labels", "mapped", "bloom-labels", "client-filter" })
+	public String structure;
+
+	private DomainSet set;
+	private String[] queries;
+	private ByteBuffer wireQueries;
+	private int[] wireOffsets;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchmarkData data = BenchmarkData.generate(listSize, hitRatio, depth, QUERY_COUNT);
+		queries = data.getQueries();
+		set = build(structure, data);
+		encodeWireQueries();
+	}
+
+	/**
+	 * Encodes every query in DNS wire format into one buffer, the way the
+	 * question names appear in the packets the client receives.
+	 */
+	private void encodeWireQueries() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		wireOffsets = new int[queries.length];
+		for (int i = 0; i < queries.length; i++) {
+			wireOffsets[i] = bytes.size();
+			for (String label : queries[i].split("\\.")) {
+				bytes.write(label.length());
+				bytes.write(label.getBytes(StandardCharsets.US_ASCII), 0, label.length());
+			}
+			bytes.write(0);
+		}
+		wireQueries = ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	private static DomainSet build(String structure, BenchmarkData data) throws IOException {
+		switch (structure) {
+		case "node":
+			Node root = new Node();
+			for (String domain : data.getDomains()) {
+				Node current = root;
+				for (int i = 0; i < domain.length(); i++)
+					current = current.createChildIfNotExist(domain.charAt(i));
+				current.markAsEnd();
+			}
+			return root;
+		case "compact":
+			return CompactTrie.build(data.getDomains());
+		case "dafsa":
+			return Dafsa.build(data.getDomains());
+		case "labels":
+			return DomainLabelTrie.build(data.getDomains(), Collections.<String>emptyList());
+		case "mapped":
+			// Same layout as in the ban list image, read from a direct buffer instead of a file.
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				MappedDomainTrie.write(DomainLabelTrie.build(data.getDomains(), Collections.<String>emptyList()), out);
+			}
+			ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.size());
+			buffer.put(bytes.toByteArray()).flip();
+			return MappedDomainTrie.read(buffer);
+		case "bloom-labels":
+			return new BloomFrontedSet(data.getDomains(),
+					DomainLabelTrie.build(data.getDomains(), Collections.<String>emptyList()), true, 0.01);
+		case "client-filter":
+			BanFilter filter = BanFilter.compile(data.getDomains(), 1);
+			return filter::mightContain;
+		default:
+			throw new IllegalArgumentException("Unknown structure: " + structure);
+		}
+	}
+
+	@Benchmark
+	public boolean lookup() {
+		String query = queries[next];
+		next = (next + 1) & (QUERY_COUNT - 1);
+		return set.contains(query);
+	}
+
+	@Benchmark
+	public boolean lookupWireFormat() {
+		int offset = wireOffsets[next];
+		next = (next + 1) & (QUERY_COUNT - 1);
+		return set.contains(wireQueries, offset);
+	}
+}
@@ -0,0 +1,72 @@
+package acim.benchmark;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import acim.data.structure.*;
+
+/**
+ * Compares the pattern rule matchers against looping over one regex per rule,
+ * for a growing number of keyword ("*casino1*") and prefix ("bet1*") rules.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatternBenchmark {
+	private static final int QUERY_COUNT = 1 << 12;
+
+	@Param({ "10", "100", "1000" })
+	public int ruleCount;
+
+	@Param({ "automaton", "regex", "regex-loop" })
+	public String matcher;
+
+	private DomainSet set;
+	private String[] queries;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		ArrayList<String> rules = new ArrayList<String>();
+		for (int i = 0; i < ruleCount; i++)
+			rules.add(i % 3 == 0 ? "bet" + i + "*" : "*casino" + i + "*");
+		queries = BenchmarkData.generate(1, 0, BenchmarkData.Depth.MIXED, QUERY_COUNT).getQueries();
+
+		switch (matcher) {
+		case "automaton":
+			set = GlobAutomaton.build(rules);
+			break;
+		case "regex":
+			set = new RegexPatternSet(rules);
+			break;
+		case "regex-loop":
+			ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+			for (String rule : rules)
+				patterns.add(Pattern.compile(RegexPatternSet.toRegex(GlobAutomaton.normalize(rule)),
+						Pattern.CASE_INSENSITIVE));
+			set = name -> {
+				for (Pattern pattern : patterns) {
+					if (pattern.matcher(name).matches())
+						return true;
+				}
+				return false;
+			};
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown matcher: " + matcher);
+		}
+	}
+
+	@Benchmark
+	public boolean lookup() {
+		String query = queries[next];
+		next = (next + 1) & (QUERY_COUNT - 1);
+		return set.contains(query);
+	}
+}
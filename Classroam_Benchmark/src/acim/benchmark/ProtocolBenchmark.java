@@ -0,0 +1,75 @@
+package acim.benchmark;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import acim.client.DomainAccessReporter;
+import acim.data.BanFilter;
+import acim.net.ClientConnection;
+
+/**
+ * Measures encoding and parsing of the protocol messages that carry
+ * domain checks and ban filter updates between the client and the master.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+	@Param({ "10000", "100000" })
+	public int listSize;
+
+	private List<String> domains;
+	private BanFilter previousFilter;
+	private BanFilter filter;
+	private BanFilter.Delta delta;
+	private String batchArguments;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		domains = BenchmarkData.generate(listSize, 0, BenchmarkData.Depth.MIXED, 1).getDomains();
+		// The next version bans one percent more domains and drops one percent.
+		int changed = listSize / 100;
+		previousFilter = BanFilter.compile(domains.subList(changed, listSize), 1);
+		filter = BanFilter.compile(domains.subList(0, listSize - changed), 2);
+		delta = filter.diff(previousFilter);
+
+		DomainAccessReporter reporter = new DomainAccessReporter();
+		for (String domain : domains.subList(0, DomainAccessReporter.MAXIMUM_DOMAINS_PER_BATCH))
+			reporter.report(domain);
+		String command = reporter.drainBatchCommand();
+		batchArguments = command.substring("domain access batch ".length());
+	}
+
+	@Benchmark
+	public String encodeFullFilter() {
+		return ClientConnection.encodeFullBanFilter(filter);
+	}
+
+	@Benchmark
+	public String encodeDelta() {
+		return delta.toCommand();
+	}
+
+	@Benchmark
+	public BanFilter.Delta diffFilters() {
+		return filter.diff(previousFilter);
+	}
+
+	@Benchmark
+	public String encodeDomainAccessBatch() {
+		DomainAccessReporter reporter = new DomainAccessReporter();
+		for (int i = 0; i < DomainAccessReporter.MAXIMUM_DOMAINS_PER_BATCH; i++)
+			reporter.report(domains.get(i));
+		return reporter.drainBatchCommand();
+	}
+
+	@Benchmark
+	public Map<String, Integer> parseDomainAccessBatch() {
+		return ClientConnection.parseDomainAccessBatch(batchArguments);
+	}
+}
@@ -0,0 +1,83 @@
+package acim.benchmark;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import acim.data.structure.HierarchicalTimingWheel;
+
+/**
+ * Measures what SessionAccounting does whenever a session starts, ends or
+ * gets time added: cancel the timeout of a balance and schedule a new one.
+ * The {@link HierarchicalTimingWheel} is compared with a timer task per
+ * session on a ScheduledThreadPoolExecutor, whose queue is a binary heap,
+ * with the given number of sessions waiting.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionTimerBenchmark {
+	// Sessions last up to a school day.
+	private static final int MAXIMUM_SECONDS = 8 * 3600;
+	private static final Runnable EXPIRE = () -> {};
+
+	@Param({ "1000", "100000" })
+	public int sessions;
+
+	@Param({ "wheel", "executor" })
+	public String timer;
+
+	private HierarchicalTimingWheel<Integer> wheel;
+	private List<HierarchicalTimingWheel.Timeout<Integer>> timeouts;
+	private ScheduledThreadPoolExecutor executor;
+	private List<ScheduledFuture<?>> futures;
+	private int[] deadlines;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(1);
+		deadlines = new int[1 << 16];
+		for (int i = 0; i < deadlines.length; i++)
+			deadlines[i] = 1 + random.nextInt(MAXIMUM_SECONDS);
+
+		if (timer.equals("wheel")) {
+			wheel = new HierarchicalTimingWheel<Integer>(0);
+			timeouts = new ArrayList<HierarchicalTimingWheel.Timeout<Integer>>(sessions);
+			for (int i = 0; i < sessions; i++)
+				timeouts.add(wheel.schedule(i, deadlines[i % deadlines.length]));
+		} else {
+			executor = new ScheduledThreadPoolExecutor(1);
+			executor.setRemoveOnCancelPolicy(true);
+			futures = new ArrayList<ScheduledFuture<?>>(sessions);
+			for (int i = 0; i < sessions; i++)
+				futures.add(executor.schedule(EXPIRE, deadlines[i % deadlines.length], TimeUnit.SECONDS));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	@Benchmark
+	public Object reschedule() {
+		int session = next % sessions;
+		int deadline = deadlines[next++ & (deadlines.length - 1)];
+		if (wheel != null) {
+			wheel.cancel(timeouts.get(session));
+			HierarchicalTimingWheel.Timeout<Integer> timeout = wheel.schedule(session, deadline);
+			timeouts.set(session, timeout);
+			return timeout;
+		}
+		futures.get(session).cancel(false);
+		ScheduledFuture<?> future = executor.schedule(EXPIRE, deadline, TimeUnit.SECONDS);
+		futures.set(session, future);
+		return future;
+	}
+}
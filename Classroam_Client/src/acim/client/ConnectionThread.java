@@ -27,11 +27,32 @@ public class ConnectionThread extends Thread {
 	private int connectionTries = 0;
 	
 	private Queue<String> commandQueue;
+	private DomainAccessReporter domainReporter = new DomainAccessReporter();
 	
 	public void enqueueCommand(String str) {
 		commandQueue.add(str);
 	}
 
+	/**
+     * Reports a domain access to the server. Reports are coalesced and sent
+     * as one batch per output cycle instead of one command per query.
+     * 
+     * @param domain the domain that was queried.
+     */
+	public void reportDomainAccess(String domain) {
+		domainReporter.report(domain);
+	}
+
+	/**
+     * Counts a DNS query for the server's statistics. The count and the most
+     * queried domains are sent with the next batch of domain accesses.
+     *
+     * @param domain the domain that was queried.
+     */
+	public void countDomainQuery(CharSequence domain) {
+		domainReporter.countQuery(domain);
+	}
+
 	/**
      * Initializes a ConnectionThread with an already-established socket.
      * Also sets up I/O streams and prepares the command queue.
@@ -56,6 +77,7 @@ public class ConnectionThread extends Thread {
 	public void closeSocket() {
 		try {
 			if (!socket.isClosed()) {
+				UsageCountdown.hide();
 				LockFrame.showFrame();
 				socket.close();
 			}
@@ -79,6 +101,9 @@ public class ConnectionThread extends Thread {
 			connectionTries = 0;
 			
 			try {
+				// Let the server know which ban filter we have, so it can send updates.
+				enqueueCommand("ban filter version " + LocalBanFilter.getVersion());
+
 				new InputThread().start();
 				new OutputThread().start();
 				
@@ -151,18 +176,17 @@ public class ConnectionThread extends Thread {
 						return;
 					}
 
-					/*
-					 	if (input.startsWith("update available seconds ")) {
-						long newSeconds = Long.parseLong(input.replaceFirst("update available seconds ", ""));
-					} else
-					*/
-					if (input.startsWith("login fail ")) {
+					if (input.startsWith("update available seconds ")) {
+						long newSeconds = Long.parseLong(input.replaceFirst("update available seconds ", "").trim());
+						UsageCountdown.update(newSeconds);
+					} else if (input.startsWith("login fail ")) {
 						String failMsg = input.replaceFirst("login fail ", "");
 						JOptionPane.showMessageDialog(null,
 								"<html>Failed to login: <br>" + failMsg + "<html>",
 									"Login failed.",
 									JOptionPane.ERROR_MESSAGE);
 					} else if (input.equals("kickout")) {
+						UsageCountdown.hide();
 						LockFrame.showFrame();
 					} else if (input.startsWith("allow access")) {
 						SwingUtilities.invokeLater(new Runnable() {
@@ -233,6 +257,30 @@ public class ConnectionThread extends Thread {
 							fos.flush();
 							fos.close();
 						}
+					} else if (input.startsWith("ban filter full ")) {
+						String[] args = input.split(" ");
+						long version = Long.parseLong(args[3]);
+						ByteArrayOutputStream image = new ByteArrayOutputStream(Integer.parseInt(args[4]) * 8);
+						Base64.Decoder decoder = Base64.getUrlDecoder();
+						
+						String line;
+						while ((line = reader.readLine()) != null && !line.equals("ban filter end")) {
+							if (line.startsWith("chunk length ")) {
+								int chunk_length = Integer.parseInt(line.replaceFirst("chunk length ", ""));
+								byte[] chunk = decoder.decode(reader.readLine());
+								image.write(chunk, 0, chunk_length);
+							}
+						}
+						LocalBanFilter.load(version, image.toByteArray());
+					} else if (input.startsWith("ban filter delta ")) {
+						String[] args = input.split(" ");
+						if (!LocalBanFilter.applyDelta(Long.parseLong(args[3]), Long.parseLong(args[4]), args[5], args[6])) {
+							// Out of sync, so ask the server to start from our current version.
+							commandQueue.add("ban filter version " + LocalBanFilter.getVersion());
+						}
+					} else if (input.startsWith("ban filter patterns ")) {
+						String[] args = input.split(" ");
+						LocalBanFilter.setPatterns(args[4]);
 					} else if (input.equals("request screenshot")) {
 						commandQueue.add("start receive screenshot");
 						ByteArrayInputStream bais = new ByteArrayInputStream(ScreenCapture.getScreencapBytes());
@@ -259,6 +307,7 @@ public class ConnectionThread extends Thread {
      * Handles outgoing data to the server.
      * 
      * Continuously checks for new commands in the queue and sends them.
+     * Domain access reports are batched per cycle.
      */
 	private class OutputThread extends Thread {
 		@Override
@@ -272,6 +321,11 @@ public class ConnectionThread extends Thread {
 						e.printStackTrace();
 					}
 
+					// Send the domain accesses collected since the last cycle as one batch.
+					String batch;
+					while ((batch = domainReporter.drainBatchCommand()) != null)
+						commandQueue.add(batch);
+
 					// Empty all queued commands
 					while (!commandQueue.isEmpty()) {
 						String command = commandQueue.poll();
@@ -1,38 +1,50 @@
 package acim.client;
 
-import java.io.IOException;
 import java.net.*;
+import java.nio.*;
 
 import org.xbill.DNS.*;
 import org.xbill.DNS.Record;
 
 public class DNSServer extends Thread {
 	private static final int PORT = 5300;
+	private static final int HEADER_LENGTH = 12;
+	private static final int QUESTION_COUNT_OFFSET = 4;
 	private ConnectionThread connThread;
+	private UpstreamResolver resolver;
 	public DNSServer(ConnectionThread thread) {
+		this(thread, UpstreamResolver.load());
+	}
+	public DNSServer(ConnectionThread thread, UpstreamResolver resolver) {
 		connThread = thread;
+		this.resolver = resolver;
 	}
 	public void run() {
 		System.out.println("Starting local DNS server...");
 		try (DatagramSocket socket = new DatagramSocket(PORT)) {
 			byte[] buffer = new byte[1024];
+			// The packet, the buffer view and the name view are reused for every query,
+			// so checking a query does not create any objects.
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			ByteBuffer packetBytes = ByteBuffer.wrap(buffer);
+			WireName name = new WireName();
 			while (true) {
-				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
 				try {
+					packet.setLength(buffer.length);
 	                socket.receive(packet);
+	                packetBytes.limit(packet.getLength());
 	
-	                InetAddress clientAddress = packet.getAddress();
-	                System.out.println("Received DNS query from: " + clientAddress.getHostAddress());
-	
-	                Message request = new Message(packet.getData());
-	                Record queryRecord = request.getQuestion();
-	                String domain = queryRecord.getName().toString();
-	                domain = domain.substring(0, domain.length() - 1);
-	                System.out.println("Query for: " + domain);
-	                connThread.enqueueCommand("domain access " + domain);
+	                // The question name starts right after the header. Packets without a
+	                // readable question are dropped, since they cannot be checked.
+	                if (packet.getLength() < HEADER_LENGTH || packetBytes.getShort(QUESTION_COUNT_OFFSET) == 0
+	                		|| !name.wrap(packetBytes, HEADER_LENGTH))
+	                	continue;
+	                connThread.countDomainQuery(name);
+	                // Only report possible hits to the server, unless no filter has been received yet.
+	                if (!LocalBanFilter.isLoaded() || LocalBanFilter.isBanned(name))
+	                	connThread.reportDomainAccess(name.toString());
 	                
-	                byte[] responseData = forwardToUpstream(packet.getData());
-	                System.out.println("Response length: " + responseData.length);
+	                byte[] responseData = resolver.resolve(buffer, packet.getLength());
 	                DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, packet.getAddress(), packet.getPort());
 	                socket.send(responsePacket);
 				} catch (Exception e) {
@@ -43,22 +55,6 @@ public class DNSServer extends Thread {
 			e.printStackTrace();
 		}
 	}
-    private static byte[] forwardToUpstream(byte[] queryData) throws IOException {
-        try (DatagramSocket upstreamSocket = new DatagramSocket()) {
-            InetAddress upstreamAddress = InetAddress.getByAddress(new byte[] {94, (byte) 140,14,14});
-
-            // Send the DNS query to the upstream server
-            DatagramPacket upstreamPacket = new DatagramPacket(queryData, queryData.length, upstreamAddress, 53);
-            upstreamSocket.send(upstreamPacket);
-
-            // Receive the DNS response
-            byte[] responseBuffer = new byte[512];
-            DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-            upstreamSocket.receive(responsePacket);
-
-            return responsePacket.getData();
-        }
-    }
 	private static Message createResponse(Message request) {
         Message response = new Message(request.getHeader().getID());
         response.getHeader().setFlag(Flags.QR);
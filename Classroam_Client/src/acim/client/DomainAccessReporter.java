@@ -0,0 +1,71 @@
+package acim.client;
+
+import java.util.*;
+
+/**
+ * DomainAccessReporter coalesces domain access reports before they are sent
+ * to the server. Repeated queries for the same domain within one window are
+ * merged into a single entry with a count, and the whole window is sent as
+ * one "domain access batch" command. Only domains the filter flags are
+ * reported and checked by the server, so for the master's statistics the
+ * batch also carries how many queries were answered in total, and the most
+ * queried domains among all of them, counted by a {@link TopDomainCounter}.
+ */
+public class DomainAccessReporter {
+	public static final int MAXIMUM_DOMAINS_PER_BATCH = 256;
+
+	private LinkedHashMap<String, Integer> pending = new LinkedHashMap<String, Integer>();
+	private long pendingQueries;
+	private final TopDomainCounter resolved = new TopDomainCounter();
+
+	/**
+     * Records a domain access to be sent with the next batch.
+     *
+     * @param domain the domain that was queried.
+     */
+	public synchronized void report(String domain) {
+		pending.merge(domain, 1, Integer::sum);
+	}
+
+	/**
+     * Counts a DNS query, whether or not its domain is reported.
+     *
+     * @param domain the domain that was queried.
+     */
+	public synchronized void countQuery(CharSequence domain) {
+		pendingQueries++;
+		resolved.add(domain);
+	}
+
+	/**
+     * Removes the pending reports and encodes them as a single command:
+     * "domain access batch queries=&lt;count&gt; resolved=&lt;domain&gt;:&lt;count&gt;,... &lt;domain&gt;:&lt;count&gt; &lt;domain&gt;:&lt;count&gt; ...".
+     * At most {@link #MAXIMUM_DOMAINS_PER_BATCH} domains are taken at once,
+     * the rest stay for the next batch. The query count and the most queried
+     * domains cover all queries since the last batch and are only sent with
+     * the first one.
+     *
+     * @return the batch command, or null if nothing is pending.
+     */
+	public synchronized String drainBatchCommand() {
+		if (pending.isEmpty() && pendingQueries == 0)
+			return null;
+
+		StringBuilder builder = new StringBuilder("domain access batch");
+		if (pendingQueries > 0)
+			builder.append(" queries=").append(pendingQueries);
+		pendingQueries = 0;
+		if (!resolved.isEmpty()) {
+			builder.append(" resolved=");
+			resolved.drain(builder);
+		}
+		int taken = 0;
+		for (Iterator<Map.Entry<String, Integer>> it = pending.entrySet().iterator();
+				it.hasNext() && taken < MAXIMUM_DOMAINS_PER_BATCH; taken++) {
+			Map.Entry<String, Integer> entry = it.next();
+			builder.append(' ').append(entry.getKey()).append(':').append(entry.getValue());
+			it.remove();
+		}
+		return builder.toString();
+	}
+}
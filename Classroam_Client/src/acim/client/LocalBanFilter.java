@@ -0,0 +1,215 @@
+package acim.client;
+
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * LocalBanFilter holds the ban filter pushed by the server, so that DNS
+ * queries can be checked locally instead of asking the server every time.
+ *
+ * The filter is a sorted array of 64-bit FNV-1a hashes of the banned domains.
+ * A match only means the domain might be banned, the server still makes the
+ * final decision when the hit is reported to it.
+ *
+ * Pattern rules like "*casino*" are received as text and compiled into a
+ * single regular expression. They are rare and only used to decide whether
+ * a domain is worth reporting, so the server does the fast matching.
+ */
+public class LocalBanFilter {
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+     * Immutable version and hashes pair, swapped in as a whole
+     * so that readers never see a half-updated filter.
+     */
+	private static class Snapshot {
+		private final long version;
+		private final long[] hashes;
+
+		private Snapshot(long version, long[] hashes) {
+			this.version = version;
+			this.hashes = hashes;
+		}
+	}
+
+	private static volatile Snapshot snapshot = new Snapshot(0, null);
+	private static volatile Pattern patterns;
+	// Reused per thread, so that checking a name against the patterns does not create a matcher.
+	private static final ThreadLocal<Matcher> matchers = new ThreadLocal<Matcher>();
+
+	/**
+     * @return true if a filter has been received from the server.
+     */
+	public static boolean isLoaded() {
+		return snapshot.hashes != null;
+	}
+
+	/**
+     * @return the version of the current filter, or 0 if none was received yet.
+     */
+	public static long getVersion() {
+		return snapshot.version;
+	}
+
+	/**
+     * Checks whether a domain or any of its parent domains might be banned,
+     * so that banning "example.com" also covers "www.example.com".
+     * Nothing is allocated, so this can be called with a {@link WireName}
+     * for every DNS query.
+     *
+     * @param domain the domain to check.
+     * @return true if the domain or a parent domain is in the filter.
+     */
+	public static boolean isBanned(CharSequence domain) {
+		long[] hashes = snapshot.hashes;
+		if (hashes == null)
+			return false;
+		Pattern pattern = patterns;
+		if (pattern != null) {
+			Matcher matcher = matchers.get();
+			if (matcher == null || matcher.pattern() != pattern) {
+				matcher = pattern.matcher("");
+				matchers.set(matcher);
+			}
+			if (matcher.reset(domain).matches())
+				return true;
+		}
+		for (int i = 0; i < domain.length(); i++) {
+			if ((i == 0 || domain.charAt(i - 1) == '.') && Arrays.binarySearch(hashes, hash(domain, i)) >= 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+     * Replaces the current filter with a full image from the server.
+     *
+     * @param version the version of the image.
+     * @param image the image, made of big-endian sorted longs.
+     */
+	public static synchronized void load(long version, byte[] image) {
+		long[] hashes = new long[image.length / 8];
+		ByteBuffer.wrap(image).asLongBuffer().get(hashes);
+		snapshot = new Snapshot(version, hashes);
+		System.out.println("Loaded ban filter version " + version + " (" + hashes.length + " domains)");
+	}
+
+	/**
+     * Applies an incremental update from the server.
+     *
+     * @param fromVersion the version the delta applies to.
+     * @param toVersion the version after applying the delta.
+     * @param encodedAdded the added hashes in Base64, or "-" if there are none.
+     * @param encodedRemoved the removed hashes in Base64, or "-" if there are none.
+     * @return false if the delta does not apply to the current version.
+     */
+	public static synchronized boolean applyDelta(long fromVersion, long toVersion,
+			String encodedAdded, String encodedRemoved) {
+		Snapshot current = snapshot;
+		if (current.hashes == null || current.version != fromVersion)
+			return false;
+
+		long[] added = decodeHashes(encodedAdded);
+		long[] removed = decodeHashes(encodedRemoved);
+		Arrays.sort(added);
+		Arrays.sort(removed);
+
+		// Merge the added hashes in and skip the removed ones in a single pass.
+		long[] merged = new long[current.hashes.length + added.length];
+		int count = 0, i = 0, j = 0;
+		while (i < current.hashes.length || j < added.length) {
+			long next;
+			if (j >= added.length || (i < current.hashes.length && current.hashes[i] <= added[j]))
+				next = current.hashes[i++];
+			else
+				next = added[j++];
+			if (Arrays.binarySearch(removed, next) >= 0 || (count > 0 && merged[count - 1] == next))
+				continue;
+			merged[count++] = next;
+		}
+		snapshot = new Snapshot(toVersion, Arrays.copyOf(merged, count));
+		System.out.println("Updated ban filter to version " + toVersion + " (+" + added.length
+				+ ", -" + removed.length + ")");
+		return true;
+	}
+
+	/**
+     * Replaces the pattern rules with the ones sent by the server.
+     *
+     * @param encoded the patterns joined by newlines in Base64, or "-" if there are none.
+     */
+	public static void setPatterns(String encoded) {
+		if (encoded.equals("-")) {
+			patterns = null;
+			return;
+		}
+		String[] globs = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8).split("\n");
+		StringBuilder regex = new StringBuilder();
+		for (String glob : globs) {
+			glob = glob.trim();
+			if (glob.endsWith("."))
+				glob = glob.substring(0, glob.length() - 1);
+			if (regex.length() > 0)
+				regex.append('|');
+			for (int i = 0; i < glob.length(); i++) {
+				char c = glob.charAt(i);
+				if (c == '*')
+					regex.append(".*");
+				else if (c == '?')
+					regex.append('.');
+				else
+					regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		// Domains are matched without their trailing dot.
+		patterns = Pattern.compile("(?:" + regex + ")\\.?", Pattern.CASE_INSENSITIVE);
+		System.out.println("Loaded " + globs.length + " ban patterns");
+	}
+
+	private static long[] decodeHashes(String encoded) {
+		if (encoded.equals("-"))
+			return new long[0];
+		byte[] bytes = Base64.getUrlDecoder().decode(encoded);
+		long[] hashes = new long[bytes.length / 8];
+		ByteBuffer.wrap(bytes).asLongBuffer().get(hashes);
+		return hashes;
+	}
+
+	/**
+     * Hashes a domain name with 64-bit FNV-1a. This is a copy of the master's
+     * DomainHash.hash, and both must produce the same values.
+     *
+     * @param domain the domain to hash.
+     * @return the 64-bit hash.
+     */
+	public static long hash(CharSequence domain) {
+		return hash(domain, 0);
+	}
+
+	/**
+     * Hashes the part of a domain name starting at the given index,
+     * which is used to hash parent domains without creating substrings.
+     *
+     * @param domain the domain to hash.
+     * @param from the index of the first character to hash.
+     * @return the 64-bit hash.
+     */
+	public static long hash(CharSequence domain, int from) {
+		int length = domain.length();
+		if (length > 0 && domain.charAt(length - 1) == '.')
+			length--;
+
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = from; i < length; i++) {
+			char c = domain.charAt(i);
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			hash ^= c;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,74 @@
+package acim.client;
+
+import java.util.*;
+
+/**
+ * TopDomainCounter counts the domains a client resolves in a fixed amount of
+ * memory, so the server can rank what students actually visit and not only
+ * the domains the ban filter flags.
+ *
+ * It uses the Space-Saving algorithm: at most {@link #CAPACITY} domains are
+ * counted. When a new domain arrives and every slot is taken, it replaces the
+ * domain with the smallest count and inherits that count plus one. Every
+ * domain that was queried more often than the total divided by the capacity
+ * is guaranteed to be kept, counts are never too low and at most too high by
+ * the smallest count, and the counts always add up to the number of queries.
+ *
+ * Not thread-safe; {@link DomainAccessReporter} calls it under its lock.
+ */
+public class TopDomainCounter {
+	public static final int CAPACITY = 64;
+
+	private final HashMap<String, long[]> counts = new HashMap<String, long[]>();
+
+	/**
+     * Counts one query for a domain.
+     *
+     * @param domain the queried domain, without a trailing dot.
+     */
+	public void add(CharSequence domain) {
+		String name = domain.toString().toLowerCase(Locale.ROOT);
+		long[] count = counts.get(name);
+		if (count != null) {
+			count[0]++;
+			return;
+		}
+		if (counts.size() < CAPACITY) {
+			counts.put(name, new long[] { 1 });
+			return;
+		}
+
+		Map.Entry<String, long[]> smallest = null;
+		for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+			if (smallest == null || entry.getValue()[0] < smallest.getValue()[0])
+				smallest = entry;
+		}
+		counts.remove(smallest.getKey());
+		smallest.getValue()[0]++;
+		counts.put(name, smallest.getValue());
+	}
+
+	/**
+     * @return true if nothing was counted since the last {@link #drain(StringBuilder)}.
+     */
+	public boolean isEmpty() {
+		return counts.isEmpty();
+	}
+
+	/**
+     * Appends the counts as "&lt;domain&gt;:&lt;count&gt;,&lt;domain&gt;:&lt;count&gt;..."
+     * and starts counting from zero.
+     *
+     * @param builder the builder to append to.
+     */
+	public void drain(StringBuilder builder) {
+		boolean first = true;
+		for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+			if (!first)
+				builder.append(',');
+			builder.append(entry.getKey()).append(':').append(entry.getValue()[0]);
+			first = false;
+		}
+		counts.clear();
+	}
+}
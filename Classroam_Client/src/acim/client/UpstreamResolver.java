@@ -0,0 +1,340 @@
+package acim.client;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * UpstreamResolver forwards raw DNS queries to a list of upstream resolvers.
+ *
+ * Every upstream keeps an exponentially weighted moving average (EWMA) of its
+ * latency along with its variance, which gives an estimate of its p90 latency.
+ * Upstreams are tried fastest-first. When hedging is enabled, the query is also
+ * sent to the next upstream if the current one has not answered within its p90
+ * latency, and whichever answers first wins.
+ *
+ * An upstream that fails several times in a row is taken out of rotation for a
+ * cooldown period, after which it is given another chance. Without hedging, an
+ * upstream fails as soon as the query moves on to the next one.
+ *
+ * The upstream list is read from Upstreams.txt (one "host" or "host:port" per line),
+ * so it can also point to stub DNS servers on the loopback interface. A line
+ * "hedging off" in the file turns hedging off.
+ */
+public class UpstreamResolver {
+	public static final String UPSTREAM_FILE = "Upstreams.txt";
+	public static final int DNS_PORT = 53;
+	public static final int QUERY_TIMEOUT_MILLISECONDS = 2000;
+	public static final int MAXIMUM_ATTEMPTS = 3;
+	public static final int MAXIMUM_CONSECUTIVE_FAILURES = 3;
+	public static final long UNHEALTHY_COOLDOWN_MILLISECONDS = 30000;
+
+	private static final int MAXIMUM_RESPONSE_SIZE = 4096;
+	private static final long MINIMUM_HEDGE_DELAY_MILLISECONDS = 5;
+	private static final double EWMA_ALPHA = 0.2;
+	// z-score of the 90th percentile of a normal distribution.
+	private static final double P90_Z_SCORE = 1.2816;
+
+	private final List<Upstream> upstreams;
+	private volatile boolean hedging = true;
+
+	/**
+     * Represents a single upstream resolver and its health statistics.
+     */
+	public static class Upstream {
+		private final InetSocketAddress address;
+		private double latencyEwma;
+		private double latencyVariance;
+		private boolean measured = false;
+		private int consecutiveFailures = 0;
+		private long unhealthyUntil = 0;
+
+		public Upstream(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		public InetSocketAddress getAddress() { return address; }
+
+		/**
+		 * Records a successful answer and updates the latency estimate.
+		 *
+		 * @param latencyMillis the time it took for the answer to arrive.
+		 */
+		public synchronized void recordSuccess(double latencyMillis) {
+			updateLatency(latencyMillis);
+			if (unhealthyUntil != 0)
+				System.out.println("Upstream DNS server " + address + " is back in rotation.");
+			consecutiveFailures = 0;
+			unhealthyUntil = 0;
+		}
+
+		/**
+		 * Records a timed out or failed query. The upstream is taken out of
+		 * rotation once it has failed too many times in a row.
+		 */
+		public synchronized void recordFailure() {
+			consecutiveFailures++;
+			if (consecutiveFailures >= MAXIMUM_CONSECUTIVE_FAILURES) {
+				if (unhealthyUntil == 0)
+					System.out.println("Upstream DNS server " + address + " is unhealthy, taking it out of rotation.");
+				unhealthyUntil = System.currentTimeMillis() + UNHEALTHY_COOLDOWN_MILLISECONDS;
+			}
+		}
+
+		/**
+		 * Records that another upstream answered first while this one was still silent.
+		 * The elapsed time is only a lower bound of its latency, but it is enough
+		 * to push a slow upstream behind the faster ones. Losing a race is not a
+		 * failure, so a healthy but slower upstream is never taken out of rotation
+		 * for it; only timeouts and errors count towards that.
+		 *
+		 * @param elapsedMillis the time this upstream has been waited for.
+		 */
+		public synchronized void recordLoss(double elapsedMillis) {
+			updateLatency(elapsedMillis);
+		}
+
+		private void updateLatency(double latencyMillis) {
+			if (!measured) {
+				latencyEwma = latencyMillis;
+				latencyVariance = 0;
+				measured = true;
+			} else {
+				double diff = latencyMillis - latencyEwma;
+				latencyEwma += EWMA_ALPHA * diff;
+				latencyVariance = (1 - EWMA_ALPHA) * (latencyVariance + EWMA_ALPHA * diff * diff);
+			}
+		}
+
+		public synchronized boolean isHealthy() {
+			return unhealthyUntil == 0 || System.currentTimeMillis() >= unhealthyUntil;
+		}
+
+		/**
+		 * @return the estimated latency in milliseconds, or 0 if it was never measured.
+		 */
+		public synchronized double getLatencyEwma() {
+			return measured ? latencyEwma : 0;
+		}
+
+		/**
+		 * @return the estimated 90th percentile latency in milliseconds.
+		 */
+		public synchronized double getP90Latency() {
+			if (!measured)
+				return QUERY_TIMEOUT_MILLISECONDS / 4;
+			return latencyEwma + P90_Z_SCORE * Math.sqrt(latencyVariance);
+		}
+
+		public synchronized int getConsecutiveFailures() { return consecutiveFailures; }
+
+		@Override
+		public synchronized String toString() {
+			return address + " (ewma " + String.format("%.1f", getLatencyEwma()) + " ms, p90 "
+					+ String.format("%.1f", getP90Latency()) + " ms, failures " + consecutiveFailures
+					+ (isHealthy() ? "" : ", unhealthy") + ")";
+		}
+	}
+
+	/**
+     * Creates a resolver with the given upstream addresses.
+     *
+     * @param addresses the upstream resolvers, in order of preference.
+     */
+	public UpstreamResolver(List<InetSocketAddress> addresses) {
+		if (addresses.isEmpty())
+			throw new IllegalArgumentException("At least one upstream DNS server is required.");
+
+		upstreams = new ArrayList<Upstream>();
+		for (InetSocketAddress address : addresses)
+			upstreams.add(new Upstream(address));
+	}
+
+	/**
+     * Loads the upstream list from Upstreams.txt, falling back to the default
+     * upstreams when the file does not exist or contains no valid entries.
+     *
+     * @return the configured resolver.
+     */
+	public static UpstreamResolver load() {
+		ArrayList<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		boolean hedging = true;
+		File file = new File(UPSTREAM_FILE);
+		if (file.exists()) {
+			try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#"))
+						continue;
+					if (line.toLowerCase(Locale.ROOT).startsWith("hedging ")) {
+						hedging = !line.substring("hedging ".length()).trim().equalsIgnoreCase("off");
+						continue;
+					}
+					try {
+						addresses.add(parseAddress(line));
+					} catch (Exception e) {
+						System.out.println("Ignoring invalid upstream DNS server: " + line);
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		if (addresses.isEmpty()) {
+			// AdGuard DNS (primary and secondary)
+			addresses.add(new InetSocketAddress("94.140.14.14", DNS_PORT));
+			addresses.add(new InetSocketAddress("94.140.15.15", DNS_PORT));
+		}
+		System.out.println("Upstream DNS servers: " + addresses + (hedging ? ", hedging" : ", no hedging"));
+		UpstreamResolver resolver = new UpstreamResolver(addresses);
+		resolver.setHedging(hedging);
+		return resolver;
+	}
+
+	/**
+     * Parses "host", "host:port" or "[ipv6]:port" into a socket address.
+     */
+	private static InetSocketAddress parseAddress(String str) {
+		String host = str;
+		int port = DNS_PORT;
+		if (str.startsWith("[")) {
+			int end = str.indexOf(']');
+			host = str.substring(1, end);
+			if (end + 1 < str.length() && str.charAt(end + 1) == ':')
+				port = Integer.parseInt(str.substring(end + 2));
+		} else if (str.indexOf(':') != -1 && str.indexOf(':') == str.lastIndexOf(':')) {
+			host = str.substring(0, str.indexOf(':'));
+			port = Integer.parseInt(str.substring(str.indexOf(':') + 1));
+		}
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		if (address.isUnresolved())
+			throw new IllegalArgumentException("Unresolved host: " + host);
+		return address;
+	}
+
+	public List<Upstream> getUpstreams() { return Collections.unmodifiableList(upstreams); }
+	public boolean isHedging() { return hedging; }
+	public void setHedging(boolean hedging) { this.hedging = hedging; }
+
+	/**
+     * Returns the upstreams that should be tried for the next query,
+     * healthy ones first and ordered by their latency estimate.
+     */
+	private List<Upstream> getCandidates() {
+		ArrayList<Upstream> healthy = new ArrayList<Upstream>();
+		ArrayList<Upstream> unhealthy = new ArrayList<Upstream>();
+		for (Upstream upstream : upstreams) {
+			if (upstream.isHealthy())
+				healthy.add(upstream);
+			else
+				unhealthy.add(upstream);
+		}
+		// Stable sort, so unmeasured upstreams keep their configured order.
+		healthy.sort(Comparator.comparingDouble(Upstream::getLatencyEwma));
+		// Only fall back to unhealthy upstreams when nothing else is left.
+		if (healthy.isEmpty())
+			healthy.addAll(unhealthy);
+		return healthy.subList(0, Math.min(healthy.size(), MAXIMUM_ATTEMPTS));
+	}
+
+	/**
+     * Forwards a DNS query upstream and waits for the first matching answer.
+     *
+     * @param query the buffer containing the raw DNS query.
+     * @param length the length of the query inside the buffer.
+     * @return the raw DNS response, trimmed to its actual length.
+     * @throws IOException if no upstream answered in time.
+     */
+	public byte[] resolve(byte[] query, int length) throws IOException {
+		if (length < 2)
+			throw new IOException("DNS query is too short.");
+
+		List<Upstream> candidates = getCandidates();
+		long[] sentAt = new long[candidates.size()];
+		boolean[] answered = new boolean[candidates.size()];
+		boolean[] failed = new boolean[candidates.size()];
+		int sentCount = 0;
+
+		try (DatagramSocket socket = new DatagramSocket()) {
+			byte[] responseBuffer = new byte[MAXIMUM_RESPONSE_SIZE];
+			DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
+
+			while (true) {
+				long now = System.nanoTime();
+
+				// Send to the next upstream when it is time to hedge or fail over.
+				if (sentCount < candidates.size() && (sentCount == 0 || now >= nextSendTime(candidates, sentAt, sentCount))) {
+					// Without hedging, moving on means the last upstream has timed out.
+					if (sentCount > 0 && !hedging && !failed[sentCount - 1]) {
+						candidates.get(sentCount - 1).recordFailure();
+						failed[sentCount - 1] = true;
+					}
+					Upstream upstream = candidates.get(sentCount);
+					try {
+						socket.send(new DatagramPacket(query, length, upstream.getAddress()));
+					} catch (IOException e) {
+						upstream.recordFailure();
+						failed[sentCount] = true;
+					}
+					sentAt[sentCount] = System.nanoTime();
+					sentCount++;
+					continue;
+				}
+
+				// Give up once every upstream that was tried has timed out.
+				long deadline = sentAt[sentCount - 1] + QUERY_TIMEOUT_MILLISECONDS * 1000000L;
+				long wakeup = deadline;
+				if (sentCount < candidates.size())
+					wakeup = Math.min(wakeup, nextSendTime(candidates, sentAt, sentCount));
+				if (now >= deadline) {
+					for (int i = 0; i < sentCount; i++) {
+						if (!failed[i])
+							candidates.get(i).recordFailure();
+					}
+					throw new SocketTimeoutException("No upstream DNS server answered in time.");
+				}
+
+				socket.setSoTimeout((int) Math.max(1, (wakeup - now) / 1000000L));
+				try {
+					responsePacket.setLength(responseBuffer.length);
+					socket.receive(responsePacket);
+				} catch (SocketTimeoutException e) {
+					continue;
+				}
+
+				// Only accept answers with the same ID from an upstream we asked.
+				if (responsePacket.getLength() < 2 || responseBuffer[0] != query[0] || responseBuffer[1] != query[1])
+					continue;
+				for (int i = 0; i < sentCount; i++) {
+					if (answered[i] || !candidates.get(i).getAddress().equals(responsePacket.getSocketAddress()))
+						continue;
+
+					answered[i] = true;
+					candidates.get(i).recordSuccess((System.nanoTime() - sentAt[i]) / 1000000.0);
+					// Upstreams that were asked before the winner and stayed silent lost the race.
+					for (int j = 0; j < i; j++) {
+						if (!failed[j])
+							candidates.get(j).recordLoss((System.nanoTime() - sentAt[j]) / 1000000.0);
+					}
+					return Arrays.copyOf(responseBuffer, responsePacket.getLength());
+				}
+			}
+		}
+	}
+
+	/**
+     * Calculates when the next upstream should be asked. With hedging, that is
+     * after the p90 latency of the last upstream that was asked, otherwise only
+     * after it has timed out.
+     */
+	private long nextSendTime(List<Upstream> candidates, long[] sentAt, int sentCount) {
+		Upstream last = candidates.get(sentCount - 1);
+		long delayMillis = QUERY_TIMEOUT_MILLISECONDS;
+		if (hedging)
+			delayMillis = Math.max(MINIMUM_HEDGE_DELAY_MILLISECONDS,
+					Math.min(QUERY_TIMEOUT_MILLISECONDS, (long) Math.ceil(last.getP90Latency())));
+		return sentAt[sentCount - 1] + delayMillis * 1000000L;
+	}
+}
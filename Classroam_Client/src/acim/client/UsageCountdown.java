@@ -0,0 +1,86 @@
+package acim.client;
+
+import java.awt.*;
+
+import javax.swing.*;
+import javax.swing.border.*;
+
+/**
+ * UsageCountdown shows how much computer time the logged in user has left,
+ * in a small window in the corner of the screen that stays on top.
+ *
+ * The server sends the balance with "update available seconds" when the user
+ * logs in, when time is added, and when the warning is due. Between updates
+ * the window counts down by itself every second. It is hidden when the
+ * client is locked, and never shown for accounts without a limit, which get
+ * no updates.
+ *
+ * All methods can be called from any thread.
+ */
+public class UsageCountdown {
+	private static final int TICK_MILLIS = 1000;
+	private static final int MARGIN = 16;
+	// Shown in red from this many seconds left.
+	private static final long WARNING_SECONDS = 300;
+
+	private static JWindow window;
+	private static JLabel label;
+	private static Timer timer;
+	private static long secondsLeft;
+
+	/**
+	 * Shows the window with a new balance, and counts down from it.
+	 *
+	 * @param seconds the seconds the user has left.
+	 */
+	public static void update(long seconds) {
+		SwingUtilities.invokeLater(() -> {
+			if (window == null)
+				createWindow();
+			secondsLeft = Math.max(0, seconds);
+			updateLabel();
+			if (!window.isVisible()) {
+				Rectangle screen = GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds();
+				window.setLocation(screen.x + screen.width - window.getWidth() - MARGIN, screen.y + MARGIN);
+				window.setVisible(true);
+			}
+			timer.restart();
+		});
+	}
+
+	/**
+	 * Hides the window, when the client is locked.
+	 */
+	public static void hide() {
+		SwingUtilities.invokeLater(() -> {
+			if (window == null)
+				return;
+			timer.stop();
+			window.setVisible(false);
+		});
+	}
+
+	private static void createWindow() {
+		label = new JLabel("Time left: 00:00:00");
+		label.setBorder(new EmptyBorder(6, 10, 6, 10));
+		label.setFont(label.getFont().deriveFont(Font.BOLD));
+
+		window = new JWindow();
+		window.setAlwaysOnTop(true);
+		window.setFocusableWindowState(false);
+		window.getContentPane().add(label);
+		window.pack();
+
+		timer = new Timer(TICK_MILLIS, e -> {
+			if (secondsLeft > 0)
+				secondsLeft--;
+			updateLabel();
+		});
+	}
+
+	private static void updateLabel() {
+		label.setText(String.format("Time left: %d:%02d:%02d", secondsLeft / 3600, secondsLeft / 60 % 60,
+				secondsLeft % 60));
+		label.setForeground((secondsLeft <= WARNING_SECONDS) ? Color.RED : UIManager.getColor("Label.foreground"));
+	}
+}
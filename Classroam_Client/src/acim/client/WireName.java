@@ -0,0 +1,101 @@
+package acim.client;
+
+import java.nio.*;
+
+/**
+ * A reusable view of a domain name in DNS wire format, like
+ * "\3www\7example\3com\0", as the dotted name "www.example.com".
+ *
+ * The view reads the bytes in place, so wrapping a name and checking it with
+ * {@link LocalBanFilter#isBanned(CharSequence)} does not create any
+ * objects. Each length byte between two labels reads as '.', and the name
+ * has no trailing dot. A view is not thread-safe; keep one per thread and
+ * wrap each name into it.
+ *
+ * The master has the same class as acim.data.structure.WireName. The client
+ * and the master are built and shipped separately and share no source, so
+ * the copies are kept in sync by hand, like {@link LocalBanFilter#hash(CharSequence)}:
+ * a change to how names are read must be made to both. Only the documentation
+ * and the master's per-thread views differ.
+ */
+public class WireName implements CharSequence {
+	public static final int MAXIMUM_WIRE_LENGTH = 255;
+	private static final int MAXIMUM_LABEL_LENGTH = 63;
+
+	// Bit i is set if character i is a length byte that reads as '.'.
+	private final long[] dots = new long[(MAXIMUM_WIRE_LENGTH + 63) / 64];
+	private ByteBuffer buffer;
+	private int start;
+	private int length;
+	private int end;
+
+	/**
+	 * Points the view at a name.
+	 *
+	 * @param buffer the buffer holding the name, for example a DNS packet.
+	 * @param offset the absolute index of the name's first length byte.
+	 * @return false if the name is malformed, compressed or runs past the
+	 * buffer's limit, in which case the view is empty.
+	 */
+	public boolean wrap(ByteBuffer buffer, int offset) {
+		this.buffer = buffer;
+		this.start = offset + 1;
+		this.length = 0;
+		this.end = offset;
+		for (int i = 0; i < dots.length; i++)
+			dots[i] = 0;
+
+		int position = offset;
+		while (true) {
+			if (position >= buffer.limit() || position - offset >= MAXIMUM_WIRE_LENGTH)
+				return false;
+			int labelLength = buffer.get(position) & 0xff;
+			if (labelLength == 0)
+				break;
+			// Larger values are compression pointers, which a question name does not need.
+			if (labelLength > MAXIMUM_LABEL_LENGTH)
+				return false;
+			if (position > offset) {
+				int index = position - start;
+				dots[index >>> 6] |= 1L << index;
+			}
+			position += labelLength + 1;
+		}
+
+		this.length = Math.max(0, position - start);
+		this.end = position + 1;
+		return true;
+	}
+
+	/**
+	 * @return the absolute index right after the name's terminating zero byte.
+	 */
+	public int getEnd() { return end; }
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length)
+			throw new IndexOutOfBoundsException(index);
+		if ((dots[index >>> 6] & (1L << index)) != 0)
+			return '.';
+		return (char) (buffer.get(start + index) & 0xff);
+	}
+
+	@Override
+	public CharSequence subSequence(int from, int to) {
+		return toString().substring(from, to);
+	}
+
+	@Override
+	public String toString() {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = charAt(i);
+		return new String(chars);
+	}
+}
@@ -0,0 +1,153 @@
+package acim.client;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Checks {@link UpstreamResolver} against stub DNS servers on the loopback
+ * interface: hedging to a faster upstream, the latency update of the upstream
+ * that lost the race, and taking a silent upstream out of rotation.
+ *
+ * The stubs echo every query back after a delay, which the resolver accepts
+ * as the answer since it has the query's ID. Run it from the repository root:
+ *
+ *     javac -cp "Classroam_Client/lib/*" -d Classroam_Client/test-bin \
+ *         $(find Classroam_Client/src Classroam_Client/test -name '*.java')
+ *     java -cp "Classroam_Client/test-bin:Classroam_Client/lib/*" acim.client.UpstreamResolverTest
+ *
+ * It prints every check and exits with status 1 if one fails.
+ */
+public class UpstreamResolverTest {
+	private static int failures = 0;
+
+	/**
+	 * A stub DNS server that answers every query after a delay, or never.
+	 */
+	private static class StubServer extends Thread implements AutoCloseable {
+		private final DatagramSocket socket;
+		private final long delayMillis;
+		private volatile int queries = 0;
+
+		/**
+		 * @param delayMillis how long to wait before answering, or -1 to never answer.
+		 */
+		private StubServer(long delayMillis) throws SocketException {
+			socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+			this.delayMillis = delayMillis;
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = new byte[512];
+			while (!socket.isClosed()) {
+				try {
+					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+					socket.receive(packet);
+					queries++;
+					if (delayMillis < 0)
+						continue;
+					Thread.sleep(delayMillis);
+					socket.send(new DatagramPacket(Arrays.copyOf(packet.getData(), packet.getLength()),
+							packet.getLength(), packet.getSocketAddress()));
+				} catch (Exception e) {
+					// Closed at the end of the test.
+				}
+			}
+		}
+
+		private InetSocketAddress getAddress() {
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+		}
+
+		@Override
+		public void close() {
+			socket.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		testHedging();
+		testCooldown();
+		if (failures > 0) {
+			System.out.println(failures + " checks failed.");
+			System.exit(1);
+		}
+		System.out.println("All checks passed.");
+	}
+
+	/**
+	 * A slow first upstream is hedged to the fast second one, and only gets its latency updated.
+	 */
+	private static void testHedging() throws Exception {
+		try (StubServer slow = new StubServer(1500); StubServer fast = new StubServer(0)) {
+			UpstreamResolver resolver = new UpstreamResolver(Arrays.asList(slow.getAddress(), fast.getAddress()));
+			UpstreamResolver.Upstream slowUpstream = resolver.getUpstreams().get(0);
+			UpstreamResolver.Upstream fastUpstream = resolver.getUpstreams().get(1);
+
+			long start = System.nanoTime();
+			byte[] answer = resolver.resolve(query(1), 12);
+			long millis = (System.nanoTime() - start) / 1000000;
+			check("hedged query is answered", answer.length == 12 && answer[1] == 1);
+			// Before anything is measured, the first upstream is hedged after a quarter of the timeout.
+			check("hedged query is answered before the slow upstream (" + millis + " ms)", millis < 1500);
+			check("both upstreams were asked", slow.queries == 1 && fast.queries == 1);
+			check("losing upstream has its latency updated (" + slowUpstream.getLatencyEwma() + " ms)",
+					slowUpstream.getLatencyEwma() >= UpstreamResolver.QUERY_TIMEOUT_MILLISECONDS / 4 - 50);
+			check("losing upstream is not counted as failed", slowUpstream.getConsecutiveFailures() == 0);
+			check("winning upstream is measured", fastUpstream.getLatencyEwma() > 0);
+
+			// The fast upstream is tried first from now on.
+			resolver.resolve(query(2), 12);
+			check("fastest upstream is tried first", slow.queries == 1 && fast.queries == 2);
+
+			// A healthy but slower upstream is never taken out of rotation for losing races.
+			for (int i = 0; i < UpstreamResolver.MAXIMUM_CONSECUTIVE_FAILURES; i++)
+				slowUpstream.recordLoss(1500);
+			check("upstream that keeps losing stays healthy", slowUpstream.isHealthy());
+		}
+	}
+
+	/**
+	 * Without hedging, a silent upstream fails when the query moves on, and is
+	 * taken out of rotation after too many failures in a row.
+	 */
+	private static void testCooldown() throws Exception {
+		try (StubServer silent = new StubServer(-1); StubServer backup = new StubServer(0)) {
+			UpstreamResolver resolver = new UpstreamResolver(Arrays.asList(silent.getAddress(), backup.getAddress()));
+			resolver.setHedging(false);
+			UpstreamResolver.Upstream silentUpstream = resolver.getUpstreams().get(0);
+
+			for (int i = 1; i <= UpstreamResolver.MAXIMUM_CONSECUTIVE_FAILURES; i++) {
+				byte[] answer = resolver.resolve(query(i), 12);
+				check("query " + i + " is answered by the backup", answer[1] == (byte) i);
+				check("silent upstream has failed " + i + " times", silentUpstream.getConsecutiveFailures() == i);
+			}
+			check("silent upstream is out of rotation", !silentUpstream.isHealthy());
+
+			long start = System.nanoTime();
+			resolver.resolve(query(9), 12);
+			long millis = (System.nanoTime() - start) / 1000000;
+			check("backup is asked first during the cooldown (" + millis + " ms)",
+					millis < UpstreamResolver.QUERY_TIMEOUT_MILLISECONDS
+							&& silent.queries == UpstreamResolver.MAXIMUM_CONSECUTIVE_FAILURES);
+		}
+	}
+
+	/**
+	 * @return a 12 byte DNS header with the given ID and no questions.
+	 */
+	private static byte[] query(int id) {
+		byte[] query = new byte[12];
+		query[0] = (byte) (id >>> 8);
+		query[1] = (byte) id;
+		return query;
+	}
+
+	private static void check(String description, boolean passed) {
+		System.out.println((passed ? "ok   " : "FAIL ") + description);
+		if (!passed)
+			failures++;
+	}
+}
@@ -20,6 +20,7 @@ public class Account {
 	 * The account is initialized with zero usage time, zero available seconds,
 	 * and the last login time is set to the current time.
 	 * 
+	 * @param id The database id of the account, or 0 if it is not stored yet
 	 * @param username The username of the account
 	 * @param encodedPassword The encoded (base64) password
 	 * @param firstName The user's first name
@@ -31,6 +32,7 @@ public class Account {
 	public Account(long id, String username, String encodedPassword,
 					String firstName, String lastName, String email,
 					String phoneNumber, String notes) {
+		this.id = id;
 		this.username = username;
 		this.encodedPassword = encodedPassword;
 		this.firstName = firstName;
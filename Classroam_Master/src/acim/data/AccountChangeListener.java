@@ -0,0 +1,25 @@
+package acim.data;
+
+/**
+ * Is told about every account that was created, changed, renamed or removed
+ * through a {@link CachingAccountRepository}, after the change succeeded.
+ * Bulk changes are reported once, as a whole.
+ *
+ * Listeners are called on the thread that made the change, usually a data
+ * access thread, and must not block it.
+ */
+public interface AccountChangeListener {
+	/**
+	 * Called after a change to an account.
+	 *
+	 * @param oldUsername the username before the change, or null if the account was created.
+	 * @param newUsername the username after the change, or null if the account was removed.
+	 */
+	void accountChanged(String oldUsername, String newUsername);
+
+	/**
+	 * Called after many accounts were changed at once, for example by an
+	 * import, instead of once for every account.
+	 */
+	void accountsChanged();
+}
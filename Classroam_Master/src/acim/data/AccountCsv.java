@@ -0,0 +1,305 @@
+package acim.data;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.stream.*;
+
+/**
+ * AccountCsv imports accounts from and exports them to CSV files.
+ *
+ * The first line of an import names the columns, in any order: username,
+ * password, encoded password, first name, last name, email, phone number and
+ * notes. Names are matched without case, spaces or underscores, and unknown
+ * columns are ignored. Only the username and a password are required: either
+ * a plain one, or one already encoded like the database stores it. Fields may
+ * be quoted with '"', and quoted fields may contain commas, doubled quotes and
+ * line breaks.
+ *
+ * Rows are validated in parallel, and the valid rows whose usernames are not
+ * taken yet are stored with {@link AccountRepository#createAll(List, int)}.
+ * Usernames are compared without case, like the database does. Invalid rows
+ * are reported by line and skipped; they do not stop the import.
+ *
+ * An export writes the active accounts as they are read from the database,
+ * so it never holds all of them in memory. It includes the encoded passwords,
+ * so an exported file can be imported again as it is, and must be kept as
+ * safe as the database itself.
+ */
+public class AccountCsv {
+	private static final String[] COLUMNS = { "username", "password", "firstname", "lastname", "email",
+			"phonenumber", "notes", "encodedpassword" };
+	private static final String EXPORT_HEADER = "username,encoded_password,first_name,last_name,email,phone_number,notes";
+	private static final Pattern EMAIL = Pattern.compile("[^@\\s]+@[^@\\s]+\\.[^@\\s]+");
+
+	/**
+	 * What an import did.
+	 */
+	public static class ImportResult {
+		private final int rows, created, existing;
+		private final List<String> errors;
+		private final long millis;
+
+		private ImportResult(int rows, int created, int existing, List<String> errors, long millis) {
+			this.rows = rows;
+			this.created = created;
+			this.existing = existing;
+			this.errors = errors;
+			this.millis = millis;
+		}
+
+		public int getRows() { return rows; }
+		public int getCreated() { return created; }
+		public int getExisting() { return existing; }
+		public List<String> getErrors() { return errors; }
+		public long getMillis() { return millis; }
+
+		@Override
+		public String toString() {
+			return created + " of " + rows + " accounts created, " + existing + " already existed, "
+					+ errors.size() + " invalid, in " + millis + " ms";
+		}
+	}
+
+	/**
+	 * One row of the file, with the line it starts on.
+	 */
+	private static class Row {
+		private final int line;
+		private final List<String> fields;
+		private Account account;
+		private String error;
+
+		private Row(int line, List<String> fields) {
+			this.line = line;
+			this.fields = fields;
+		}
+	}
+
+	/**
+	 * Imports the accounts of a CSV file.
+	 *
+	 * @param csv the file, in UTF-8.
+	 * @param repository where the accounts are stored.
+	 * @param batchSize how many accounts are sent to the database at once.
+	 * @return what was imported, and the rows that were not.
+	 * @throws IOException if the file cannot be read or has no username or password column.
+	 * @throws SQLException if the accounts cannot be stored. Batches before the failed one stay stored.
+	 */
+	public static ImportResult importAccounts(Path csv, AccountRepository repository, int batchSize)
+			throws IOException, SQLException {
+		long startMillis = System.currentTimeMillis();
+		ArrayList<Row> rows = new ArrayList<Row>();
+		int[] columns;
+		try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+			int[] line = { 1 };
+			List<String> header = readRecord(reader, line);
+			if (header == null)
+				throw new IOException(csv + " is empty.");
+			columns = mapColumns(header);
+			if (columns[0] < 0 || (columns[1] < 0 && columns[7] < 0))
+				throw new IOException(csv + " needs a username and a password or encoded password column.");
+			while (true) {
+				int firstLine = line[0];
+				List<String> fields = readRecord(reader, line);
+				if (fields == null)
+					break;
+				// Skip blank lines.
+				if (fields.size() == 1 && fields.get(0).trim().isEmpty())
+					continue;
+				rows.add(new Row(firstLine, fields));
+			}
+		}
+
+		rows.parallelStream().forEach(row -> validate(row, columns));
+
+		// Keep the first row of each username, and look up which usernames are taken. Both are
+		// keyed without case, since "Alice" and "alice" are the same username to the database.
+		ArrayList<String> errors = new ArrayList<String>();
+		LinkedHashMap<String, Account> accounts = new LinkedHashMap<String, Account>();
+		for (Row row : rows) {
+			if (row.error == null && accounts.putIfAbsent(usernameKey(row.account.getUsername()), row.account) != null)
+				row.error = "username " + row.account.getUsername() + " is already used on an earlier line";
+			if (row.error != null)
+				errors.add("Line " + row.line + ": " + row.error);
+		}
+		TreeSet<String> existing = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+		existing.addAll(repository.findExistingUsernames(
+				accounts.values().stream().map(Account::getUsername).collect(Collectors.toList())));
+		List<Account> newAccounts = accounts.values().stream()
+				.filter(account -> !existing.contains(account.getUsername())).collect(Collectors.toList());
+
+		int created = repository.createAll(newAccounts, batchSize);
+		ImportResult result = new ImportResult(rows.size(), created, accounts.size() - newAccounts.size(), errors,
+				System.currentTimeMillis() - startMillis);
+		System.out.println("Imported " + csv + ": " + result);
+		return result;
+	}
+
+	private static String usernameKey(String username) {
+		return username.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return for every one of {@link #COLUMNS}, its index in the header, or -1.
+	 */
+	private static int[] mapColumns(List<String> header) {
+		int[] columns = new int[COLUMNS.length];
+		Arrays.fill(columns, -1);
+		for (int i = 0; i < header.size(); i++) {
+			String name = header.get(i).trim().toLowerCase(Locale.ROOT).replace(" ", "").replace("_", "");
+			// A UTF-8 byte order mark is read as part of the first name.
+			if (name.startsWith("\uFEFF"))
+				name = name.substring(1);
+			for (int column = 0; column < COLUMNS.length; column++)
+				if (COLUMNS[column].equals(name) && columns[column] < 0)
+					columns[column] = i;
+		}
+		return columns;
+	}
+
+	private static void validate(Row row, int[] columns) {
+		String username = field(row, columns[0]).trim();
+		String password = field(row, columns[1]);
+		String encodedPassword = field(row, columns[7]).trim();
+		String email = field(row, columns[4]).trim();
+		if (username.isEmpty()) {
+			row.error = "blank username";
+		} else if (username.chars().anyMatch(Character::isWhitespace)) {
+			row.error = "username " + username + " contains spaces";
+		} else if (password.trim().isEmpty() && encodedPassword.isEmpty()) {
+			row.error = "blank password for " + username;
+		} else if (password.trim().isEmpty() && !isEncodedPassword(encodedPassword)) {
+			row.error = "invalid encoded password for " + username;
+		} else if (!email.isEmpty() && !EMAIL.matcher(email).matches()) {
+			row.error = "invalid email " + email + " for " + username;
+		} else {
+			// A plain password wins if a row has both.
+			boolean plain = !password.trim().isEmpty();
+			row.account = new Account(0, username, plain ? null : encodedPassword, field(row, columns[2]).trim(),
+					field(row, columns[3]).trim(), email, field(row, columns[5]).trim(), field(row, columns[6]));
+			if (plain)
+				row.account.setPassword(password);
+		}
+	}
+
+	private static boolean isEncodedPassword(String encodedPassword) {
+		try {
+			Base64.getUrlDecoder().decode(encodedPassword);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private static String field(Row row, int column) {
+		return (column >= 0 && column < row.fields.size()) ? row.fields.get(column) : "";
+	}
+
+	/**
+	 * Reads one record, which can span several lines if a quoted field contains line breaks.
+	 *
+	 * @param line the current line number, advanced past the record.
+	 * @return the fields, or null at the end of the file.
+	 */
+	private static List<String> readRecord(BufferedReader reader, int[] line) throws IOException {
+		String text = reader.readLine();
+		if (text == null)
+			return null;
+		line[0]++;
+		ArrayList<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		int i = 0;
+		while (true) {
+			if (i == text.length()) {
+				if (!quoted)
+					break;
+				// The quoted field goes on on the next line.
+				String next = reader.readLine();
+				if (next == null)
+					break;
+				line[0]++;
+				field.append('\n');
+				text = next;
+				i = 0;
+				continue;
+			}
+			char c = text.charAt(i++);
+			if (quoted) {
+				if (c != '"') {
+					field.append(c);
+				} else if (i < text.length() && text.charAt(i) == '"') {
+					field.append('"');
+					i++;
+				} else {
+					quoted = false;
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	/**
+	 * Exports the active accounts to a CSV file, sorted by username and with
+	 * their encoded passwords, so the file can be imported again.
+	 *
+	 * @param csv the file to write, in UTF-8. It is replaced if it exists.
+	 * @param repository where the accounts are read from.
+	 * @return the number of accounts exported.
+	 * @throws IOException if the file cannot be written.
+	 * @throws SQLException if the accounts cannot be read.
+	 */
+	public static int exportAccounts(Path csv, AccountRepository repository) throws IOException, SQLException {
+		long startMillis = System.currentTimeMillis();
+		int count;
+		try (BufferedWriter writer = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+			writer.write(EXPORT_HEADER);
+			writer.write("\r\n");
+			try {
+				count = repository.forEachActive(account -> {
+					try {
+						writeRecord(writer, account.getUsername(), account.getEncodedPassword(),
+								account.getFirstName(), account.getLastName(), account.getEmail(),
+								account.getPhoneNumber(), account.getNotes());
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+		System.out.println("Exported " + count + " accounts to " + csv + " in "
+				+ (System.currentTimeMillis() - startMillis) + " ms");
+		return count;
+	}
+
+	private static void writeRecord(Writer writer, String... fields) throws IOException {
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0)
+				writer.write(',');
+			String field = (fields[i] == null) ? "" : fields[i];
+			if (field.indexOf(',') >= 0 || field.indexOf('"') >= 0 || field.indexOf('\n') >= 0
+					|| field.indexOf('\r') >= 0) {
+				writer.write('"');
+				writer.write(field.replace("\"", "\"\""));
+				writer.write('"');
+			} else {
+				writer.write(field);
+			}
+		}
+		writer.write("\r\n");
+	}
+}
@@ -0,0 +1,175 @@
+package acim.data;
+
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * AccountRepository loads and stores the student accounts.
+ *
+ * Methods throw the SQLException of a failed query, so callers decide how
+ * to report it. Updates that match no account fail with an SQLException too.
+ */
+public interface AccountRepository {
+	/**
+	 * Finds an account by its username, including deactivated accounts.
+	 *
+	 * @param username the username to search for.
+	 * @return the account, or null if there is none.
+	 * @throws SQLException if the query fails.
+	 */
+	Account findByUsername(String username) throws SQLException;
+
+	/**
+	 * Finds an active account by its username.
+	 *
+	 * @param username the username to search for.
+	 * @return the account, or null if there is no active account with that name.
+	 * @throws SQLException if the query fails.
+	 */
+	Account findActiveByUsername(String username) throws SQLException;
+
+	/**
+	 * Finds the active accounts of several usernames at once.
+	 *
+	 * @param usernames the usernames to search for.
+	 * @return the active accounts that were found, in no particular order.
+	 * @throws SQLException if the query fails.
+	 */
+	List<Account> findActiveByUsernames(Collection<String> usernames) throws SQLException;
+
+	/**
+	 * Finds which of the given usernames are taken, including by deactivated accounts.
+	 *
+	 * @param usernames the usernames to search for.
+	 * @return the usernames that are taken.
+	 * @throws SQLException if the query fails.
+	 */
+	Set<String> findExistingUsernames(Collection<String> usernames) throws SQLException;
+
+	/**
+	 * Lists the accounts shown in the accounts table, without their passwords.
+	 *
+	 * @return the accounts.
+	 * @throws SQLException if the query fails.
+	 */
+	List<Account> findSnippets() throws SQLException;
+
+	/**
+	 * Passes every account shown in the accounts table to an action, sorted by
+	 * username, without holding all of them in memory at once.
+	 *
+	 * @param action what to do with each account, without its password.
+	 * @return the number of accounts.
+	 * @throws SQLException if the query fails.
+	 */
+	int forEachSnippet(Consumer<Account> action) throws SQLException;
+
+	/**
+	 * Passes every active account to an action, sorted by username, without
+	 * holding all of them in memory at once.
+	 *
+	 * @param action what to do with each account, with its encoded password.
+	 * @return the number of accounts.
+	 * @throws SQLException if the query fails.
+	 */
+	int forEachActive(Consumer<Account> action) throws SQLException;
+
+	/**
+	 * Finds the account shown in the accounts table with the given username.
+	 *
+	 * @param username the username to search for.
+	 * @return the account, without its password, or null if it is not shown.
+	 * @throws SQLException if the query fails.
+	 */
+	Account findSnippet(String username) throws SQLException;
+
+	/**
+	 * Counts the accounts shown in the accounts table.
+	 *
+	 * @return the number of accounts.
+	 * @throws SQLException if the query fails.
+	 */
+	int countSnippets() throws SQLException;
+
+	/**
+	 * Returns the first username of every page of the accounts table, when the
+	 * accounts are sorted by username and split into pages of the given size.
+	 * A page can then be loaded directly with {@link #findSnippetPage(String, int)}.
+	 *
+	 * @param pageSize the number of accounts per page.
+	 * @return the first username of each page, in order.
+	 * @throws SQLException if the query fails.
+	 */
+	List<String> findSnippetPageKeys(int pageSize) throws SQLException;
+
+	/**
+	 * Lists the accounts shown in the accounts table, sorted by username,
+	 * starting at the given username.
+	 *
+	 * @param fromUsername the first username of the page, or null to start at the beginning.
+	 * @param limit the maximum number of accounts to return.
+	 * @return the accounts, without their passwords.
+	 * @throws SQLException if the query fails.
+	 */
+	List<Account> findSnippetPage(String fromUsername, int limit) throws SQLException;
+
+	/**
+	 * Stores a new account.
+	 *
+	 * @param account the account to store.
+	 * @throws SQLException if the account cannot be stored.
+	 */
+	void create(Account account) throws SQLException;
+
+	/**
+	 * Stores many new accounts, sending them to the database in batches. Each
+	 * batch is committed on its own, so when a batch fails, the batches before
+	 * it stay stored.
+	 *
+	 * @param accounts the accounts to store.
+	 * @param batchSize how many accounts are sent at once.
+	 * @return the number of accounts stored.
+	 * @throws SQLException if a batch cannot be stored.
+	 */
+	int createAll(List<Account> accounts, int batchSize) throws SQLException;
+
+	/**
+	 * Updates the details of an account, and renames it to the account's
+	 * username in the same change, so it is never left renamed but not updated.
+	 * The password is only changed if the account has one set.
+	 *
+	 * @param username the username the account is stored with.
+	 * @param account the account with the new details and username.
+	 * @throws SQLException if the account cannot be updated, or the new username is taken.
+	 */
+	void update(String username, Account account) throws SQLException;
+
+	/**
+	 * Finds how many seconds of computer time an account has left.
+	 *
+	 * @param username the username of the account.
+	 * @return the seconds left, or null if the account has no limit or does not exist.
+	 * @throws SQLException if the query fails.
+	 */
+	Long findAvailableSeconds(String username) throws SQLException;
+
+	/**
+	 * Adds to or takes from the seconds of computer time of several accounts at
+	 * once. An account without a limit gets one, starting at zero, and no
+	 * balance goes below zero. Unknown usernames are skipped.
+	 *
+	 * @param seconds the seconds to add, negative to take, by username.
+	 * @return the number of accounts updated.
+	 * @throws SQLException if the balances cannot be updated. Then none of them are.
+	 */
+	int addAvailableSeconds(Map<String, Long> seconds) throws SQLException;
+
+	/**
+	 * Deactivates an account, which keeps its data but stops it from logging in.
+	 *
+	 * @param username the username of the account.
+	 * @throws SQLException if the account cannot be deactivated.
+	 */
+	void deactivate(String username) throws SQLException;
+}
@@ -0,0 +1,153 @@
+package acim.data;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import acim.data.structure.TrigramIndex;
+
+/**
+ * AccountSearchIndex finds accounts by what is typed into the search box,
+ * without asking the database.
+ *
+ * The username, names, email and notes of every account shown in the
+ * accounts table are kept in a {@link TrigramIndex}, so a search takes well
+ * under a millisecond and still finds accounts when the query has a typo.
+ * The index is loaded by streaming the accounts from the database, and each
+ * account can be searched as soon as it is read. After that, it follows the
+ * changes reported by the {@link CachingAccountRepository}: a changed
+ * account is read again on its own, and a bulk change reloads everything.
+ *
+ * Searches can run on any thread, including the EDT.
+ */
+public class AccountSearchIndex implements AccountChangeListener {
+	private final AccountRepository repository;
+	private final TrigramIndex index = new TrigramIndex();
+	// The accounts by their id in the index, and the ids by username.
+	private final ArrayList<Account> accounts = new ArrayList<Account>();
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private final ArrayDeque<Integer> freeIds = new ArrayDeque<Integer>();
+	private final List<Runnable> updateListeners = new CopyOnWriteArrayList<Runnable>();
+
+	/**
+	 * Creates an empty index. Call {@link #load()} to fill it.
+	 *
+	 * @param repository where the accounts are read from.
+	 */
+	public AccountSearchIndex(AccountRepository repository) {
+		this.repository = repository;
+	}
+
+	/**
+	 * Empties the index and loads every account again on a data access thread.
+	 *
+	 * @return a future that completes when all accounts are loaded.
+	 */
+	public CompletableFuture<Void> load() {
+		return AsyncDataAccess.run(() -> {
+			long startMillis = System.currentTimeMillis();
+			synchronized (this) {
+				index.clear();
+				accounts.clear();
+				ids.clear();
+				freeIds.clear();
+			}
+			int count = repository.forEachSnippet(this::put);
+			System.out.println("Indexed " + count + " accounts for search in "
+					+ (System.currentTimeMillis() - startMillis) + " ms");
+			fireUpdated();
+		});
+	}
+
+	/**
+	 * Finds the accounts that best match a query.
+	 *
+	 * @param query what was typed.
+	 * @param limit the maximum number of accounts to return.
+	 * @return the accounts, best match first, without their passwords.
+	 */
+	public synchronized List<Account> search(String query, int limit) {
+		ArrayList<Account> found = new ArrayList<Account>();
+		for (int id : index.search(query, limit))
+			found.add(accounts.get(id));
+		return found;
+	}
+
+	private synchronized void put(Account account) {
+		Integer id = ids.get(account.getUsername());
+		if (id == null) {
+			id = freeIds.isEmpty() ? accounts.size() : freeIds.pop();
+			if (id == accounts.size())
+				accounts.add(null);
+			ids.put(account.getUsername(), id);
+		}
+		accounts.set(id, account);
+		index.put(id, account.getUsername() + " " + text(account.getFirstName()) + " "
+				+ text(account.getLastName()) + " " + text(account.getEmail()) + " " + text(account.getNotes()));
+	}
+
+	private static String text(String field) {
+		return (field == null) ? "" : field;
+	}
+
+	private synchronized void remove(String username) {
+		Integer id = ids.remove(username);
+		if (id == null)
+			return;
+		index.remove(id);
+		accounts.set(id, null);
+		freeIds.push(id);
+	}
+
+	/**
+	 * Reads a changed account again on a data access thread.
+	 */
+	@Override
+	public void accountChanged(String oldUsername, String newUsername) {
+		AsyncDataAccess.run(() -> {
+			if (oldUsername != null && !oldUsername.equals(newUsername))
+				remove(oldUsername);
+			if (newUsername != null) {
+				Account snippet = repository.findSnippet(newUsername);
+				if (snippet == null)
+					remove(newUsername);
+				else
+					put(snippet);
+			}
+			fireUpdated();
+		}).exceptionally(error -> {
+			AsyncDataAccess.unwrap(error).printStackTrace();
+			return null;
+		});
+	}
+
+	/**
+	 * Reloads the index after a bulk change.
+	 */
+	@Override
+	public void accountsChanged() {
+		load().exceptionally(error -> {
+			AsyncDataAccess.unwrap(error).printStackTrace();
+			return null;
+		});
+	}
+
+	/**
+	 * Adds a listener that is called, on a data access thread, whenever the
+	 * indexed accounts changed, so shown search results can be updated.
+	 *
+	 * @param listener the listener.
+	 */
+	public void addUpdateListener(Runnable listener) {
+		updateListeners.add(listener);
+	}
+
+	private void fireUpdated() {
+		for (Runnable listener : updateListeners)
+			listener.run();
+	}
+
+	/**
+	 * @return the number of indexed accounts.
+	 */
+	public synchronized int size() { return index.size(); }
+}
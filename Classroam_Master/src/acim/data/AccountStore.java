@@ -0,0 +1,65 @@
+package acim.data;
+
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * AccountStore is where the accounts are kept. It is chosen with STORAGE_BACKEND
+ * in the .env file:
+ * <ul>
+ * <li>"mysql" (the default): the MySQL server from DB_HOST, see {@link MySqlAccountStore}.</li>
+ * <li>"embedded": a log file on this computer, from EMBEDDED_STORE_FILE ("accounts.log"
+ * by default), so a small lab needs no database server, see {@link LogAccountRepository}.</li>
+ * <li>the name of a class that implements AccountStore and has a public
+ * constructor without parameters, for other backends.</li>
+ * </ul>
+ */
+public interface AccountStore extends Closeable {
+	/**
+	 * @return a short name of the backend, for the log.
+	 */
+	String getName();
+
+	/**
+	 * @return the repository that reads and writes the accounts of this store.
+	 */
+	AccountRepository getAccountRepository();
+
+	/**
+	 * @return a human-readable summary of the store's statistics.
+	 */
+	String getStatistics();
+
+	/**
+	 * Releases the connections or files of the store.
+	 */
+	@Override
+	void close();
+
+	/**
+	 * Opens the store configured in the .env file.
+	 *
+	 * @return the store.
+	 * @throws IOException if the store cannot be opened.
+	 */
+	static AccountStore fromEnv() throws IOException {
+		String backend = Env.get("STORAGE_BACKEND");
+		backend = (backend == null || backend.trim().isEmpty()) ? "mysql" : backend.trim();
+		AccountStore store;
+		if (backend.equalsIgnoreCase("mysql")) {
+			store = new MySqlAccountStore(ConnectionPool.fromEnv());
+		} else if (backend.equalsIgnoreCase("embedded")) {
+			String file = Env.get("EMBEDDED_STORE_FILE");
+			store = LogAccountRepository.open(Paths.get((file == null || file.trim().isEmpty()) ? "accounts.log"
+					: file.trim()));
+		} else {
+			try {
+				store = Class.forName(backend).asSubclass(AccountStore.class).getConstructor().newInstance();
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				throw new IOException("Unknown STORAGE_BACKEND " + backend, e);
+			}
+		}
+		System.out.println("Storing accounts in " + store.getName());
+		return store;
+	}
+}
@@ -0,0 +1,141 @@
+package acim.data;
+
+import java.io.*;
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import javax.swing.*;
+
+/**
+ * AsyncDataAccess runs database work on its own threads, so the Swing event
+ * dispatch thread (EDT) never waits for the database.
+ *
+ * Work is submitted with {@link #supply(DataCall)} and returns a
+ * CompletableFuture. Callbacks that touch Swing components are attached with
+ * {@link #onEdt(CompletableFuture, Consumer)}, which runs them on the EDT
+ * once the result is there, and reports a failure in a dialog that does not
+ * block the rest of the console.
+ */
+public class AsyncDataAccess {
+	private static final int THREAD_COUNT = 4;
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+	private static final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT, runnable -> {
+		Thread thread = new Thread(runnable, "DataAccess-" + threadNumber.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final Executor EDT = SwingUtilities::invokeLater;
+
+	/**
+	 * Database work that returns a result.
+	 */
+	public interface DataCall<T> {
+		T call() throws SQLException, IOException;
+	}
+
+	/**
+	 * Database work without a result.
+	 */
+	public interface DataTask {
+		void run() throws SQLException, IOException;
+	}
+
+	/**
+	 * Runs database work on a data access thread.
+	 *
+	 * @param call the work.
+	 * @return the future result. It completes exceptionally with the
+	 * SQLException or IOException as the cause if the work fails.
+	 */
+	public static <T> CompletableFuture<T> supply(DataCall<T> call) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return call.call();
+			} catch (SQLException | IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Runs database work without a result on a data access thread.
+	 *
+	 * @param task the work.
+	 * @return the future that completes when the work is done.
+	 */
+	public static CompletableFuture<Void> run(DataTask task) {
+		return supply(() -> {
+			task.run();
+			return null;
+		});
+	}
+
+	/**
+	 * @return an executor that runs tasks on the Swing event dispatch thread.
+	 */
+	public static Executor edt() { return EDT; }
+
+	/**
+	 * Handles a result on the EDT. A failure is reported with {@link #showError(Throwable)}.
+	 *
+	 * @param future the future result.
+	 * @param onSuccess what to do with the result, called on the EDT.
+	 * @return a future that completes after the result has been handled.
+	 */
+	public static <T> CompletableFuture<Void> onEdt(CompletableFuture<T> future, Consumer<? super T> onSuccess) {
+		return onEdt(future, onSuccess, error -> showError(error));
+	}
+
+	/**
+	 * Handles a result or a failure on the EDT.
+	 *
+	 * @param future the future result.
+	 * @param onSuccess what to do with the result, called on the EDT.
+	 * @param onFailure what to do with the cause of a failure, called on the EDT.
+	 * @return a future that completes after the result or failure has been handled.
+	 */
+	public static <T> CompletableFuture<Void> onEdt(CompletableFuture<T> future, Consumer<? super T> onSuccess,
+			Consumer<Throwable> onFailure) {
+		return future.handleAsync((result, error) -> {
+			if (error == null) {
+				onSuccess.accept(result);
+			} else {
+				onFailure.accept(unwrap(error));
+			}
+			return null;
+		}, EDT);
+	}
+
+	/**
+	 * Returns the original cause of a failed future.
+	 *
+	 * @param error the exception the future failed with.
+	 * @return the cause without CompletionException wrappers.
+	 */
+	public static Throwable unwrap(Throwable error) {
+		while ((error instanceof CompletionException || error instanceof ExecutionException)
+				&& error.getCause() != null)
+			error = error.getCause();
+		return error;
+	}
+
+	/**
+	 * Reports a failed database operation in a dialog that does not block the
+	 * console. Can be called from any thread.
+	 *
+	 * @param error the failure.
+	 */
+	public static void showError(Throwable error) {
+		Throwable cause = unwrap(error);
+		cause.printStackTrace();
+		EDT.execute(() -> {
+			JOptionPane pane = new JOptionPane("Database error: " + cause.getLocalizedMessage(),
+					JOptionPane.ERROR_MESSAGE);
+			JDialog dialog = pane.createDialog(null, cause.getClass().getSimpleName());
+			dialog.setModal(false);
+			dialog.setVisible(true);
+		});
+	}
+}
@@ -0,0 +1,225 @@
+package acim.data;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import acim.data.structure.DomainHash;
+
+/**
+ * BanFilter is a compact, versioned image of the ban list that can be
+ * pushed to clients so they can check domains locally.
+ *
+ * Every banned domain is stored as a 64-bit FNV-1a hash of its normalized
+ * (lower-case, no trailing dot) name inside a sorted long array. Lookups are
+ * a binary search, and the image takes 8 bytes per domain. Clients check the
+ * name and all of its parent domains. A hash collision or an allow-list
+ * exception can only cause a false positive on the client, which is then
+ * confirmed by the master against the real ban list.
+ *
+ * Changes between two versions are described by a {@link Delta}, so clients
+ * that are only a few versions behind do not need to download the whole image.
+ *
+ * Pattern rules like "*casino*" cannot be hashed, so the filter carries them
+ * as text and they are sent along with every update.
+ */
+public class BanFilter {
+	private final long version;
+	private final long[] hashes;
+	private final List<String> patterns;
+
+	/**
+     * Describes the changes needed to turn one filter version into the next.
+     */
+	public static class Delta {
+		private final long fromVersion, toVersion;
+		private final long[] added, removed;
+
+		public Delta(long fromVersion, long toVersion, long[] added, long[] removed) {
+			this.fromVersion = fromVersion;
+			this.toVersion = toVersion;
+			this.added = added;
+			this.removed = removed;
+		}
+
+		public long getFromVersion() { return fromVersion; }
+		public long getToVersion() { return toVersion; }
+		public long[] getAdded() { return added; }
+		public long[] getRemoved() { return removed; }
+
+		/**
+		 * Encodes the delta as a single protocol line:
+		 * "ban filter delta &lt;from&gt; &lt;to&gt; &lt;added&gt; &lt;removed&gt;",
+		 * where both hash lists are Base64 encoded, or "-" when empty.
+		 *
+		 * @return the command to send to the client.
+		 */
+		public String toCommand() {
+			return "ban filter delta " + fromVersion + " " + toVersion + " "
+					+ encodeHashes(added) + " " + encodeHashes(removed);
+		}
+	}
+
+	private BanFilter(long version, long[] hashes, List<String> patterns) {
+		this.version = version;
+		this.hashes = hashes;
+		this.patterns = patterns;
+	}
+
+	/**
+     * Compiles a list of domains into a filter image.
+     *
+     * @param domains the banned domains.
+     * @param version the version number of the new image.
+     * @return the compiled filter.
+     */
+	public static BanFilter compile(Collection<String> domains, long version) {
+		long[] hashes = new long[domains.size()];
+		int count = 0;
+		for (String domain : domains)
+			hashes[count++] = hash(domain);
+		return fromHashes(hashes, version);
+	}
+
+	/**
+     * Creates a filter image out of already hashed domains.
+     *
+     * @param hashes the domain hashes, which will be sorted in place.
+     * @param version the version number of the new image.
+     * @return the filter.
+     */
+	public static BanFilter fromHashes(long[] hashes, long version) {
+		return fromHashes(hashes, Collections.<String>emptyList(), version);
+	}
+
+	/**
+     * Creates a filter image out of already hashed domains and pattern rules.
+     *
+     * @param hashes the domain hashes, which will be sorted in place.
+     * @param patterns the pattern rules.
+     * @param version the version number of the new image.
+     * @return the filter.
+     */
+	public static BanFilter fromHashes(long[] hashes, Collection<String> patterns, long version) {
+		int count = hashes.length;
+		Arrays.sort(hashes);
+
+		// Remove duplicates in place.
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique == 0 || hashes[unique - 1] != hashes[i])
+				hashes[unique++] = hashes[i];
+		}
+		return new BanFilter(version, Arrays.copyOf(hashes, unique),
+				Collections.unmodifiableList(new ArrayList<String>(patterns)));
+	}
+
+	/**
+     * Hashes a domain name with {@link DomainHash}. The client uses the exact
+     * same function.
+     *
+     * @param domain the domain to hash.
+     * @return the 64-bit hash.
+     */
+	public static long hash(CharSequence domain) {
+		return hash(domain, 0);
+	}
+
+	/**
+     * Hashes the part of a domain name starting at the given index,
+     * which is used to hash parent domains without creating substrings.
+     *
+     * @param domain the domain to hash.
+     * @param from the index of the first character to hash.
+     * @return the 64-bit hash.
+     */
+	public static long hash(CharSequence domain, int from) {
+		return DomainHash.hash(domain, from);
+	}
+
+	public long getVersion() { return version; }
+	public int size() { return hashes.length; }
+	public List<String> getPatterns() { return patterns; }
+
+	/**
+     * Encodes the pattern rules as a single protocol line:
+     * "ban filter patterns &lt;version&gt; &lt;patterns&gt;", where the patterns
+     * are joined by newlines and Base64 encoded, or "-" when there are none.
+     *
+     * @return the command to send to the client.
+     */
+	public String toPatternsCommand() {
+		String encoded = patterns.isEmpty() ? "-"
+				: Base64.getUrlEncoder().encodeToString(String.join("\n", patterns).getBytes(StandardCharsets.UTF_8));
+		return "ban filter patterns " + version + " " + encoded;
+	}
+
+	/**
+     * Checks whether the domain or any of its parent domains might be banned.
+     *
+     * @param domain the domain to check.
+     * @return true if the domain or a parent domain is in the filter.
+     */
+	public boolean mightContain(CharSequence domain) {
+		for (int i = 0; i < domain.length(); i++) {
+			if ((i == 0 || domain.charAt(i - 1) == '.') && Arrays.binarySearch(hashes, hash(domain, i)) >= 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+     * Calculates the delta that turns an older filter into this one.
+     *
+     * @param older the filter the client currently has.
+     * @return the delta from the older filter to this one.
+     */
+	public Delta diff(BanFilter older) {
+		long[] added = new long[hashes.length];
+		long[] removed = new long[older.hashes.length];
+		int addedCount = 0, removedCount = 0;
+
+		// Both arrays are sorted, so a single merge pass finds the differences.
+		int i = 0, j = 0;
+		while (i < hashes.length || j < older.hashes.length) {
+			if (j >= older.hashes.length || (i < hashes.length && hashes[i] < older.hashes[j])) {
+				added[addedCount++] = hashes[i++];
+			} else if (i >= hashes.length || older.hashes[j] < hashes[i]) {
+				removed[removedCount++] = older.hashes[j++];
+			} else {
+				i++;
+				j++;
+			}
+		}
+		return new Delta(older.version, version,
+				Arrays.copyOf(added, addedCount), Arrays.copyOf(removed, removedCount));
+	}
+
+	/**
+     * Serializes the hashes of this filter as big-endian longs.
+     *
+     * @return the binary image of the filter.
+     */
+	public byte[] toBytes() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(hashes.length * 8);
+		try (DataOutputStream out = new DataOutputStream(baos)) {
+			for (long hash : hashes)
+				out.writeLong(hash);
+		} catch (IOException e) {
+			// This should never happen with a ByteArrayOutputStream.
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	private static String encodeHashes(long[] hashes) {
+		if (hashes.length == 0)
+			return "-";
+		byte[] bytes = new byte[hashes.length * 8];
+		for (int i = 0; i < hashes.length; i++) {
+			for (int b = 0; b < 8; b++)
+				bytes[i * 8 + b] = (byte) (hashes[i] >>> (56 - b * 8));
+		}
+		return Base64.getUrlEncoder().encodeToString(bytes);
+	}
+}
@@ -0,0 +1,264 @@
+package acim.data;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+import acim.data.structure.*;
+
+/**
+ * BanListImage is a precompiled binary image of the ban list on disk.
+ *
+ * The image is memory-mapped read-only and the domain trie is queried in
+ * place, so the master starts without parsing the text list and the trie
+ * stays off the heap. The image remembers the SHA-256 hash of the text lists
+ * and the settings it was compiled from, such as the Bloom filter's
+ * false-positive rate, so it is only rebuilt when one of them changes.
+ *
+ * A mapped file cannot be replaced or deleted on Windows, and the live ban
+ * list keeps the previous image mapped until the new one is swapped in. So
+ * every image is written to a new file, the image path with a version number
+ * appended ("bans.txt.img.3"), and the newest version is opened. Older
+ * versions are deleted once nothing maps them anymore, which on Windows can
+ * be a later load.
+ *
+ * Layout (big-endian): magic, format version, SHA-256 of the source list,
+ * the {@link MappedDomainTrie} section, the client filter hashes (count
+ * followed by longs), the pattern rules (count followed by length-prefixed
+ * UTF-8 strings) and an optional {@link BloomFilter} section.
+ */
+public class BanListImage {
+	private static final int MAGIC = 0x4143424c; // "ACBL"
+	private static final int FORMAT_VERSION = 2;
+	private static final int SOURCE_HASH_LENGTH = 32;
+
+	private final Path file;
+	private final byte[] sourceHash;
+	private final MappedDomainTrie trie;
+	private final long[] filterHashes;
+	private final List<String> patterns;
+	private final BloomFilter bloomFilter;
+
+	private BanListImage(Path file, byte[] sourceHash, MappedDomainTrie trie, long[] filterHashes,
+			List<String> patterns, BloomFilter bloomFilter) {
+		this.file = file;
+		this.sourceHash = sourceHash;
+		this.trie = trie;
+		this.filterHashes = filterHashes;
+		this.patterns = patterns;
+		this.bloomFilter = bloomFilter;
+	}
+
+	/**
+	 * Calculates one SHA-256 hash over several files and the settings an image
+	 * is compiled with, so that a change in any of them, or in the order of the
+	 * files, changes the hash.
+	 *
+	 * @param files the files to hash.
+	 * @param settings the settings that change the image, as text.
+	 * @return the 32-byte hash.
+	 * @throws IOException if a file cannot be read.
+	 */
+	public static byte[] hashFiles(List<Path> files, String settings) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(settings.getBytes(StandardCharsets.UTF_8));
+			byte[] buffer = new byte[65536];
+			for (Path file : files) {
+				digest.update(file.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+				try (InputStream in = Files.newInputStream(file)) {
+					int read;
+					while ((read = in.read(buffer)) > 0)
+						digest.update(buffer, 0, read);
+				}
+			}
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256.
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Writes a new image to the next version's file. The image is written to a
+	 * temporary file first and then moved into place, so a half-written image
+	 * is never opened.
+	 *
+	 * @param image the path of the image, without a version.
+	 * @param sourceHash the SHA-256 hash of the text lists.
+	 * @param trie the compiled domain trie.
+	 * @param filter the compiled client filter, including the pattern rules.
+	 * @param bloomFilter the Bloom filter, or null if it is disabled.
+	 * @return the file the image was written to.
+	 * @throws IOException if writing fails.
+	 */
+	public static Path compile(Path image, byte[] sourceHash, DomainLabelTrie trie, BanFilter filter,
+			BloomFilter bloomFilter) throws IOException {
+		TreeMap<Long, Path> versions = findVersions(image);
+		Path file = versionFile(image, versions.isEmpty() ? 1 : versions.lastKey() + 1);
+		Path temporary = image.resolveSibling(image.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.write(sourceHash);
+			MappedDomainTrie.write(trie, out);
+			out.writeInt(filter.size());
+			out.write(filter.toBytes());
+			out.writeInt(filter.getPatterns().size());
+			for (String pattern : filter.getPatterns()) {
+				byte[] bytes = pattern.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			out.writeBoolean(bloomFilter != null);
+			if (bloomFilter != null)
+				bloomFilter.write(out);
+		}
+		Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+		return file;
+	}
+
+	private static Path versionFile(Path image, long version) {
+		return image.resolveSibling(image.getFileName() + "." + version);
+	}
+
+	/**
+	 * @return the files of every version of an image, by version.
+	 */
+	private static TreeMap<Long, Path> findVersions(Path image) throws IOException {
+		TreeMap<Long, Path> versions = new TreeMap<Long, Path>();
+		Path directory = image.toAbsolutePath().getParent();
+		String prefix = image.getFileName() + ".";
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+			for (Path file : files) {
+				String version = file.getFileName().toString().substring(prefix.length());
+				if (!version.isEmpty() && version.chars().allMatch(Character::isDigit) && version.length() < 19)
+					versions.put(Long.parseLong(version), image.resolveSibling(file.getFileName()));
+			}
+		}
+		return versions;
+	}
+
+	/**
+	 * Memory-maps the newest version of an image.
+	 *
+	 * @param image the path of the image, without a version.
+	 * @return the image, or null if there is none or it has an unknown format.
+	 * @throws IOException if the image cannot be read.
+	 */
+	public static BanListImage open(Path image) throws IOException {
+		TreeMap<Long, Path> versions = findVersions(image);
+		return versions.isEmpty() ? null : openFile(versions.lastEntry().getValue());
+	}
+
+	/**
+	 * Deletes the versions of an image other than the one in use, and the image
+	 * file from before images had versions. A version that is still mapped
+	 * cannot be deleted on Windows, and is deleted by a later call.
+	 *
+	 * @param image the path of the image, without a version.
+	 * @param current the file of the version in use.
+	 */
+	public static void deleteOlderVersions(Path image, Path current) {
+		try {
+			ArrayList<Path> files = new ArrayList<Path>(findVersions(image).values());
+			files.add(image);
+			for (Path file : files) {
+				if (file.equals(current))
+					continue;
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException e) {
+					// Still mapped by the previous ban list.
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Memory-maps an image file.
+	 *
+	 * @param file the image file.
+	 * @return the image, or null if it does not exist, has an unknown format
+	 * or is truncated or damaged, so that it is compiled again.
+	 * @throws IOException if the image cannot be read.
+	 */
+	public static BanListImage openFile(Path file) throws IOException {
+		if (!Files.exists(file))
+			return null;
+
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// The mapping stays valid after the channel is closed.
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.limit() < 8 + SOURCE_HASH_LENGTH || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION)
+			return null;
+
+		try {
+			byte[] sourceHash = new byte[SOURCE_HASH_LENGTH];
+			buffer.get(sourceHash);
+			MappedDomainTrie trie = MappedDomainTrie.read(buffer);
+
+			long[] filterHashes = new long[readCount(buffer, 8)];
+			buffer.asLongBuffer().get(filterHashes);
+			buffer.position(buffer.position() + filterHashes.length * 8);
+
+			ArrayList<String> patterns = new ArrayList<String>();
+			for (int count = readCount(buffer, 4); count > 0; count--) {
+				byte[] bytes = new byte[readCount(buffer, 1)];
+				buffer.get(bytes);
+				patterns.add(new String(bytes, StandardCharsets.UTF_8));
+			}
+
+			BloomFilter bloomFilter = null;
+			if (buffer.get() != 0)
+				bloomFilter = BloomFilter.read(buffer);
+			return new BanListImage(file, sourceHash, trie, filterHashes, Collections.unmodifiableList(patterns),
+					bloomFilter);
+		} catch (RuntimeException e) {
+			// Buffer underflows and bad offsets of a truncated or damaged file.
+			System.out.println("Ban list image " + file + " is damaged and will be compiled again: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the count of a section and checks that the section fits into the rest of the buffer.
+	 *
+	 * @param entryBytes the size of one entry, at least 1.
+	 */
+	private static int readCount(ByteBuffer buffer, int entryBytes) {
+		int count = buffer.getInt();
+		if (count < 0 || count > buffer.remaining() / entryBytes)
+			throw new BufferUnderflowException();
+		return count;
+	}
+
+	/**
+	 * @param hash the SHA-256 hash of the current text lists.
+	 * @return true if this image was compiled from a list with that hash.
+	 */
+	public boolean isCompiledFrom(byte[] hash) {
+		return Arrays.equals(sourceHash, hash);
+	}
+
+	/**
+	 * @return the file the image is mapped from.
+	 */
+	public Path getFile() { return file; }
+	public MappedDomainTrie getTrie() { return trie; }
+	public BloomFilter getBloomFilter() { return bloomFilter; }
+	public List<String> getPatterns() { return patterns; }
+
+	/**
+	 * @return a copy of the client filter hashes, sorted.
+	 */
+	public long[] getFilterHashes() { return filterHashes.clone(); }
+}
@@ -0,0 +1,390 @@
+package acim.data;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import acim.data.structure.GlobAutomaton;
+
+/**
+ * BanListIngester reads several blocklists in parallel and combines them
+ * into one normalized, deduplicated ban list.
+ *
+ * Every line is recognized on its own, so sources can mix formats:
+ * <ul>
+ * <li>plain domains: "example.com"</li>
+ * <li>hosts files: "0.0.0.0 example.com www.example.com"</li>
+ * <li>adblock filters: "||example.com^" and "@@||example.com^" exceptions</li>
+ * <li>pattern rules: "*casino*", "bet*."</li>
+ * </ul>
+ * Lines starting with '#' or '!' are comments, as is the rest of a line
+ * after a '#' that follows whitespace. Adblock rules with options or paths,
+ * and cosmetic rules like "example.com##.ad", are skipped since they cannot
+ * be enforced through DNS.
+ * Files ending in ".gz" are decompressed while reading.
+ *
+ * Each source is read by its own fork-join task, which hands batches of
+ * lines to parse tasks as they are read. The domains of all sources are
+ * then merged with a parallel sort that also removes duplicates.
+ */
+public class BanListIngester {
+	private static final int BATCH_LINES = 16384;
+	private static final Set<String> HOSTS_NAMES_TO_IGNORE = new HashSet<String>(Arrays.asList("localhost",
+			"localhost.localdomain", "local", "broadcasthost", "ip6-localhost", "ip6-loopback", "0.0.0.0"));
+	// Separators of adblock element hiding and scriptlet rules, which hide parts of a page and do not ban its site.
+	private static final String[] COSMETIC_SEPARATORS = { "##", "#@#", "#?#", "#$#" };
+
+	/**
+	 * What was read from one source.
+	 */
+	public static class SourceStatistics {
+		private final Path path;
+		private long lines, domains, allowed, patterns, skipped;
+		private long hostsLines, adblockLines;
+		private long millis;
+
+		private SourceStatistics(Path path) {
+			this.path = path;
+		}
+
+		private void add(SourceStatistics other) {
+			lines += other.lines;
+			domains += other.domains;
+			allowed += other.allowed;
+			patterns += other.patterns;
+			skipped += other.skipped;
+			hostsLines += other.hostsLines;
+			adblockLines += other.adblockLines;
+		}
+
+		public Path getPath() { return path; }
+		public long getLines() { return lines; }
+		public long getDomains() { return domains; }
+		public long getAllowed() { return allowed; }
+		public long getPatterns() { return patterns; }
+		public long getSkipped() { return skipped; }
+		public long getMillis() { return millis; }
+
+		@Override
+		public String toString() {
+			return path.getFileName() + ": " + domains + " domains, " + allowed + " exceptions, " + patterns
+					+ " patterns, " + skipped + " skipped of " + lines + " lines (" + hostsLines + " hosts, "
+					+ adblockLines + " adblock) in " + millis + " ms";
+		}
+	}
+
+	/**
+	 * The combined ban list.
+	 */
+	public static class Result {
+		private final List<String> domains;
+		private final List<String> allowed;
+		private final List<String> patterns;
+		private final List<SourceStatistics> statistics;
+		private final long duplicates;
+
+		private Result(List<String> domains, List<String> allowed, List<String> patterns,
+				List<SourceStatistics> statistics, long duplicates) {
+			this.domains = domains;
+			this.allowed = allowed;
+			this.patterns = patterns;
+			this.statistics = statistics;
+			this.duplicates = duplicates;
+		}
+
+		/**
+		 * @return the banned domains, normalized, sorted and without duplicates.
+		 */
+		public List<String> getDomains() { return domains; }
+		public List<String> getAllowed() { return allowed; }
+		public List<String> getPatterns() { return patterns; }
+		public List<SourceStatistics> getStatistics() { return statistics; }
+
+		/**
+		 * @return how many domains were listed more than once, within or across sources.
+		 */
+		public long getDuplicates() { return duplicates; }
+	}
+
+	/**
+	 * The entries parsed out of one batch of lines, or out of a whole source.
+	 */
+	private static class Chunk {
+		private final ArrayList<String> domains = new ArrayList<String>();
+		private final ArrayList<String> allowed = new ArrayList<String>();
+		private final ArrayList<String> patterns = new ArrayList<String>();
+		private final SourceStatistics statistics;
+
+		private Chunk(Path path) {
+			statistics = new SourceStatistics(path);
+		}
+
+		private void add(Chunk other) {
+			domains.addAll(other.domains);
+			allowed.addAll(other.allowed);
+			patterns.addAll(other.patterns);
+			statistics.add(other.statistics);
+		}
+	}
+
+	/**
+	 * Parses one batch of lines.
+	 */
+	private static class ParseTask extends RecursiveTask<Chunk> {
+		private static final long serialVersionUID = 1L;
+		private final Path path;
+		private final String[] lines;
+		private final int count;
+
+		private ParseTask(Path path, String[] lines, int count) {
+			this.path = path;
+			this.lines = lines;
+			this.count = count;
+		}
+
+		@Override
+		protected Chunk compute() {
+			Chunk chunk = new Chunk(path);
+			for (int i = 0; i < count; i++)
+				parseLine(lines[i], chunk);
+			chunk.statistics.lines = count;
+			return chunk;
+		}
+	}
+
+	/**
+	 * Reads one source and parses it in batches.
+	 */
+	private static class SourceTask extends RecursiveTask<Chunk> {
+		private static final long serialVersionUID = 1L;
+		private final Path path;
+
+		private SourceTask(Path path) {
+			this.path = path;
+		}
+
+		@Override
+		protected Chunk compute() {
+			long startTime = System.nanoTime();
+			ArrayList<ParseTask> tasks = new ArrayList<ParseTask>();
+			try (BufferedReader reader = open(path)) {
+				String[] batch = new String[BATCH_LINES];
+				int count = 0;
+				String line;
+				while ((line = reader.readLine()) != null) {
+					batch[count++] = line;
+					if (count == BATCH_LINES) {
+						// Parse the batch in the pool while the next one is read.
+						tasks.add((ParseTask) new ParseTask(path, batch, count).fork());
+						batch = new String[BATCH_LINES];
+						count = 0;
+					}
+				}
+				if (count > 0)
+					tasks.add((ParseTask) new ParseTask(path, batch, count).fork());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			Chunk result = new Chunk(path);
+			for (ParseTask task : tasks)
+				result.add(task.join());
+			result.statistics.millis = (System.nanoTime() - startTime) / 1000000;
+			return result;
+		}
+	}
+
+	/**
+	 * Reads and combines the given sources.
+	 *
+	 * @param sources the blocklist files.
+	 * @return the combined ban list.
+	 * @throws IOException if a source cannot be read.
+	 */
+	public static Result ingest(List<Path> sources) throws IOException {
+		ArrayList<SourceTask> tasks = new ArrayList<SourceTask>();
+		for (Path source : sources)
+			tasks.add(new SourceTask(source));
+
+		ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+		try {
+			for (SourceTask task : ForkJoinTask.invokeAll(tasks))
+				chunks.add(task.join());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		int total = 0;
+		for (Chunk chunk : chunks)
+			total += chunk.domains.size();
+		String[] domains = new String[total];
+		LinkedHashSet<String> allowed = new LinkedHashSet<String>();
+		LinkedHashSet<String> patterns = new LinkedHashSet<String>();
+		ArrayList<SourceStatistics> statistics = new ArrayList<SourceStatistics>();
+		int offset = 0;
+		for (Chunk chunk : chunks) {
+			for (String domain : chunk.domains)
+				domains[offset++] = domain;
+			allowed.addAll(chunk.allowed);
+			patterns.addAll(chunk.patterns);
+			statistics.add(chunk.statistics);
+		}
+
+		// Fork-join merge sort, after which duplicates are next to each other.
+		Arrays.parallelSort(domains);
+		int unique = 0;
+		for (int i = 0; i < domains.length; i++) {
+			if (unique == 0 || !domains[unique - 1].equals(domains[i]))
+				domains[unique++] = domains[i];
+		}
+
+		return new Result(Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(domains, unique))),
+				new ArrayList<String>(allowed), new ArrayList<String>(patterns),
+				Collections.unmodifiableList(statistics), total - unique);
+	}
+
+	private static BufferedReader open(Path path) throws IOException {
+		InputStream in = Files.newInputStream(path);
+		if (path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".gz"))
+			in = new GZIPInputStream(in, 65536);
+		return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 65536);
+	}
+
+	/**
+	 * Recognizes the format of a line and adds its entries to the chunk.
+	 */
+	private static void parseLine(String line, Chunk chunk) {
+		SourceStatistics statistics = chunk.statistics;
+		line = line.trim();
+		if (line.isEmpty() || line.startsWith("#") || line.startsWith("!") || line.startsWith("[")) {
+			return;
+		}
+
+		for (String separator : COSMETIC_SEPARATORS) {
+			if (line.contains(separator)) {
+				statistics.adblockLines++;
+				statistics.skipped++;
+				return;
+			}
+		}
+
+		boolean allow = line.startsWith("@@");
+		if (allow)
+			line = line.substring(2);
+
+		if (line.startsWith("||")) {
+			// Adblock rule: only plain "||domain^" rules can be enforced through DNS.
+			statistics.adblockLines++;
+			int end = line.indexOf('^');
+			if (end < 0 || end != line.length() - 1) {
+				statistics.skipped++;
+				return;
+			}
+			line = line.substring(2, end);
+		} else {
+			// A line that is only a comment after "@@" is a comment too, not a pattern or a skipped rule.
+			int comment = indexOfComment(line);
+			if (comment >= 0)
+				line = line.substring(0, comment).trim();
+			if (line.isEmpty())
+				return;
+
+			int space = indexOfWhitespace(line);
+			if (space >= 0 && !allow && isAddress(line.substring(0, space))) {
+				// Hosts file entry: an address followed by one or more host names.
+				statistics.hostsLines++;
+				int start = space;
+				while (start < line.length()) {
+					while (start < line.length() && Character.isWhitespace(line.charAt(start)))
+						start++;
+					int end = start;
+					while (end < line.length() && !Character.isWhitespace(line.charAt(end)))
+						end++;
+					if (end > start) {
+						String domain = normalize(line.substring(start, end));
+						if (domain != null && !HOSTS_NAMES_TO_IGNORE.contains(domain)) {
+							chunk.domains.add(domain);
+							statistics.domains++;
+						}
+					}
+					start = end;
+				}
+				return;
+			}
+		}
+
+		if (GlobAutomaton.isPattern(line) && !allow) {
+			chunk.patterns.add(line);
+			statistics.patterns++;
+			return;
+		}
+		String domain = normalize(line);
+		if (domain == null) {
+			statistics.skipped++;
+		} else if (allow) {
+			chunk.allowed.add(domain);
+			statistics.allowed++;
+		} else {
+			chunk.domains.add(domain);
+			statistics.domains++;
+		}
+	}
+
+	/**
+	 * Finds a trailing comment, a '#' at the start of the line or after whitespace.
+	 *
+	 * @return the index of the '#', or -1 if there is no comment.
+	 */
+	private static int indexOfComment(String line) {
+		for (int i = line.indexOf('#'); i >= 0; i = line.indexOf('#', i + 1)) {
+			if (i == 0 || Character.isWhitespace(line.charAt(i - 1)))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Lower-cases a domain name and removes the trailing dot.
+	 *
+	 * @return the normalized name, or null if it is not a valid host name.
+	 */
+	private static String normalize(String name) {
+		if (name.endsWith("."))
+			name = name.substring(0, name.length() - 1);
+		if (name.isEmpty())
+			return null;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.'
+					|| c == '_'))
+				return null;
+		}
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	private static int indexOfWhitespace(String line) {
+		for (int i = 0; i < line.length(); i++) {
+			if (Character.isWhitespace(line.charAt(i)))
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean isAddress(String token) {
+		// IPv4 or IPv6 literal, like "0.0.0.0", "127.0.0.1" or "::1".
+		if (token.isEmpty())
+			return false;
+		boolean digit = false;
+		for (int i = 0; i < token.length(); i++) {
+			char c = token.charAt(i);
+			if (c >= '0' && c <= '9')
+				digit = true;
+			else if (c != '.' && c != ':' && !(c >= 'a' && c <= 'f') && !(c >= 'A' && c <= 'F'))
+				return false;
+		}
+		return digit || token.contains(":");
+	}
+}
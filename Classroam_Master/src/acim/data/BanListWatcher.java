@@ -0,0 +1,130 @@
+package acim.data;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * BanListWatcher watches the ban list sources for changes and reloads the ban
+ * list in the background, so the lists can be edited without restarting the master.
+ *
+ * Editors often write a file in several steps, so a reload only starts once
+ * the file has not changed for a short while. A reload can add sources, such
+ * as the overlays of a new ban policy, so they are watched from then on.
+ */
+public class BanListWatcher extends Thread {
+	private static final long QUIET_PERIOD_MILLISECONDS = 1000;
+
+	private final Set<Path> files = new HashSet<Path>();
+	private final Set<Path> directories = new HashSet<Path>();
+	// Set before the thread starts, so an early stopWatching() is not undone, and cleared by it from another thread.
+	private volatile boolean watching = true;
+
+	/**
+     * Creates a watcher for the given ban list files.
+     *
+     * @param files the ban list files to watch.
+     */
+	public BanListWatcher(List<Path> files) {
+		super("BanListWatcher");
+		for (Path file : files)
+			this.files.add(file.toAbsolutePath().normalize());
+		setDaemon(true);
+	}
+
+	/**
+     * Starts watching the ban list sources and ban policies from the .env file.
+     *
+     * @return the started watcher.
+     */
+	public static BanListWatcher startWatching() {
+		BanListWatcher watcher = new BanListWatcher(WebsiteChecker.getWatchedPaths());
+		watcher.start();
+		return watcher;
+	}
+
+	@Override
+	public void run() {
+		try (WatchService service = FileSystems.getDefault().newWatchService()) {
+			watch(service, new ArrayList<Path>(files));
+			System.out.println("Watching " + files + " for changes...");
+
+			while (watching) {
+				WatchKey key = service.take();
+				boolean changed = pollChanges(key);
+
+				// Wait until the file has been quiet for a while before reloading.
+				while (changed) {
+					key = service.poll(QUIET_PERIOD_MILLISECONDS, TimeUnit.MILLISECONDS);
+					if (key == null)
+						break;
+					pollChanges(key);
+				}
+
+				if (changed) {
+					System.out.println("Ban list changed, reloading...");
+					try {
+						WebsiteChecker.reload();
+					} catch (Exception e) {
+						// Keep the previous version live if the new one cannot be built.
+						e.printStackTrace();
+					}
+					watch(service, WebsiteChecker.getWatchedPaths());
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {}
+	}
+
+	/**
+     * Adds files to the watched ones, and registers the directories that are not watched yet.
+     *
+     * @param service the watch service.
+     * @param paths the files to watch.
+     */
+	private void watch(WatchService service, List<Path> paths) {
+		for (Path path : paths) {
+			Path file = path.toAbsolutePath().normalize();
+			if (files.add(file))
+				System.out.println("Watching " + file + " for changes...");
+			if (!directories.add(file.getParent()))
+				continue;
+			try {
+				file.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+			} catch (IOException e) {
+				// Try again after the next reload, the directory may not exist yet.
+				directories.remove(file.getParent());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+     * Consumes the events of a watch key and resets it.
+     *
+     * @return true if one of the events was about a ban list file.
+     */
+	private boolean pollChanges(WatchKey key) {
+		boolean changed = false;
+		Path directory = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			Object context = event.context();
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW
+					|| (context instanceof Path && files.contains(directory.resolve((Path) context))))
+				changed = true;
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+     * Stops watching, also if the thread has not started yet.
+     */
+	public void stopWatching() {
+		watching = false;
+		interrupt();
+	}
+}
@@ -0,0 +1,196 @@
+package acim.data;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+import acim.data.structure.*;
+
+/**
+ * BanPolicies describes the ban policies of different groups, like an exam
+ * mode, a course or the staff, and which clients each policy applies to.
+ *
+ * Every policy starts from the shared ban list and adds its own overlay
+ * sources, which can ban more domains or make "@@" exceptions to the shared
+ * ones. An overlay can also ban a domain that the shared list makes an
+ * exception for. The policy file from BAN_POLICY_FILE in the .env file looks like:
+ * <pre>
+ * policy exam = exam.txt, exam-extra.txt.gz
+ * policy staff = staff-exceptions.txt
+ * account alice = staff
+ * room 192.168.10. = exam
+ * </pre>
+ * Accounts are matched by username and rooms by the prefix of the machine's
+ * IP address. A client that several lines match gets all of those policies,
+ * and a client that none match gets the "default" policy, which is only the
+ * shared ban list.
+ *
+ * All policies are compiled into one {@link PolicyDomainTrie}, so the shared
+ * list is stored once and a lookup checks a client's policies in one walk.
+ */
+public class BanPolicies {
+	public static final String DEFAULT_POLICY = "default";
+
+	private final Path file;
+	// The index of a policy is its bit in the policy masks.
+	private final List<String> names = new ArrayList<String>();
+	private final List<List<Path>> overlaySources = new ArrayList<List<Path>>();
+	private final HashMap<String, Long> accountPolicies = new HashMap<String, Long>();
+	private final LinkedHashMap<String, Long> roomPolicies = new LinkedHashMap<String, Long>();
+
+	private BanPolicies(Path file) {
+		this.file = file;
+		names.add(DEFAULT_POLICY);
+		overlaySources.add(new ArrayList<Path>());
+	}
+
+	/**
+	 * Reads the policy file set with BAN_POLICY_FILE in the .env file.
+	 *
+	 * @return the policies, or null if no policy file is configured.
+	 * @throws IOException if the policy file cannot be read or is invalid.
+	 */
+	public static BanPolicies load() throws IOException {
+		String file = Env.get("BAN_POLICY_FILE");
+		if (file == null || file.trim().isEmpty())
+			return null;
+		return read(Paths.get(file.trim()));
+	}
+
+	/**
+	 * Reads a policy file. Overlay sources are resolved against the file's directory.
+	 *
+	 * @param file the policy file.
+	 * @return the policies.
+	 * @throws IOException if the file cannot be read or is invalid.
+	 */
+	public static BanPolicies read(Path file) throws IOException {
+		BanPolicies policies = new BanPolicies(file);
+		Path directory = file.toAbsolutePath().getParent();
+		int lineNumber = 0;
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+
+			int space = line.indexOf(' ');
+			int equals = line.indexOf('=');
+			if (space < 0 || equals < space)
+				throw new IOException(file + ":" + lineNumber + ": expected \"<kind> <name> = <value>\"");
+			String kind = line.substring(0, space);
+			String name = line.substring(space + 1, equals).trim();
+			String value = line.substring(equals + 1).trim();
+
+			if (kind.equals("policy")) {
+				int policy = policies.define(name);
+				for (String source : value.split(",")) {
+					if (!source.trim().isEmpty())
+						policies.overlaySources.get(policy).add(directory.resolve(source.trim()));
+				}
+			} else if (kind.equals("account")) {
+				policies.accountPolicies.merge(name, policies.parseMask(value), (a, b) -> a | b);
+			} else if (kind.equals("room")) {
+				policies.roomPolicies.merge(name, policies.parseMask(value), (a, b) -> a | b);
+			} else {
+				throw new IOException(file + ":" + lineNumber + ": unknown entry \"" + kind + "\"");
+			}
+		}
+		return policies;
+	}
+
+	private int define(String name) throws IOException {
+		int policy = names.indexOf(name);
+		if (policy >= 0)
+			return policy;
+		if (names.size() == PolicyDomainTrie.MAXIMUM_POLICIES)
+			throw new IOException("Too many ban policies, at most " + PolicyDomainTrie.MAXIMUM_POLICIES
+					+ " are supported.");
+		names.add(name);
+		overlaySources.add(new ArrayList<Path>());
+		return names.size() - 1;
+	}
+
+	private long parseMask(String value) throws IOException {
+		long mask = 0;
+		for (String name : value.split(",")) {
+			if (name.trim().isEmpty())
+				continue;
+			int policy = names.indexOf(name.trim());
+			if (policy < 0)
+				throw new IOException("Unknown ban policy \"" + name.trim() + "\", define it before using it.");
+			mask |= 1L << policy;
+		}
+		return mask;
+	}
+
+	/**
+	 * Selects the policies that apply to a client.
+	 *
+	 * @param machineAddress the client's IP address.
+	 * @param username the logged-in account, or null if nobody is logged in.
+	 * @return the bit mask of the selected policies.
+	 */
+	public long select(String machineAddress, String username) {
+		long mask = 0;
+		if (username != null)
+			mask |= accountPolicies.getOrDefault(username, 0L);
+		if (machineAddress != null) {
+			for (Map.Entry<String, Long> room : roomPolicies.entrySet()) {
+				if (machineAddress.startsWith(room.getKey()))
+					mask |= room.getValue();
+			}
+		}
+		return (mask == 0) ? 1L : mask;
+	}
+
+	/**
+	 * Reads every overlay and compiles it together with the shared ban list.
+	 * Pattern rules are only supported in the shared ban list, so patterns
+	 * in overlays are skipped.
+	 *
+	 * @param banned the shared banned domains, which apply to every policy.
+	 * @param allowed the shared exceptions.
+	 * @param allBanned receives every domain banned by any policy, for the clients' filter.
+	 * @return the compiled policies.
+	 * @throws IOException if an overlay cannot be read.
+	 */
+	public PolicyDomainTrie build(List<String> banned, List<String> allowed, Collection<String> allBanned)
+			throws IOException {
+		ArrayList<PolicyDomainTrie.RuleSet> ruleSets = new ArrayList<PolicyDomainTrie.RuleSet>();
+		ruleSets.add(new PolicyDomainTrie.RuleSet(-1L, banned, allowed));
+		allBanned.addAll(banned);
+
+		for (int policy = 0; policy < names.size(); policy++) {
+			List<Path> sources = overlaySources.get(policy);
+			if (sources.isEmpty())
+				continue;
+			BanListIngester.Result overlay = BanListIngester.ingest(sources);
+			if (!overlay.getPatterns().isEmpty())
+				System.out.println("Skipping " + overlay.getPatterns().size() + " pattern rules in the overlay of ban policy "
+						+ names.get(policy) + ", patterns are only supported in the shared ban list");
+			System.out.println("Ban policy " + names.get(policy) + " adds " + overlay.getDomains().size()
+					+ " bans and " + overlay.getAllowed().size() + " exceptions");
+			ruleSets.add(new PolicyDomainTrie.RuleSet(1L << policy, overlay.getDomains(), overlay.getAllowed()));
+			allBanned.addAll(overlay.getDomains());
+		}
+		return PolicyDomainTrie.build(ruleSets);
+	}
+
+	/**
+	 * @return the policy file and every overlay source, for watching them for changes.
+	 */
+	public List<Path> getSourcePaths() {
+		ArrayList<Path> paths = new ArrayList<Path>();
+		paths.add(file);
+		for (List<Path> sources : overlaySources)
+			paths.addAll(sources);
+		return paths;
+	}
+
+	/**
+	 * @return the names of the policies, in the order of their bits.
+	 */
+	public List<String> getNames() { return Collections.unmodifiableList(names); }
+}
@@ -0,0 +1,355 @@
+package acim.data;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * An {@link AccountRepository} that keeps recently looked up active accounts
+ * in memory, so that the logins at the start of a class do not each wait for
+ * the database.
+ *
+ * Active accounts are cached by username for a limited time, including
+ * usernames that have no active account. The cache holds at most a fixed
+ * number of usernames and drops the least recently used one when it is full.
+ * Every change made through this repository invalidates the usernames it
+ * touches; changes made directly in the database are picked up when the
+ * entry expires.
+ *
+ * When several threads miss on the same username at once, only the first
+ * one queries the database and the others wait for its result. The roster
+ * of a class can be loaded ahead of time with {@link #prefetch(Collection, long)},
+ * and kept for longer than looked up accounts, until the class has started.
+ * All other methods go straight to the underlying repository.
+ *
+ * Listeners added with {@link #addChangeListener(AccountChangeListener)} are
+ * told about every successful change, so views of the accounts can update
+ * just the accounts that changed.
+ */
+public class CachingAccountRepository implements AccountRepository {
+	private final AccountRepository repository;
+	private final int maximumSize;
+	private final long timeToLiveNanos;
+
+	// In access order, so the least recently used username is dropped first.
+	private final LinkedHashMap<String, Entry> entries;
+	private final List<AccountChangeListener> listeners = new CopyOnWriteArrayList<AccountChangeListener>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder collapsedMisses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * A cached lookup, which is still running until its future is done.
+	 */
+	private static class Entry {
+		private final CompletableFuture<Account> account = new CompletableFuture<Account>();
+		private long expiresAtNanos;
+	}
+
+	/**
+	 * @param repository the repository to load accounts from.
+	 * @param maximumSize how many usernames are cached at most.
+	 * @param timeToLiveMillis how long a cached account is used before it is looked up again.
+	 */
+	public CachingAccountRepository(AccountRepository repository, int maximumSize, long timeToLiveMillis) {
+		this.repository = repository;
+		this.maximumSize = maximumSize;
+		this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() <= CachingAccountRepository.this.maximumSize)
+					return false;
+				evictions.increment();
+				return true;
+			}
+		};
+	}
+
+	@Override
+	public Account findActiveByUsername(String username) throws SQLException {
+		Entry entry;
+		boolean load = false;
+		synchronized (entries) {
+			entry = entries.get(username);
+			if (entry == null || (entry.account.isDone() && System.nanoTime() - entry.expiresAtNanos > 0)) {
+				entry = new Entry();
+				entries.put(username, entry);
+				load = true;
+				misses.increment();
+			} else if (entry.account.isDone()) {
+				hits.increment();
+			} else {
+				// Another thread is already loading it.
+				collapsedMisses.increment();
+			}
+		}
+
+		if (load) {
+			try {
+				Account account = repository.findActiveByUsername(username);
+				complete(entry, account);
+				return account;
+			} catch (SQLException | RuntimeException | Error e) {
+				// Do not cache failures, so the next lookup tries again.
+				synchronized (entries) {
+					entries.remove(username, entry);
+				}
+				entry.account.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		try {
+			return entry.account.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			throw e;
+		}
+	}
+
+	private void complete(Entry entry, Account account) {
+		synchronized (entries) {
+			entry.expiresAtNanos = System.nanoTime() + timeToLiveNanos;
+		}
+		entry.account.complete(account);
+	}
+
+	/**
+	 * Loads the active accounts of the given usernames into the cache with one
+	 * batched query, for example the roster of the class that starts next.
+	 * Usernames without an active account are cached as missing.
+	 *
+	 * @param usernames the usernames to load.
+	 * @param timeToLiveMillis how long the loaded accounts are used, which should
+	 * last until the class has started, so usually longer than for looked up accounts.
+	 * @return how many active accounts were found.
+	 * @throws SQLException if the query fails.
+	 */
+	public int prefetch(Collection<String> usernames, long timeToLiveMillis) throws SQLException {
+		HashMap<String, Account> found = new HashMap<String, Account>();
+		for (Account account : repository.findActiveByUsernames(usernames))
+			found.put(account.getUsername(), account);
+
+		long expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+		synchronized (entries) {
+			for (String username : usernames) {
+				Entry previous = entries.get(username);
+				// Leave lookups that are still running alone.
+				if (previous != null && !previous.account.isDone())
+					continue;
+				Entry entry = new Entry();
+				entry.expiresAtNanos = expiresAtNanos;
+				entry.account.complete(found.get(username));
+				entries.put(username, entry);
+			}
+		}
+		return found.size();
+	}
+
+	/**
+	 * Drops a username from the cache, so the next lookup reads it from the database.
+	 *
+	 * @param username the username.
+	 */
+	public void invalidate(String username) {
+		if (username == null)
+			return;
+		synchronized (entries) {
+			if (entries.remove(username) != null)
+				invalidations.increment();
+		}
+	}
+
+	/**
+	 * Drops every username from the cache.
+	 */
+	public void invalidateAll() {
+		synchronized (entries) {
+			invalidations.add(entries.size());
+			entries.clear();
+		}
+	}
+
+	@Override
+	public Account findByUsername(String username) throws SQLException {
+		return repository.findByUsername(username);
+	}
+
+	@Override
+	public List<Account> findActiveByUsernames(Collection<String> usernames) throws SQLException {
+		return repository.findActiveByUsernames(usernames);
+	}
+
+	@Override
+	public Set<String> findExistingUsernames(Collection<String> usernames) throws SQLException {
+		return repository.findExistingUsernames(usernames);
+	}
+
+	@Override
+	public List<Account> findSnippets() throws SQLException {
+		return repository.findSnippets();
+	}
+
+	@Override
+	public int forEachSnippet(Consumer<Account> action) throws SQLException {
+		return repository.forEachSnippet(action);
+	}
+
+	@Override
+	public int forEachActive(Consumer<Account> action) throws SQLException {
+		return repository.forEachActive(action);
+	}
+
+	@Override
+	public Account findSnippet(String username) throws SQLException {
+		return repository.findSnippet(username);
+	}
+
+	@Override
+	public int countSnippets() throws SQLException {
+		return repository.countSnippets();
+	}
+
+	@Override
+	public List<String> findSnippetPageKeys(int pageSize) throws SQLException {
+		return repository.findSnippetPageKeys(pageSize);
+	}
+
+	@Override
+	public List<Account> findSnippetPage(String fromUsername, int limit) throws SQLException {
+		return repository.findSnippetPage(fromUsername, limit);
+	}
+
+	@Override
+	public Long findAvailableSeconds(String username) throws SQLException {
+		return repository.findAvailableSeconds(username);
+	}
+
+	/**
+	 * Balances are not cached and not shown in the accounts table, so this
+	 * invalidates nothing and tells no listeners.
+	 */
+	@Override
+	public int addAvailableSeconds(Map<String, Long> seconds) throws SQLException {
+		return repository.addAvailableSeconds(seconds);
+	}
+
+	@Override
+	public void create(Account account) throws SQLException {
+		try {
+			repository.create(account);
+		} finally {
+			invalidate(account.getUsername());
+		}
+		fireAccountChanged(null, account.getUsername());
+	}
+
+	@Override
+	public int createAll(List<Account> accounts, int batchSize) throws SQLException {
+		try {
+			return repository.createAll(accounts, batchSize);
+		} finally {
+			// Earlier batches may be stored even if a later one failed.
+			synchronized (entries) {
+				for (Account account : accounts)
+					if (entries.remove(account.getUsername()) != null)
+						invalidations.increment();
+			}
+			fireAccountsChanged();
+		}
+	}
+
+	@Override
+	public void update(String username, Account account) throws SQLException {
+		try {
+			repository.update(username, account);
+		} finally {
+			invalidate(username);
+			invalidate(account.getUsername());
+		}
+		fireAccountChanged(username, account.getUsername());
+	}
+
+	@Override
+	public void deactivate(String username) throws SQLException {
+		try {
+			repository.deactivate(username);
+		} finally {
+			invalidate(username);
+		}
+		fireAccountChanged(username, null);
+	}
+
+	/**
+	 * Adds a listener that is told about every successful change made through this repository.
+	 *
+	 * @param listener the listener.
+	 */
+	public void addChangeListener(AccountChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener the listener to remove.
+	 */
+	public void removeChangeListener(AccountChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	private void fireAccountsChanged() {
+		for (AccountChangeListener listener : listeners) {
+			try {
+				listener.accountsChanged();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void fireAccountChanged(String oldUsername, String newUsername) {
+		for (AccountChangeListener listener : listeners) {
+			try {
+				listener.accountChanged(oldUsername, newUsername);
+			} catch (RuntimeException e) {
+				// The change itself succeeded, so a broken listener must not fail it.
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return the share of lookups answered from the cache, including lookups
+	 * that waited for another thread's query, between 0 and 1.
+	 */
+	public double getHitRate() {
+		long hitCount = hits.sum() + collapsedMisses.sum();
+		long total = hitCount + misses.sum();
+		return (total == 0) ? 0 : (double) hitCount / total;
+	}
+
+	public long getHitCount() { return hits.sum(); }
+	public long getMissCount() { return misses.sum(); }
+	public long getCollapsedMissCount() { return collapsedMisses.sum(); }
+
+	/**
+	 * @return a human-readable summary of the cache statistics.
+	 */
+	public String getStatistics() {
+		int size;
+		synchronized (entries) {
+			size = entries.size();
+		}
+		return String.format("%d cached, %d hits, %d misses, %d waited for a running lookup, %.1f%% hit rate, "
+				+ "%d evicted, %d invalidated", size, hits.sum(), misses.sum(), collapsedMisses.sum(),
+				getHitRate() * 100, evictions.sum(), invalidations.sum());
+	}
+}
@@ -0,0 +1,585 @@
+package acim.data;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.*;
+
+import javax.sql.*;
+
+/**
+ * ConnectionPool keeps database connections open and lends them out, so that
+ * a query does not pay for a new TCP, TLS and authentication handshake.
+ *
+ * Borrowed connections are wrappers: closing one returns the underlying
+ * connection to the pool, and also closes the statements opened on it and
+ * rolls back an unfinished transaction. The pool keeps at least the minimum
+ * number of connections open and never opens more than the maximum; a
+ * borrower waits for a free connection up to the borrow timeout.
+ *
+ * Each connection caches its most recently used prepared statements, so
+ * preparing the same SQL again on that connection reuses the statement
+ * instead of preparing it on the server once more. Closing a cached
+ * statement only clears its parameters.
+ *
+ * A connection that has been idle for a while is validated before it is
+ * lent out, and replaced if the server has dropped it. A background task
+ * closes connections that stay idle above the minimum, and reports
+ * connections that have been borrowed for too long together with the stack
+ * trace of the borrower, since they were most likely never closed.
+ */
+public class ConnectionPool implements DataSource, Closeable {
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+	private static final long HOUSEKEEPING_MILLIS = 10000;
+
+	private final String url;
+	private final String user;
+	private final String password;
+	private final int minimumSize;
+	private final int maximumSize;
+	private final long borrowTimeoutMillis;
+	private final long validationIdleMillis;
+	private final long idleTimeoutMillis;
+	private final long leakThresholdMillis;
+	private final int statementCacheSize;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition returned = lock.newCondition();
+	// Most recently returned last, so borrowing takes the connection that is least likely to be stale.
+	private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+	private final Set<PooledConnection> borrowed = new HashSet<PooledConnection>();
+	// Idle and borrowed connections, plus the ones being opened.
+	private int size = 0;
+	private boolean closed = false;
+	private final ScheduledExecutorService housekeeper;
+
+	private final LongAdder borrowCount = new LongAdder();
+	private final LongAdder borrowWaitNanos = new LongAdder();
+	private final LongAdder waitingBorrowCount = new LongAdder();
+	private final AtomicLong maximumBorrowWaitNanos = new AtomicLong();
+	private final LongAdder timeoutCount = new LongAdder();
+	private final LongAdder createdCount = new LongAdder();
+	private final LongAdder validationFailureCount = new LongAdder();
+	private final LongAdder leakCount = new LongAdder();
+	private final LongAdder statementCacheHits = new LongAdder();
+	private final LongAdder statementCacheMisses = new LongAdder();
+
+	/**
+	 * A physical connection and its bookkeeping.
+	 */
+	private static class PooledConnection {
+		private final Connection connection;
+		private final ArrayList<Statement> statements = new ArrayList<Statement>();
+		private final LinkedHashMap<String, PreparedStatement> statementCache;
+		// Cached statements lent to the current borrower and not closed yet.
+		private final Set<PreparedStatement> cachedInUse = Collections.newSetFromMap(
+				new IdentityHashMap<PreparedStatement, Boolean>());
+		private long lastUsedMillis = System.currentTimeMillis();
+		private long borrowedMillis;
+		private Throwable borrower;
+		private boolean leakReported;
+
+		private PooledConnection(Connection connection, int statementCacheSize) {
+			this.connection = connection;
+			// In access order, so the least recently used statement is closed when the cache is full.
+			statementCache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+					if (size() <= statementCacheSize)
+						return false;
+					if (cachedInUse.contains(eldest.getValue())) {
+						// Still lent out, so it is closed when the connection is returned.
+						statements.add(eldest.getValue());
+					} else {
+						try {
+							eldest.getValue().close();
+						} catch (SQLException e) {}
+					}
+					return true;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Creates a pool and opens the minimum number of connections in the background.
+	 *
+	 * @param url the JDBC URL.
+	 * @param user the database user.
+	 * @param password the database password.
+	 * @param minimumSize how many connections are kept open even when idle.
+	 * @param maximumSize how many connections can be open at most.
+	 * @param borrowTimeoutMillis how long a borrower waits for a free connection.
+	 * @param validationIdleMillis how long a connection can be idle before it is validated on borrow.
+	 * @param idleTimeoutMillis how long a connection above the minimum can be idle before it is closed.
+	 * @param leakThresholdMillis how long a connection can be borrowed before it is reported as leaked,
+	 * or 0 to disable leak detection.
+	 * @param statementCacheSize how many prepared statements each connection caches, or 0 to disable caching.
+	 */
+	public ConnectionPool(String url, String user, String password, int minimumSize, int maximumSize,
+			long borrowTimeoutMillis, long validationIdleMillis, long idleTimeoutMillis, long leakThresholdMillis,
+			int statementCacheSize) {
+		if (minimumSize < 0 || maximumSize < 1 || minimumSize > maximumSize)
+			throw new IllegalArgumentException("Pool size must be 0 <= minimum <= maximum and maximum >= 1.");
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.minimumSize = minimumSize;
+		this.maximumSize = maximumSize;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.validationIdleMillis = validationIdleMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.leakThresholdMillis = leakThresholdMillis;
+		this.statementCacheSize = statementCacheSize;
+
+		housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "ConnectionPool");
+			thread.setDaemon(true);
+			return thread;
+		});
+		housekeeper.execute(this::fillToMinimum);
+		housekeeper.scheduleWithFixedDelay(this::houseKeep, HOUSEKEEPING_MILLIS, HOUSEKEEPING_MILLIS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates a pool for the database from the .env file. The pool is sized with
+	 * DB_POOL_MIN (1 by default) and DB_POOL_MAX (8 by default), and borrowers
+	 * wait at most DB_POOL_TIMEOUT_MS (10 seconds by default). Connections borrowed
+	 * for longer than DB_POOL_LEAK_MS (60 seconds by default) are reported, and each
+	 * connection caches DB_STATEMENT_CACHE prepared statements (64 by default).
+	 * Statements are prepared on the server, so a cached statement is only parsed once.
+	 * Batched inserts are rewritten into multi-row INSERTs, and queries with a
+	 * fetch size read their rows through a server-side cursor.
+	 *
+	 * @return the pool.
+	 */
+	public static ConnectionPool fromEnv() {
+		String url = "jdbc:mysql://" + Env.get("DB_HOST") + ":" + Env.get("DB_PORT") + "/" + Env.get("DB_NAME")
+				+ "?useSSL=true&useServerPrepStmts=true&rewriteBatchedStatements=true&useCursorFetch=true";
+		return new ConnectionPool(url, Env.get("DB_USER"), Env.get("DB_PASSWORD"), Env.getInt("DB_POOL_MIN", 1),
+				Env.getInt("DB_POOL_MAX", 8), Env.getInt("DB_POOL_TIMEOUT_MS", 10000), 1000,
+				Env.getInt("DB_POOL_IDLE_MS", 600000), Env.getInt("DB_POOL_LEAK_MS", 60000),
+				Env.getInt("DB_STATEMENT_CACHE", 64));
+	}
+
+	/**
+	 * Borrows a connection. Close it to return it to the pool.
+	 *
+	 * @return the connection.
+	 * @throws SQLException if no connection becomes free within the borrow
+	 * timeout, or a new connection cannot be opened.
+	 */
+	@Override
+	public Connection getConnection() throws SQLException {
+		long startTime = System.nanoTime();
+		long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+		boolean waited = false;
+		while (true) {
+			PooledConnection pooled = null;
+			boolean create = false;
+			lock.lock();
+			try {
+				while (!closed && idle.isEmpty() && size >= maximumSize) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						timeoutCount.increment();
+						throw new SQLTransientConnectionException("No database connection became free within "
+								+ borrowTimeoutMillis + " ms (" + size + " open, all borrowed).");
+					}
+					waited = true;
+					returned.awaitNanos(remaining);
+				}
+				if (closed)
+					throw new SQLException("The connection pool is closed.");
+				pooled = idle.pollLast();
+				if (pooled == null) {
+					size++;
+					create = true;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a database connection.", e);
+			} finally {
+				lock.unlock();
+			}
+
+			// Opening and validating talk to the server, so they happen outside the lock.
+			if (create) {
+				pooled = open();
+			} else if (System.currentTimeMillis() - pooled.lastUsedMillis > validationIdleMillis
+					&& !isValid(pooled)) {
+				validationFailureCount.increment();
+				discard(pooled);
+				continue;
+			}
+			return lend(pooled, startTime, waited);
+		}
+	}
+
+	private PooledConnection open() throws SQLException {
+		try {
+			PooledConnection pooled = new PooledConnection(DriverManager.getConnection(url, user, password),
+					statementCacheSize);
+			createdCount.increment();
+			return pooled;
+		} catch (SQLException | RuntimeException e) {
+			lock.lock();
+			try {
+				size--;
+				returned.signal();
+			} finally {
+				lock.unlock();
+			}
+			throw e;
+		}
+	}
+
+	private boolean isValid(PooledConnection pooled) {
+		try {
+			return pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private Connection lend(PooledConnection pooled, long startTime, boolean waited) {
+		long waitNanos = System.nanoTime() - startTime;
+		borrowCount.increment();
+		borrowWaitNanos.add(waitNanos);
+		if (waited)
+			waitingBorrowCount.increment();
+		maximumBorrowWaitNanos.accumulateAndGet(waitNanos, Math::max);
+
+		pooled.borrowedMillis = System.currentTimeMillis();
+		pooled.borrower = (leakThresholdMillis > 0) ? new Throwable("Connection borrowed here") : null;
+		pooled.leakReported = false;
+		lock.lock();
+		try {
+			borrowed.add(pooled);
+		} finally {
+			lock.unlock();
+		}
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new Lease(pooled));
+	}
+
+	/**
+	 * Takes a connection back from a borrower, cleaning it up so the next
+	 * borrower gets it in its default state.
+	 */
+	private void giveBack(PooledConnection pooled) {
+		boolean reusable = true;
+		try {
+			for (Statement statement : pooled.statements)
+				statement.close();
+			pooled.statements.clear();
+			for (PreparedStatement statement : pooled.cachedInUse)
+				statement.clearParameters();
+			pooled.cachedInUse.clear();
+			if (!pooled.connection.getAutoCommit()) {
+				pooled.connection.rollback();
+				pooled.connection.setAutoCommit(true);
+			}
+			pooled.connection.clearWarnings();
+			reusable = !pooled.connection.isClosed();
+		} catch (SQLException e) {
+			reusable = false;
+		}
+
+		lock.lock();
+		try {
+			borrowed.remove(pooled);
+			if (reusable && !closed) {
+				pooled.lastUsedMillis = System.currentTimeMillis();
+				idle.addLast(pooled);
+				returned.signal();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		discard(pooled);
+	}
+
+	private void discard(PooledConnection pooled) {
+		try {
+			pooled.connection.close();
+		} catch (SQLException e) {}
+		lock.lock();
+		try {
+			size--;
+			returned.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void fillToMinimum() {
+		while (true) {
+			lock.lock();
+			try {
+				if (closed || size >= minimumSize)
+					return;
+				size++;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				PooledConnection pooled = open();
+				lock.lock();
+				try {
+					idle.addFirst(pooled);
+					returned.signal();
+				} finally {
+					lock.unlock();
+				}
+			} catch (SQLException e) {
+				System.out.println("Cannot open a database connection for the pool: " + e.getLocalizedMessage());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Closes connections that have been idle for too long and reports leaked ones.
+	 */
+	private void houseKeep() {
+		long now = System.currentTimeMillis();
+		ArrayList<PooledConnection> expired = new ArrayList<PooledConnection>();
+		ArrayList<PooledConnection> leaked = new ArrayList<PooledConnection>();
+		lock.lock();
+		try {
+			// The oldest idle connections are at the front.
+			while (size - expired.size() > minimumSize && !idle.isEmpty()
+					&& now - idle.peekFirst().lastUsedMillis > idleTimeoutMillis)
+				expired.add(idle.pollFirst());
+			if (leakThresholdMillis > 0) {
+				for (PooledConnection pooled : borrowed) {
+					if (!pooled.leakReported && now - pooled.borrowedMillis > leakThresholdMillis) {
+						pooled.leakReported = true;
+						leaked.add(pooled);
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		for (PooledConnection pooled : expired)
+			discard(pooled);
+		for (PooledConnection pooled : leaked) {
+			leakCount.increment();
+			System.out.println("Possible database connection leak: borrowed " + (now - pooled.borrowedMillis)
+					+ " ms ago and not returned yet.");
+			if (pooled.borrower != null)
+				pooled.borrower.printStackTrace();
+		}
+		fillToMinimum();
+	}
+
+	/**
+	 * Closes every idle connection and stops lending. Borrowed connections are
+	 * closed when they are returned.
+	 */
+	@Override
+	public void close() {
+		ArrayList<PooledConnection> toClose;
+		lock.lock();
+		try {
+			closed = true;
+			toClose = new ArrayList<PooledConnection>(idle);
+			idle.clear();
+			returned.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		housekeeper.shutdownNow();
+		for (PooledConnection pooled : toClose)
+			discard(pooled);
+	}
+
+	/**
+	 * The borrower's view of a connection. Closing it returns the connection,
+	 * and any use after that fails as if the connection was closed.
+	 */
+	private class Lease implements InvocationHandler {
+		private PooledConnection pooled;
+
+		private Lease(PooledConnection pooled) {
+			this.pooled = pooled;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				PooledConnection returning = pooled;
+				pooled = null;
+				if (returning != null)
+					giveBack(returning);
+				return null;
+			} else if (name.equals("isClosed")) {
+				return pooled == null || pooled.connection.isClosed();
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("toString")) {
+				return "Pooled " + (pooled == null ? "closed connection" : pooled.connection.toString());
+			}
+
+			PooledConnection current = pooled;
+			if (current == null)
+				throw new SQLNonTransientConnectionException("Connection is closed.");
+			if (name.equals("prepareStatement") && args.length == 1 && statementCacheSize > 0)
+				return prepareCached(current, (String) args[0]);
+			try {
+				Object result = method.invoke(current.connection, args);
+				// Statements are closed when the connection is returned.
+				if (result instanceof Statement)
+					current.statements.add((Statement) result);
+				return result;
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Lends a cached statement for the SQL, and prepares and caches it on a miss.
+	 * A statement that is already lent out, because the borrower prepares the
+	 * same SQL twice, is not shared; a separate statement is prepared instead.
+	 */
+	private PreparedStatement prepareCached(PooledConnection pooled, String sql) throws SQLException {
+		PreparedStatement statement = pooled.statementCache.get(sql);
+		if (statement != null && pooled.cachedInUse.contains(statement)) {
+			statement = pooled.connection.prepareStatement(sql);
+			pooled.statements.add(statement);
+			return statement;
+		}
+		if (statement == null || statement.isClosed()) {
+			statementCacheMisses.increment();
+			statement = pooled.connection.prepareStatement(sql);
+			pooled.statementCache.put(sql, statement);
+		} else {
+			statementCacheHits.increment();
+		}
+		pooled.cachedInUse.add(statement);
+		return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, new CachedStatement(pooled, statement));
+	}
+
+	/**
+	 * The borrower's view of a cached statement. Closing it keeps the statement
+	 * prepared for the next borrower of the connection.
+	 */
+	private static class CachedStatement implements InvocationHandler {
+		private final PooledConnection pooled;
+		private final PreparedStatement statement;
+		private boolean closed = false;
+
+		private CachedStatement(PooledConnection pooled, PreparedStatement statement) {
+			this.pooled = pooled;
+			this.statement = statement;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				if (!closed) {
+					closed = true;
+					if (pooled.cachedInUse.remove(statement))
+						statement.clearParameters();
+				}
+				return null;
+			} else if (name.equals("isClosed")) {
+				return closed || !pooled.cachedInUse.contains(statement) || statement.isClosed();
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+
+			// The statement went back with its connection, or was closed by the borrower.
+			if (closed || !pooled.cachedInUse.contains(statement))
+				throw new SQLException("Statement is closed.");
+			try {
+				return method.invoke(statement, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * @return a human-readable summary of the pool's size and borrow statistics.
+	 */
+	public String getStatistics() {
+		int idleCount, borrowedCount, openCount;
+		lock.lock();
+		try {
+			idleCount = idle.size();
+			borrowedCount = borrowed.size();
+			openCount = size;
+		} finally {
+			lock.unlock();
+		}
+		long borrows = borrowCount.sum();
+		return String.format("%d open (%d idle, %d borrowed), %d borrows, %d had to wait, average wait %.2f ms, "
+				+ "maximum wait %.2f ms, %d timeouts, %d opened, %d failed validation, %d leaks, "
+				+ "%d statement cache hits, %d misses", openCount, idleCount, borrowedCount, borrows,
+				waitingBorrowCount.sum(), (borrows == 0) ? 0.0 : borrowWaitNanos.sum() / 1e6 / borrows,
+				maximumBorrowWaitNanos.get() / 1e6, timeoutCount.sum(), createdCount.sum(),
+				validationFailureCount.sum(), leakCount.sum(), statementCacheHits.sum(), statementCacheMisses.sum());
+	}
+
+	public long getBorrowCount() { return borrowCount.sum(); }
+	public long getTimeoutCount() { return timeoutCount.sum(); }
+	public long getLeakCount() { return leakCount.sum(); }
+	public long getStatementCacheHits() { return statementCacheHits.sum(); }
+	public long getStatementCacheMisses() { return statementCacheMisses.sum(); }
+
+	/**
+	 * @return the average time a borrower waited for a connection, in milliseconds.
+	 */
+	public double getAverageBorrowWaitMillis() {
+		long borrows = borrowCount.sum();
+		return (borrows == 0) ? 0 : borrowWaitNanos.sum() / 1e6 / borrows;
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		throw new SQLFeatureNotSupportedException("The pool only lends connections of its configured user.");
+	}
+
+	@Override
+	public PrintWriter getLogWriter() { return null; }
+	@Override
+	public void setLogWriter(PrintWriter out) {}
+	@Override
+	public void setLoginTimeout(int seconds) {}
+	@Override
+	public int getLoginTimeout() { return 0; }
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> type) throws SQLException {
+		if (type.isInstance(this))
+			return type.cast(this);
+		throw new SQLException("Not a wrapper for " + type.getName());
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> type) { return type.isInstance(this); }
+}
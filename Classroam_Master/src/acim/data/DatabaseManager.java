@@ -1,291 +1,196 @@
 package acim.data;
 
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.sql.*;
-
-import javax.swing.*;
-import javax.swing.table.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class DatabaseManager {
-	private static final long TABLE_UPDATE_MILLISECONDS_LIMIT = 1000;
 	private static String ROW_SEPARATOR = "\uE000";
-	private static JTable tableAccounts = null;
-	private static DefaultTableModel tableModel = null;
-	private static long lastTableUpdateMillis = 0;
-	private static Connection connection = null;
+	private static CompletableFuture<AccountStore> store = null;
+	private static CachingAccountRepository accounts = null;
+	private static AccountSearchIndex searchIndex = null;
 
-	private static Connection newConnection() throws SQLException {
-		if (connection == null || connection.isClosed()) {
-			if (connection != null) {
-				connection.close();
-			}
-			String url = "jdbc:mysql://" + Env.get("DB_HOST") + ":" + Env.get("DB_PORT") + "/" + Env.get("DB_NAME") + "?useSSL=true";
-			connection = DriverManager.getConnection(url, Env.get("DB_USER"), Env.get("DB_PASSWORD"));
-		}
-		return connection;
-	}
-	private static void getStudentSnippet() throws SQLException {
-		Connection conn = newConnection();
-		Statement stmt = conn.createStatement();
-		ResultSet result = stmt.executeQuery("SELECT * FROM StudentSnippet");
-		while (result.next()) {
-			tableModel.addRow(new String[] {
-				result.getString("username"),
-				"\u2022\u2022\u2022\u2022\u2022\u2022\u2022\u2022", // Dots to censor password
-				result.getString("first_name"),
-				result.getString("last_name"),
-				result.getString("email"),
-				result.getString("phone_number"),
-				result.getString("notes"),
-			});
-		}
-		conn.close();
-	}
-	private static void setStringNullable(PreparedStatement stmt, int pos, String str) throws SQLException {
-		if (str != null && str.trim().length() > 0) {
-			stmt.setString(pos, str);
-		} else {
-			stmt.setNull(pos, java.sql.Types.VARCHAR);
-		}
-	}
-	
 	/**
-     * Sets the JTable that will be used to display account data.
+     * Starts opening the store chosen with STORAGE_BACKEND in the .env file on a
+     * data access thread, see {@link AccountStore}. Opening the embedded store
+     * replays its log, so the EDT must not wait for it. Later calls return the
+     * same future.
      * 
-     * @param table the JTable instance.
+     * @return the future store. It fails with the IOException if the store cannot be opened.
      */
-	public static void setAccountTable(JTable table) {
-		tableAccounts = table;
-		tableModel = (DefaultTableModel) tableAccounts.getModel();
+	public static synchronized CompletableFuture<AccountStore> openAccountStore() {
+		if (store == null)
+			store = AsyncDataAccess.supply(AccountStore::fromEnv);
+		return store;
 	}
-
 	/**
-     * Returns the table model for the accounts table.
+     * Returns the store the accounts are kept in, and waits for it to be opened,
+     * see {@link #openAccountStore()}. Not to be called on the EDT before the
+     * store is open.
      * 
-     * @return the DefaultTableModel for the account JTable.
+     * @return the account store.
+     * @throws UncheckedIOException if the store cannot be opened.
      */
-	public static DefaultTableModel getAccountTableModel() { return tableModel; }
-
+	public static AccountStore getAccountStore() {
+		try {
+			return openAccountStore().join();
+		} catch (CompletionException e) {
+			Throwable cause = AsyncDataAccess.unwrap(e);
+			throw (cause instanceof IOException) ? new UncheckedIOException((IOException) cause)
+					: new UncheckedIOException(new IOException(cause));
+		}
+	}
 	/**
-     * Triggers a refresh of the account table if enough time has passed since the last update.
+     * Returns the repository that loads and stores the accounts. Active accounts
+     * are cached for logins, see {@link CachingAccountRepository}. The cache holds
+     * ACCOUNT_CACHE_SIZE usernames (4096 by default) for ACCOUNT_CACHE_TTL_SECONDS
+     * (60 by default) from the .env file.
+     * 
+     * @return the account repository.
      */
-	public static void updateAccountTable() {
-		updateAccountTable(false);
+	public static synchronized CachingAccountRepository getAccountRepository() {
+		if (accounts == null)
+			accounts = new CachingAccountRepository(getAccountStore().getAccountRepository(),
+					Env.getInt("ACCOUNT_CACHE_SIZE", 4096), Env.getInt("ACCOUNT_CACHE_TTL_SECONDS", 60) * 1000L);
+		return accounts;
 	}
-
 	/**
-     * Updates the JTable displaying account data, optionally forcing the update.
+     * Returns the index the account search runs on, and starts loading it on
+     * first use. It follows every change made through the account repository.
      * 
-     * @param forceUpdate true to bypass update throttling.
+     * @return the account search index.
      */
-	public static void updateAccountTable(boolean forceUpdate) {
-		if (!forceUpdate && System.currentTimeMillis() - lastTableUpdateMillis < TABLE_UPDATE_MILLISECONDS_LIMIT)
-			return;
-		
-		// To fix JTable flickering...
-		// https://forums.oracle.com/ords/apexds/post/jtable-flickering-when-updated-4725
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					while (tableModel.getRowCount() > 0) {
-						tableModel.removeRow(0);
-					}
-					getStudentSnippet();
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
-		});
-		
-		if (!forceUpdate)
-			lastTableUpdateMillis = System.currentTimeMillis();
+	public static synchronized AccountSearchIndex getAccountSearchIndex() {
+		if (searchIndex == null) {
+			searchIndex = new AccountSearchIndex(getAccountRepository());
+			getAccountRepository().addChangeListener(searchIndex);
+			searchIndex.load().exceptionally(error -> {
+				AsyncDataAccess.showError(error);
+				return null;
+			});
+		}
+		return searchIndex;
 	}
-
 	/**
-     * Finds and returns an Account object by its username.
+     * Loads the accounts of a class roster into the account cache, so the logins
+     * at the start of the class do not have to wait for the database. The roster
+     * is a text file with one username per line; lines starting with '#' are ignored.
+     * The accounts stay cached for ROSTER_CACHE_TTL_SECONDS (3600 by default) from
+     * the .env file rather than for the usual time, so they are still there when
+     * the class starts.
      * 
-     * @param username the username to search for.
-     * @return the matching Account object, or null if not found.
+     * @param roster the roster file.
      */
-	public static Account getAccountByUsername(String username) {
-		Account account = null;
+	public static void prefetchRoster(Path roster) {
 		try {
-			Connection conn = newConnection();
-			PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Students WHERE username = ?");
-			stmt.setString(1, username);
-			ResultSet result = stmt.executeQuery();
-			while (result.next()) {
-				account = new Account(result.getLong("student_id"),
-						result.getString("username"),
-						result.getString("password"),
-						result.getString("first_name"),
-						result.getString("last_name"),
-						result.getString("email"),
-						result.getString("phone_number"),
-						result.getString("notes"));
+			ArrayList<String> usernames = new ArrayList<String>();
+			for (String line : Files.readAllLines(roster, StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#"))
+					usernames.add(line);
 			}
-			conn.close();
-		} catch (Exception e) {
+			int found = getAccountRepository().prefetch(usernames,
+					Env.getInt("ROSTER_CACHE_TTL_SECONDS", 3600) * 1000L);
+			System.out.println("Prefetched " + found + " of " + usernames.size() + " accounts from " + roster);
+		} catch (IOException | SQLException | UncheckedIOException e) {
 			e.printStackTrace();
 		}
-		return account;
+	}
+	/**
+     * Prefetches the roster set with CLASS_ROSTER_FILE in the .env file in the
+     * background, if there is one.
+     */
+	public static void prefetchConfiguredRoster() {
+		String roster = Env.get("CLASS_ROSTER_FILE");
+		if (roster == null || roster.trim().isEmpty())
+			return;
+		Thread thread = new Thread(() -> prefetchRoster(Paths.get(roster.trim())), "RosterPrefetch");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	/**
+     * Finds an Account object by its username on a data access thread.
+     * 
+     * @param username the username to search for.
+     * @return the future matching Account object, or null if not found.
+     */
+	public static CompletableFuture<Account> findAccountByUsername(String username) {
+		return AsyncDataAccess.supply(() -> getAccountRepository().findByUsername(username));
 	}
 
 	/**
-     * Finds and returns an active Account object by its username.
+     * Finds and returns an active Account object by its username. This waits
+     * for the database, so it must not be called on the EDT.
      * 
      * @param username the username to search for.
      * @return the matching Account object, or null if not found.
      */
 	public static Account getActiveAccountByUsername(String username) {
-		Account account = null;
 		try {
-			Connection conn = newConnection();
-			PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Students WHERE username = ? AND is_active = 1");
-			stmt.setString(1, username);
-			ResultSet result = stmt.executeQuery();
-			while (result.next()) {
-				account = new Account(result.getLong("student_id"),
-						result.getString("username"),
-						result.getString("password"),
-						result.getString("first_name"),
-						result.getString("last_name"),
-						result.getString("email"),
-						result.getString("phone_number"),
-						result.getString("notes"));
-			}
-			conn.close();
+			return getAccountRepository().findActiveByUsername(username);
 		} catch (Exception e) {
 			e.printStackTrace();
+			return null;
 		}
-		return account;
 	}
 
 	/**
-     * Removes an account from the database.
+     * Removes an account from the database on a data access thread.
      * 
-     * @param account the account to remove.
+     * @param username the username of the account to remove.
+     * @return a future that completes when the account is removed.
      */
-	public static void removeAccount(Account account) {
-		try {
-			Connection conn = newConnection();
-			PreparedStatement stmt = conn.prepareStatement("UPDATE Students SET is_active = 0 WHERE username = ?");
-			setStringNullable(stmt, 1, account.getUsername());
-			int result = stmt.executeUpdate();
-			if (result == 0) {
-				conn.close();
-				throw new SQLException("Error removing account.");
-			}
-			conn.close();
-		} catch (SQLException e) {
-			JOptionPane.showMessageDialog(null, "Database error: " + e.getLocalizedMessage(),
-					e.getClass().getSimpleName(), JOptionPane.ERROR_MESSAGE);
-			e.printStackTrace();
-		}
+	public static CompletableFuture<Void> removeAccount(String username) {
+		return AsyncDataAccess.run(() -> getAccountRepository().deactivate(username));
 	}
 
 	/**
-     * Adds a new account to the database.
+     * Adds a new account to the database on a data access thread.
      * 
      * @param account the new account to add.
+     * @return a future that completes when the account is stored.
      */
-	public static void createNewAccount(Account account) {
-		try {
-			Connection conn = newConnection();
-			PreparedStatement stmt = conn.prepareStatement(
-					"INSERT INTO Students(first_name, last_name, email, phone_number,"
-					+ "username, password, notes) VALUES (?, ?, ?, ?, ?, ?, ?)");
-			setStringNullable(stmt, 1, account.getFirstName());
-			setStringNullable(stmt, 2, account.getLastName());
-			setStringNullable(stmt, 3, account.getEmail());
-			setStringNullable(stmt, 4, account.getPhoneNumber());
-			setStringNullable(stmt, 5, account.getUsername());
-			setStringNullable(stmt, 6, account.getEncodedPassword());
-			setStringNullable(stmt, 7, account.getNotes());
-			int result = stmt.executeUpdate();
-			if (result == 0) {
-				conn.close();
-				throw new SQLException("Error creating account.");
-			}
-			conn.close();
-		} catch (SQLException e) {
-			JOptionPane.showMessageDialog(null, "Database error: " + e.getLocalizedMessage(),
-					e.getClass().getSimpleName(), JOptionPane.ERROR_MESSAGE);
-			e.printStackTrace();
-		}
+	public static CompletableFuture<Void> createNewAccount(Account account) {
+		return AsyncDataAccess.run(() -> getAccountRepository().create(account));
 	}
 
 	/**
-     * Updates the username of an existing account.
+     * Updates the data of an existing account on a data access thread, and
+     * renames it in the same change if its username has changed.
      * 
-     * @param updatedAccount the account with the new username.
-     * @param oldUsername the previous username.
+     * @param account the account with the new data.
+     * @param oldUsername the username the account is stored with.
+     * @return a future that completes when the account is updated.
      */
-	public static void updateAccountUsername(Account updatedAccount, String oldUsername) {
-		try {
-			Connection conn = newConnection();
-			PreparedStatement stmt = conn.prepareStatement("UPDATE Students SET username = ? WHERE username = ?");
-			setStringNullable(stmt, 0, updatedAccount.getUsername());
-			setStringNullable(stmt, 1, oldUsername);
-			int result = stmt.executeUpdate();
-			if (result == 0) {
-				conn.close();
-				throw new SQLException("Error removing account.");
-			}
-			conn.close();
-		} catch (SQLException e) {
-			JOptionPane.showMessageDialog(null, "Database error: " + e.getLocalizedMessage(),
-					e.getClass().getSimpleName(), JOptionPane.ERROR_MESSAGE);
-			e.printStackTrace();
-		}
+	public static CompletableFuture<Void> updateAccount(Account account, String oldUsername) {
+		return AsyncDataAccess.run(() -> getAccountRepository().update(oldUsername, account));
+	}
+	
+	/**
+     * Imports the accounts of a CSV file on a data access thread, see {@link AccountCsv}.
+     * Accounts are sent to the database in batches of IMPORT_BATCH_SIZE (1000 by
+     * default) from the .env file.
+     * 
+     * @param csv the file to import.
+     * @return the future result of the import.
+     */
+	public static CompletableFuture<AccountCsv.ImportResult> importAccounts(Path csv) {
+		return AsyncDataAccess.supply(() -> AccountCsv.importAccounts(csv, getAccountRepository(),
+				Math.max(1, Env.getInt("IMPORT_BATCH_SIZE", 1000))));
 	}
 
 	/**
-     * Updates the data of an existing account.
+     * Exports the active accounts to a CSV file on a data access thread, with
+     * their encoded passwords so it can be imported again, see {@link AccountCsv}.
      * 
-     * @param account the account to update.
+     * @param csv the file to write.
+     * @return the future number of exported accounts.
      */
-	public static void updateAccount(Account account) {
-		try {
-			Connection conn = newConnection();
-			PreparedStatement stmt;
-			if (account.getEncodedPassword() == null || account.getEncodedPassword().trim().length() == 0) {
-				stmt = conn.prepareStatement(
-						"UPDATE Students SET first_name = ?, last_name = ?,"
-						+ "email = ?, phone_number = ?, username = ?,"
-						+ "notes = ? WHERE username = ?");
-				setStringNullable(stmt, 1, account.getFirstName());
-				setStringNullable(stmt, 2, account.getLastName());
-				setStringNullable(stmt, 3, account.getEmail());
-				setStringNullable(stmt, 4, account.getPhoneNumber());
-				setStringNullable(stmt, 5, account.getUsername());
-				setStringNullable(stmt, 6, account.getNotes());
-				setStringNullable(stmt, 7, account.getUsername());
-			} else {
-				stmt = conn.prepareStatement(
-						"UPDATE Students SET first_name = ?, last_name = ?,"
-						+ "email = ?, phone_number = ?, username = ?,"
-						+ "password = ?, notes = ? WHERE username = ?");
-				setStringNullable(stmt, 1, account.getFirstName());
-				setStringNullable(stmt, 2, account.getLastName());
-				setStringNullable(stmt, 3, account.getEmail());
-				setStringNullable(stmt, 4, account.getPhoneNumber());
-				setStringNullable(stmt, 5, account.getUsername());
-				setStringNullable(stmt, 6, account.getEncodedPassword());
-				setStringNullable(stmt, 7, account.getNotes());
-				setStringNullable(stmt, 8, account.getUsername());
-			}
-			int result = stmt.executeUpdate();
-			if (result == 0) {
-				conn.close();
-				throw new SQLException("Error creating account.");
-			}
-			conn.close();
-		} catch (SQLException e) {
-			JOptionPane.showMessageDialog(null, "Database error: " + e.getLocalizedMessage(),
-					e.getClass().getSimpleName(), JOptionPane.ERROR_MESSAGE);
-			e.printStackTrace();
-		}
+	public static CompletableFuture<Integer> exportAccounts(Path csv) {
+		return AsyncDataAccess.supply(() -> AccountCsv.exportAccounts(csv, getAccountRepository()));
 	}
 	
 	private static String serializeAccount(Account account) {
@@ -0,0 +1,234 @@
+package acim.data;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import acim.data.structure.*;
+
+/**
+ * DomainAnalytics keeps streaming statistics of the domains that clients
+ * report, to show which domains are queried and which bans are hit.
+ *
+ * Queries are counted per machine, and ban hits per machine and per account,
+ * with {@link LongAdder}s, which are striped internally so that client threads
+ * do not contend. The most frequent queried domains and banned domains are
+ * tracked over a sliding window of one hour with {@link HeavyHitters}. Memory
+ * is bounded: the window uses fixed-size sketches, and only a limited number
+ * of machines and accounts get their own counters.
+ *
+ * Clients only report the domains that their filter flags as possibly banned,
+ * so those can be checked against the ban list. Along with them, each client
+ * sends how many queries it answered in total and its most queried domains
+ * among all of them, which it counts in bounded memory. Those per-client
+ * rankings are merged into the queried domains, so the ranking covers what
+ * students actually visit, not just what is flagged.
+ *
+ * The statistics are shown with the "Domain Statistics" button of the
+ * computer manager, see {@link #getSnapshot(int, int)}.
+ */
+public class DomainAnalytics {
+	private static final long BUCKET_MILLIS = 5 * 60 * 1000;
+	private static final int BUCKET_COUNT = 12;
+	private static final int TOP_COUNT = 100;
+	private static final int SKETCH_WIDTH = 2048;
+	private static final int SKETCH_DEPTH = 4;
+	private static final int MAXIMUM_TRACKED_KEYS = 4096;
+	private static final String OTHER_KEY = "(other)";
+
+	private static final HeavyHitters queriedDomains = new HeavyHitters(BUCKET_COUNT, BUCKET_MILLIS, TOP_COUNT,
+			SKETCH_WIDTH, SKETCH_DEPTH);
+	private static final HeavyHitters bannedDomains = new HeavyHitters(BUCKET_COUNT, BUCKET_MILLIS, TOP_COUNT,
+			SKETCH_WIDTH, SKETCH_DEPTH);
+	private static final ConcurrentHashMap<String, LongAdder> queriesByMachine = new ConcurrentHashMap<String, LongAdder>();
+	private static final ConcurrentHashMap<String, LongAdder> banHitsByMachine = new ConcurrentHashMap<String, LongAdder>();
+	private static final ConcurrentHashMap<String, LongAdder> banHitsByAccount = new ConcurrentHashMap<String, LongAdder>();
+	private static final LongAdder totalQueries = new LongAdder();
+	private static final LongAdder totalBanHits = new LongAdder();
+
+	/**
+	 * A consistent copy of the statistics, for showing or exporting them.
+	 */
+	public static class Snapshot {
+		private final int windowMinutes;
+		private final long windowQueries;
+		private final long windowBanHits;
+		private final long totalQueries;
+		private final long totalBanHits;
+		private final List<HeavyHitters.Entry> topQueried;
+		private final List<HeavyHitters.Entry> topBanned;
+		private final Map<String, Long> queriesByMachine;
+		private final Map<String, Long> banHitsByMachine;
+		private final Map<String, Long> banHitsByAccount;
+
+		private Snapshot(int windowMinutes, long windowQueries, long windowBanHits, long totalQueries,
+				long totalBanHits, List<HeavyHitters.Entry> topQueried, List<HeavyHitters.Entry> topBanned,
+				Map<String, Long> queriesByMachine, Map<String, Long> banHitsByMachine,
+				Map<String, Long> banHitsByAccount) {
+			this.windowMinutes = windowMinutes;
+			this.windowQueries = windowQueries;
+			this.windowBanHits = windowBanHits;
+			this.totalQueries = totalQueries;
+			this.totalBanHits = totalBanHits;
+			this.topQueried = topQueried;
+			this.topBanned = topBanned;
+			this.queriesByMachine = queriesByMachine;
+			this.banHitsByMachine = banHitsByMachine;
+			this.banHitsByAccount = banHitsByAccount;
+		}
+
+		public int getWindowMinutes() { return windowMinutes; }
+		/**
+		 * @return the queries in the window, as counted by the clients' domain rankings.
+		 */
+		public long getWindowQueries() { return windowQueries; }
+		public long getWindowBanHits() { return windowBanHits; }
+		/**
+		 * @return all DNS queries the clients answered since startup.
+		 */
+		public long getTotalQueries() { return totalQueries; }
+		public long getTotalBanHits() { return totalBanHits; }
+
+		/**
+		 * @return the most queried domains in the window with their estimated counts, most frequent first.
+		 */
+		public List<HeavyHitters.Entry> getTopQueried() { return topQueried; }
+
+		/**
+		 * @return the most hit banned domains in the window with their estimated counts, most frequent first.
+		 */
+		public List<HeavyHitters.Entry> getTopBanned() { return topBanned; }
+
+		/**
+		 * @return all DNS queries since startup per machine IP address, most queries first.
+		 */
+		public Map<String, Long> getQueriesByMachine() { return queriesByMachine; }
+
+		/**
+		 * @return the ban hits since startup per machine IP address, most hits first.
+		 */
+		public Map<String, Long> getBanHitsByMachine() { return banHitsByMachine; }
+
+		/**
+		 * @return the ban hits since startup per account username, most hits first.
+		 */
+		public Map<String, Long> getBanHitsByAccount() { return banHitsByAccount; }
+
+		/**
+		 * @return the statistics as text, one count per line.
+		 */
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("Since startup: ").append(totalQueries).append(" queries, ").append(totalBanHits)
+					.append(" ban hits\n");
+			appendCounts(builder, "Queries per machine", queriesByMachine.entrySet());
+			appendCounts(builder, "Ban hits per machine", banHitsByMachine.entrySet());
+			appendCounts(builder, "Ban hits per account", banHitsByAccount.entrySet());
+			builder.append("\nLast ").append(windowMinutes).append(" minutes: ").append(windowQueries)
+					.append(" queries, ").append(windowBanHits).append(" ban hits\n");
+			appendCounts(builder, "Top queried domains", topQueried);
+			appendCounts(builder, "Top banned domains", topBanned);
+			return builder.toString();
+		}
+
+		private static void appendCounts(StringBuilder builder, String title, Collection<?> counts) {
+			builder.append("  ").append(title).append(':').append(counts.isEmpty() ? " none\n" : "\n");
+			for (Object count : counts)
+				builder.append("    ").append(count).append('\n');
+		}
+	}
+
+	/**
+	 * Records the queries of a client, the domains it reported and the ones that were banned.
+	 *
+	 * @param machineAddress the client's IP address.
+	 * @param username the logged-in account, or null if nobody is logged in.
+	 * @param queryCount how many DNS queries the client answered, reported or not.
+	 * @param resolved the client's most queried domains among all its queries, and how often each was queried.
+	 * @param queries the reported domains and how often each was queried.
+	 * @param banned the reported domains that were banned.
+	 */
+	public static void record(String machineAddress, String username, long queryCount, Map<String, Integer> resolved,
+			Map<String, Integer> queries, Collection<String> banned) {
+		long now = System.currentTimeMillis();
+		if (queryCount > 0) {
+			totalQueries.add(queryCount);
+			counter(queriesByMachine, machineAddress).add(queryCount);
+		}
+		if (!resolved.isEmpty()) {
+			HashMap<String, Long> counts = new HashMap<String, Long>();
+			for (Map.Entry<String, Integer> query : resolved.entrySet())
+				counts.merge(normalize(query.getKey()), (long) query.getValue(), Long::sum);
+			queriedDomains.addAll(counts, now);
+		}
+		if (banned.isEmpty())
+			return;
+
+		long hits = 0;
+		HashMap<String, Long> counts = new HashMap<String, Long>();
+		for (String domain : banned) {
+			Integer count = queries.get(domain);
+			long times = (count == null) ? 1 : count;
+			counts.merge(normalize(domain), times, Long::sum);
+			hits += times;
+		}
+		bannedDomains.addAll(counts, now);
+		totalBanHits.add(hits);
+		counter(banHitsByMachine, machineAddress).add(hits);
+		if (username != null && !username.isEmpty())
+			counter(banHitsByAccount, username).add(hits);
+	}
+
+	private static LongAdder counter(ConcurrentHashMap<String, LongAdder> counters, String key) {
+		LongAdder counter = counters.get(key);
+		if (counter != null)
+			return counter;
+		// Once the limit is reached, new keys share one counter.
+		if (counters.size() >= MAXIMUM_TRACKED_KEYS)
+			key = OTHER_KEY;
+		return counters.computeIfAbsent(key, k -> new LongAdder());
+	}
+
+	private static String normalize(String domain) {
+		String normalized = domain.toLowerCase(Locale.ROOT);
+		return normalized.endsWith(".") ? normalized.substring(0, normalized.length() - 1) : normalized;
+	}
+
+	/**
+	 * Takes a snapshot of the statistics.
+	 *
+	 * @param windowMinutes how many of the last minutes the domain rankings cover,
+	 * rounded up to 5 minutes and limited to one hour.
+	 * @param limit the maximum number of domains per ranking.
+	 * @return the snapshot.
+	 */
+	public static Snapshot getSnapshot(int windowMinutes, int limit) {
+		long now = System.currentTimeMillis();
+		int bucketMinutes = (int) (BUCKET_MILLIS / 60000);
+		int windowBuckets = Math.max(1, Math.min(BUCKET_COUNT, (windowMinutes + bucketMinutes - 1) / bucketMinutes));
+		return new Snapshot(windowBuckets * bucketMinutes, queriedDomains.getTotal(windowBuckets, now),
+				bannedDomains.getTotal(windowBuckets, now), totalQueries.sum(), totalBanHits.sum(),
+				queriedDomains.getTop(windowBuckets, limit, now), bannedDomains.getTop(windowBuckets, limit, now),
+				sortedCounts(queriesByMachine), sortedCounts(banHitsByMachine), sortedCounts(banHitsByAccount));
+	}
+
+	private static Map<String, Long> sortedCounts(ConcurrentHashMap<String, LongAdder> counters) {
+		ArrayList<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>();
+		for (Map.Entry<String, LongAdder> counter : counters.entrySet())
+			entries.add(new AbstractMap.SimpleEntry<String, Long>(counter.getKey(), counter.getValue().sum()));
+		entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+		LinkedHashMap<String, Long> sorted = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Long> entry : entries)
+			sorted.put(entry.getKey(), entry.getValue());
+		return Collections.unmodifiableMap(sorted);
+	}
+
+	/**
+	 * @return the approximate heap memory used by the domain sketches, in bytes.
+	 */
+	public static long estimateMemoryBytes() {
+		return queriedDomains.estimateMemoryBytes() + bannedDomains.estimateMemoryBytes();
+	}
+}
@@ -29,4 +29,22 @@ public class Env {
 	public static String get(String key) {
 		return envMap.get(key);
 	}
+	/**
+	 * Reads a whole number setting.
+	 *
+	 * @param key the setting.
+	 * @param defaultValue the value if the setting is missing or not a number.
+	 * @return the value of the setting, or the default value.
+	 */
+	public static int getInt(String key, int defaultValue) {
+		String value = get(key);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
 }
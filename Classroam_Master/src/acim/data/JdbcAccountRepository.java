@@ -0,0 +1,375 @@
+package acim.data;
+
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+
+import javax.sql.*;
+
+/**
+ * An {@link AccountRepository} on the MySQL database.
+ *
+ * Queries name the columns they need instead of "SELECT *", so the server
+ * only sends those, and every row is turned into an Account by the same
+ * mapper. Each query borrows a connection from the data source and uses
+ * the same SQL every time, so a {@link ConnectionPool} can reuse its
+ * prepared statements.
+ *
+ * Balances of computer time are kept in an available_seconds BIGINT column
+ * of Students, which is NULL for accounts without a limit. Schemas from before
+ * balances do not have it; then every account has no limit until the column
+ * is added with {@link #ADD_BALANCE_COLUMN}.
+ */
+public class JdbcAccountRepository implements AccountRepository {
+	private static final String ACCOUNT_COLUMNS = "student_id, username, password, first_name, last_name, email, "
+			+ "phone_number, notes";
+	private static final String SNIPPET_COLUMNS = "username, first_name, last_name, email, phone_number, notes";
+
+	private static final String FIND_BY_USERNAME = "SELECT " + ACCOUNT_COLUMNS + " FROM Students WHERE username = ?";
+	private static final String FIND_ACTIVE_BY_USERNAME = "SELECT " + ACCOUNT_COLUMNS
+			+ " FROM Students WHERE username = ? AND is_active = 1";
+	// Batched lookups always bind this many usernames, so they share one prepared statement.
+	private static final int BATCH_SIZE = 50;
+	private static final String FIND_ACTIVE_BY_USERNAMES = "SELECT " + ACCOUNT_COLUMNS
+			+ " FROM Students WHERE is_active = 1 AND username IN ("
+			+ String.join(", ", Collections.nCopies(BATCH_SIZE, "?")) + ")";
+	private static final String FIND_EXISTING_USERNAMES = "SELECT username FROM Students WHERE username IN ("
+			+ String.join(", ", Collections.nCopies(BATCH_SIZE, "?")) + ")";
+	private static final String FIND_SORTED_ACTIVE = "SELECT " + ACCOUNT_COLUMNS
+			+ " FROM Students WHERE is_active = 1 ORDER BY username";
+	private static final String FIND_SNIPPETS = "SELECT " + SNIPPET_COLUMNS + " FROM StudentSnippet";
+	private static final String FIND_SORTED_SNIPPETS = FIND_SNIPPETS + " ORDER BY username";
+	// Rows fetched per round trip when streaming; needs useCursorFetch on the connection.
+	private static final int STREAM_FETCH_SIZE = 1000;
+	private static final String FIND_SNIPPET = "SELECT " + SNIPPET_COLUMNS + " FROM StudentSnippet WHERE username = ?";
+	private static final String COUNT_SNIPPETS = "SELECT COUNT(*) FROM StudentSnippet";
+	// Every pageSize-th username in order, found in one pass over the username index.
+	private static final String FIND_SNIPPET_PAGE_KEYS = "SELECT username FROM (SELECT username, "
+			+ "ROW_NUMBER() OVER (ORDER BY username) AS position FROM StudentSnippet) numbered "
+			+ "WHERE MOD(position - 1, ?) = 0 ORDER BY username";
+	// Keyset pagination: seek to the first username of the page instead of skipping rows with OFFSET.
+	private static final String FIND_SNIPPET_PAGE = "SELECT " + SNIPPET_COLUMNS
+			+ " FROM StudentSnippet WHERE username >= ? ORDER BY username LIMIT ?";
+	private static final String FIND_FIRST_SNIPPET_PAGE = "SELECT " + SNIPPET_COLUMNS
+			+ " FROM StudentSnippet ORDER BY username LIMIT ?";
+	private static final String INSERT = "INSERT INTO Students(first_name, last_name, email, phone_number, "
+			+ "username, password, notes) VALUES (?, ?, ?, ?, ?, ?, ?)";
+	private static final String UPDATE = "UPDATE Students SET first_name = ?, last_name = ?, email = ?, "
+			+ "phone_number = ?, username = ?, notes = ? WHERE username = ?";
+	private static final String UPDATE_WITH_PASSWORD = "UPDATE Students SET first_name = ?, last_name = ?, "
+			+ "email = ?, phone_number = ?, username = ?, password = ?, notes = ? WHERE username = ?";
+	private static final String DEACTIVATE = "UPDATE Students SET is_active = 0 WHERE username = ?";
+	private static final String FIND_AVAILABLE_SECONDS = "SELECT available_seconds FROM Students WHERE username = ?";
+	// Adding to NULL (no limit) starts from zero, and a balance never goes below zero.
+	private static final String ADD_AVAILABLE_SECONDS = "UPDATE Students SET available_seconds = "
+			+ "GREATEST(COALESCE(available_seconds, 0) + ?, 0) WHERE username = ?";
+	/**
+	 * The migration that adds balances to a schema from before them.
+	 */
+	public static final String ADD_BALANCE_COLUMN = "ALTER TABLE Students ADD COLUMN available_seconds BIGINT NULL";
+	// MySQL's SQL state for an unknown column.
+	private static final String UNKNOWN_COLUMN_STATE = "42S22";
+
+	private final DataSource dataSource;
+	// Cleared once a query finds no available_seconds column, so logins stop asking for it.
+	private volatile boolean hasBalanceColumn = true;
+
+	/**
+	 * Turns the current row of a result set into an object.
+	 */
+	public interface RowMapper<T> {
+		T map(ResultSet row) throws SQLException;
+	}
+
+	/**
+	 * Maps a row with the {@link #ACCOUNT_COLUMNS}.
+	 */
+	public static final RowMapper<Account> ACCOUNT_MAPPER = row -> new Account(row.getLong(1), row.getString(2),
+			row.getString(3), row.getString(4), row.getString(5), row.getString(6), row.getString(7),
+			row.getString(8));
+
+	/**
+	 * Maps a row with the {@link #SNIPPET_COLUMNS}, which have no id or password.
+	 */
+	public static final RowMapper<Account> SNIPPET_MAPPER = row -> new Account(0, row.getString(1), null,
+			row.getString(2), row.getString(3), row.getString(4), row.getString(5), row.getString(6));
+
+	/**
+	 * @param dataSource where connections are borrowed from, usually a {@link ConnectionPool}.
+	 */
+	public JdbcAccountRepository(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	@Override
+	public Account findByUsername(String username) throws SQLException {
+		return queryOne(FIND_BY_USERNAME, username, ACCOUNT_MAPPER);
+	}
+
+	@Override
+	public Account findActiveByUsername(String username) throws SQLException {
+		return queryOne(FIND_ACTIVE_BY_USERNAME, username, ACCOUNT_MAPPER);
+	}
+
+	@Override
+	public List<Account> findActiveByUsernames(Collection<String> usernames) throws SQLException {
+		return queryInBatches(FIND_ACTIVE_BY_USERNAMES, usernames, ACCOUNT_MAPPER);
+	}
+
+	@Override
+	public Set<String> findExistingUsernames(Collection<String> usernames) throws SQLException {
+		return new HashSet<String>(queryInBatches(FIND_EXISTING_USERNAMES, usernames, row -> row.getString(1)));
+	}
+
+	@Override
+	public List<Account> findSnippets() throws SQLException {
+		ArrayList<Account> accounts = new ArrayList<Account>();
+		try (Connection conn = dataSource.getConnection();
+				PreparedStatement stmt = conn.prepareStatement(FIND_SNIPPETS);
+				ResultSet result = stmt.executeQuery()) {
+			while (result.next())
+				accounts.add(SNIPPET_MAPPER.map(result));
+		}
+		return accounts;
+	}
+
+	@Override
+	public int forEachSnippet(Consumer<Account> action) throws SQLException {
+		return forEach(FIND_SORTED_SNIPPETS, SNIPPET_MAPPER, action);
+	}
+
+	@Override
+	public int forEachActive(Consumer<Account> action) throws SQLException {
+		return forEach(FIND_SORTED_ACTIVE, ACCOUNT_MAPPER, action);
+	}
+
+	private int forEach(String sql, RowMapper<Account> mapper, Consumer<Account> action) throws SQLException {
+		int count = 0;
+		try (Connection conn = dataSource.getConnection();
+				PreparedStatement stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+						ResultSet.CONCUR_READ_ONLY)) {
+			stmt.setFetchSize(STREAM_FETCH_SIZE);
+			try (ResultSet result = stmt.executeQuery()) {
+				while (result.next()) {
+					action.accept(mapper.map(result));
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public Account findSnippet(String username) throws SQLException {
+		return queryOne(FIND_SNIPPET, username, SNIPPET_MAPPER);
+	}
+
+	@Override
+	public int countSnippets() throws SQLException {
+		try (Connection conn = dataSource.getConnection();
+				PreparedStatement stmt = conn.prepareStatement(COUNT_SNIPPETS);
+				ResultSet result = stmt.executeQuery()) {
+			return result.next() ? result.getInt(1) : 0;
+		}
+	}
+
+	@Override
+	public List<String> findSnippetPageKeys(int pageSize) throws SQLException {
+		ArrayList<String> keys = new ArrayList<String>();
+		try (Connection conn = dataSource.getConnection();
+				PreparedStatement stmt = conn.prepareStatement(FIND_SNIPPET_PAGE_KEYS)) {
+			stmt.setInt(1, pageSize);
+			try (ResultSet result = stmt.executeQuery()) {
+				while (result.next())
+					keys.add(result.getString(1));
+			}
+		}
+		return keys;
+	}
+
+	@Override
+	public List<Account> findSnippetPage(String fromUsername, int limit) throws SQLException {
+		ArrayList<Account> accounts = new ArrayList<Account>();
+		try (Connection conn = dataSource.getConnection();
+				PreparedStatement stmt = conn.prepareStatement(
+						(fromUsername == null) ? FIND_FIRST_SNIPPET_PAGE : FIND_SNIPPET_PAGE)) {
+			if (fromUsername == null) {
+				stmt.setInt(1, limit);
+			} else {
+				stmt.setString(1, fromUsername);
+				stmt.setInt(2, limit);
+			}
+			try (ResultSet result = stmt.executeQuery()) {
+				while (result.next())
+					accounts.add(SNIPPET_MAPPER.map(result));
+			}
+		}
+		return accounts;
+	}
+
+	@Override
+	public void create(Account account) throws SQLException {
+		update(INSERT, "Error creating account.", account.getFirstName(), account.getLastName(), account.getEmail(),
+				account.getPhoneNumber(), account.getUsername(), account.getEncodedPassword(), account.getNotes());
+	}
+
+	@Override
+	public int createAll(List<Account> accounts, int batchSize) throws SQLException {
+		int created = 0;
+		try (Connection conn = dataSource.getConnection(); PreparedStatement stmt = conn.prepareStatement(INSERT)) {
+			conn.setAutoCommit(false);
+			int pending = 0;
+			for (Account account : accounts) {
+				setParameters(stmt, account.getFirstName(), account.getLastName(), account.getEmail(),
+						account.getPhoneNumber(), account.getUsername(), account.getEncodedPassword(),
+						account.getNotes());
+				stmt.addBatch();
+				if (++pending == batchSize) {
+					// With rewriteBatchedStatements, the batch is sent as a few multi-row INSERTs.
+					stmt.executeBatch();
+					conn.commit();
+					created += pending;
+					pending = 0;
+				}
+			}
+			if (pending > 0) {
+				stmt.executeBatch();
+				conn.commit();
+				created += pending;
+			}
+			conn.setAutoCommit(true);
+		}
+		return created;
+	}
+
+	@Override
+	public void update(String username, Account account) throws SQLException {
+		// The username is set by the same statement, so a rename is never applied alone.
+		if (account.getEncodedPassword() == null || account.getEncodedPassword().trim().length() == 0) {
+			update(UPDATE, "Error updating account.", account.getFirstName(), account.getLastName(),
+					account.getEmail(), account.getPhoneNumber(), account.getUsername(), account.getNotes(),
+					username);
+		} else {
+			update(UPDATE_WITH_PASSWORD, "Error updating account.", account.getFirstName(), account.getLastName(),
+					account.getEmail(), account.getPhoneNumber(), account.getUsername(),
+					account.getEncodedPassword(), account.getNotes(), username);
+		}
+	}
+
+	@Override
+	public void deactivate(String username) throws SQLException {
+		update(DEACTIVATE, "Error removing account.", username);
+	}
+
+	@Override
+	public Long findAvailableSeconds(String username) throws SQLException {
+		if (!hasBalanceColumn)
+			return null;
+		try {
+			return queryOne(FIND_AVAILABLE_SECONDS, username, row -> {
+				long seconds = row.getLong(1);
+				return row.wasNull() ? null : seconds;
+			});
+		} catch (SQLException e) {
+			if (!isMissingBalanceColumn(e))
+				throw e;
+			hasBalanceColumn = false;
+			System.out.println("Students has no available_seconds column, so accounts have no time limits. "
+					+ "Add it with: " + ADD_BALANCE_COLUMN);
+			return null;
+		}
+	}
+
+	private static boolean isMissingBalanceColumn(SQLException e) {
+		return e instanceof SQLSyntaxErrorException && UNKNOWN_COLUMN_STATE.equals(e.getSQLState());
+	}
+
+	@Override
+	public int addAvailableSeconds(Map<String, Long> seconds) throws SQLException {
+		if (seconds.isEmpty())
+			return 0;
+		if (!hasBalanceColumn)
+			throw new SQLException("Balances need the available_seconds column: " + ADD_BALANCE_COLUMN);
+		int updated = 0;
+		try (Connection conn = dataSource.getConnection();
+				PreparedStatement stmt = conn.prepareStatement(ADD_AVAILABLE_SECONDS)) {
+			conn.setAutoCommit(false);
+			try {
+				for (Map.Entry<String, Long> entry : seconds.entrySet()) {
+					stmt.setLong(1, entry.getValue());
+					stmt.setString(2, entry.getKey());
+					stmt.addBatch();
+				}
+				// All balances are written in one round trip and one transaction.
+				for (int count : stmt.executeBatch())
+					if (count != 0)
+						updated++;
+				conn.commit();
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				conn.setAutoCommit(true);
+			}
+		}
+		return updated;
+	}
+
+	private <T> T queryOne(String sql, String parameter, RowMapper<T> mapper) throws SQLException {
+		try (Connection conn = dataSource.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+			stmt.setString(1, parameter);
+			try (ResultSet result = stmt.executeQuery()) {
+				return result.next() ? mapper.map(result) : null;
+			}
+		}
+	}
+
+	/**
+	 * Runs a query with {@link #BATCH_SIZE} username parameters for every
+	 * {@link #BATCH_SIZE} usernames.
+	 */
+	private <T> List<T> queryInBatches(String sql, Collection<String> usernames, RowMapper<T> mapper)
+			throws SQLException {
+		ArrayList<T> rows = new ArrayList<T>();
+		ArrayList<String> remaining = new ArrayList<String>(new LinkedHashSet<String>(usernames));
+		if (remaining.isEmpty())
+			return rows;
+		try (Connection conn = dataSource.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+			for (int start = 0; start < remaining.size(); start += BATCH_SIZE) {
+				List<String> batch = remaining.subList(start, Math.min(start + BATCH_SIZE, remaining.size()));
+				// The last batch is padded by repeating its last username.
+				for (int i = 0; i < BATCH_SIZE; i++)
+					stmt.setString(i + 1, batch.get(Math.min(i, batch.size() - 1)));
+				try (ResultSet result = stmt.executeQuery()) {
+					while (result.next())
+						rows.add(mapper.map(result));
+				}
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Runs an update whose parameters are all strings, where blank strings are stored as NULL.
+	 */
+	private void update(String sql, String failureMessage, String... parameters) throws SQLException {
+		try (Connection conn = dataSource.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+			setParameters(stmt, parameters);
+			if (stmt.executeUpdate() == 0)
+				throw new SQLException(failureMessage);
+		}
+	}
+
+	private static void setParameters(PreparedStatement stmt, String... parameters) throws SQLException {
+		for (int i = 0; i < parameters.length; i++)
+			setStringNullable(stmt, i + 1, parameters[i]);
+	}
+
+	private static void setStringNullable(PreparedStatement stmt, int pos, String str) throws SQLException {
+		if (str != null && str.trim().length() > 0) {
+			stmt.setString(pos, str);
+		} else {
+			stmt.setNull(pos, Types.VARCHAR);
+		}
+	}
+}
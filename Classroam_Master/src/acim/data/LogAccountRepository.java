@@ -0,0 +1,706 @@
+package acim.data;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.zip.*;
+
+/**
+ * An embedded {@link AccountRepository} and {@link AccountStore} that keeps
+ * the accounts in memory and every change in an append-only log file, so the
+ * master can run without a database server.
+ *
+ * Each change appends the whole new state of the account as one record:
+ * its length, its id, whether it is active, its strings, its balance of
+ * seconds if it has a limit, and a CRC-32 checksum. Records without a
+ * balance are the same as before balances were added, so older logs load
+ * unchanged. Opening the store replays the log, where a later record of an
+ * id replaces the earlier one. Only the last record can have been partly
+ * written when the master stopped, so a damaged record with no whole record
+ * after it is cut off. A damaged record with whole records after it means the
+ * file itself is damaged; the store then refuses to open rather than cut off
+ * the accounts after it. The log is forced to
+ * disk after every change, and rewritten with only the current records when
+ * it has grown to {@link #COMPACTION_RATIO} times their size.
+ *
+ * While the store is open, it holds a {@link FileLock} on a ".lock" file next
+ * to the log, so a second master cannot write to the same log. The lock is not
+ * taken on the log itself, because Windows would then refuse to read it and to
+ * replace it on compaction.
+ *
+ * Lookups are answered from maps sorted by username, without case like the
+ * MySQL collation, and behave like {@link JdbcAccountRepository}: blank
+ * strings are stored as null, usernames are unique, and updates of unknown
+ * accounts fail with an SQLException. Reads share a lock, writes take it alone.
+ */
+public class LogAccountRepository implements AccountRepository, AccountStore {
+	private static final int MAGIC = 0x41434c47;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 8;
+	private static final int MAXIMUM_RECORD_BYTES = 16 << 20;
+	// An id, the active flag and seven null strings.
+	private static final int MINIMUM_RECORD_BYTES = 8 + 1 + 7 * 4;
+	// Compact when the log is this many times larger than its live records, and at least this large.
+	private static final int COMPACTION_RATIO = 2;
+	private static final long COMPACTION_MINIMUM_BYTES = 1 << 20;
+	private static final Comparator<String> USERNAME_ORDER = String.CASE_INSENSITIVE_ORDER;
+
+	/**
+	 * The current state of an account, and the size of its record in the log,
+	 * which is 0 for a state that is not written yet.
+	 */
+	private static class Entry {
+		private final Account account;
+		private final boolean active;
+		private final Long availableSeconds;
+		private final int recordBytes;
+
+		private Entry(Account account, boolean active, Long availableSeconds, int recordBytes) {
+			this.account = account;
+			this.active = active;
+			this.availableSeconds = availableSeconds;
+			this.recordBytes = recordBytes;
+		}
+	}
+
+	private final Path path;
+	private FileChannel channel;
+	private FileChannel lockChannel;
+	private FileLock fileLock;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final HashMap<Long, Entry> byId = new HashMap<Long, Entry>();
+	private final TreeMap<String, Entry> byUsername = new TreeMap<String, Entry>(USERNAME_ORDER);
+	private final TreeMap<String, Entry> active = new TreeMap<String, Entry>(USERNAME_ORDER);
+	private long nextId = 1;
+	private long logBytes, liveBytes;
+	private long appendedRecords, compactions;
+
+	private LogAccountRepository(Path path) {
+		this.path = path;
+	}
+
+	/**
+	 * Opens the store in a log file, and creates the file if it does not exist.
+	 *
+	 * @param path the log file.
+	 * @return the store, with the accounts of the log.
+	 * @throws IOException if the file cannot be read or is not an account log.
+	 */
+	public static LogAccountRepository open(Path path) throws IOException {
+		LogAccountRepository repository = new LogAccountRepository(path);
+		repository.load();
+		return repository;
+	}
+
+	private void load() throws IOException {
+		long startMillis = System.currentTimeMillis();
+		lock();
+		long validBytes = HEADER_BYTES;
+		try {
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			if (channel.size() == 0) {
+				writeHeader(channel);
+				channel.force(true);
+			}
+
+			long size = channel.size();
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+				if (size < HEADER_BYTES || in.readInt() != MAGIC || in.readInt() != VERSION)
+					throw new IOException(path + " is not an account log.");
+				while (validBytes < size) {
+					Entry entry = readRecord(in, validBytes, size);
+					if (entry == null)
+						break;
+					apply(entry);
+					validBytes += entry.recordBytes;
+				}
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+
+		if (channel.size() > validBytes) {
+			System.out.println("Cut off " + (channel.size() - validBytes) + " bytes of incomplete records at the end of "
+					+ path);
+			channel.truncate(validBytes);
+			channel.force(true);
+		}
+		channel.position(validBytes);
+		logBytes = validBytes;
+		System.out.println("Loaded " + byId.size() + " accounts from " + path + " in "
+				+ (System.currentTimeMillis() - startMillis) + " ms");
+
+		if (needsCompaction())
+			compact();
+	}
+
+	/**
+	 * Takes the lock file next to the log, so no other master opens the log.
+	 *
+	 * @throws IOException if the lock file cannot be created, or another master holds it.
+	 */
+	private void lock() throws IOException {
+		Path lockPath = path.resolveSibling(path.getFileName() + ".lock");
+		lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			fileLock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// This master has opened the log already.
+			fileLock = null;
+		}
+		if (fileLock == null) {
+			lockChannel.close();
+			lockChannel = null;
+			throw new IOException(path + " is in use by another master (" + lockPath + " is locked).");
+		}
+	}
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @param offset where the record starts in the log.
+	 * @param size the size of the log.
+	 * @return the record, or null if it is the last one and was only partly written.
+	 * @throws IOException if the record is damaged and is not the last one.
+	 */
+	private Entry readRecord(DataInputStream in, long offset, long size) throws IOException {
+		if (size - offset < 8)
+			return partial(offset, size);
+		int length = in.readInt();
+		if (length < MINIMUM_RECORD_BYTES || length > MAXIMUM_RECORD_BYTES || offset + 8 + length > size)
+			return partial(offset, size);
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		int checksum = in.readInt();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		if ((int) crc.getValue() != checksum)
+			return partial(offset, size);
+
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		long id = buffer.getLong();
+		boolean isActive = buffer.get() != 0;
+		Account account = new Account(id, readString(buffer), readString(buffer), readString(buffer),
+				readString(buffer), readString(buffer), readString(buffer), readString(buffer));
+		Long availableSeconds = buffer.hasRemaining() ? buffer.getLong() : null;
+		return new Entry(account, isActive, availableSeconds, payload.length + 8);
+	}
+
+	/**
+	 * Handles a damaged record. It is the partly written last record if no whole
+	 * record starts after it; the bytes after a partly written record are left
+	 * over from it, or zeros that the file system had not filled in yet.
+	 *
+	 * @return null, so the record and the rest of the log are cut off.
+	 * @throws IOException if a whole record starts after the damaged one.
+	 */
+	private Entry partial(long offset, long size) throws IOException {
+		byte[] rest = new byte[(int) Math.min(size - offset, Integer.MAX_VALUE - 8)];
+		ByteBuffer buffer = ByteBuffer.wrap(rest);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) <= 0)
+				break;
+		}
+		CRC32 crc = new CRC32();
+		for (int start = 1; start + 8 + MINIMUM_RECORD_BYTES <= rest.length; start++) {
+			int length = buffer.getInt(start);
+			if (length < MINIMUM_RECORD_BYTES || length > MAXIMUM_RECORD_BYTES || start + 8L + length > rest.length)
+				continue;
+			crc.reset();
+			crc.update(rest, start + 4, length);
+			if ((int) crc.getValue() == buffer.getInt(start + 4 + length))
+				throw new IOException(path + " is damaged at byte " + offset + " of " + size + ", before its end. "
+						+ "It was not opened, so the accounts after that byte are not lost; restore it from a "
+						+ "backup, or move it away to start with an empty account store.");
+		}
+		return null;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0)
+			return null;
+		String string = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return string;
+	}
+
+	private static void writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION);
+		header.flip();
+		while (header.hasRemaining())
+			channel.write(header);
+	}
+
+	/**
+	 * Encodes the state of an account as a record.
+	 */
+	private static byte[] encode(Entry entry) {
+		Account account = entry.account;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0);
+			out.writeLong(account.getId());
+			out.writeByte(entry.active ? 1 : 0);
+			for (String string : new String[] { account.getUsername(), account.getEncodedPassword(),
+					account.getFirstName(), account.getLastName(), account.getEmail(), account.getPhoneNumber(),
+					account.getNotes() }) {
+				if (string == null) {
+					out.writeInt(-1);
+				} else {
+					byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+					out.writeInt(utf8.length);
+					out.write(utf8);
+				}
+			}
+			if (entry.availableSeconds != null)
+				out.writeLong(entry.availableSeconds);
+			out.writeInt(0);
+			byte[] record = bytes.toByteArray();
+			int payloadLength = record.length - 8;
+			CRC32 crc = new CRC32();
+			crc.update(record, 4, payloadLength);
+			ByteBuffer.wrap(record).putInt(0, payloadLength).putInt(record.length - 4, (int) crc.getValue());
+			return record;
+		} catch (IOException e) {
+			// Writing to memory does not fail.
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Puts an account's new state into the maps.
+	 */
+	private void apply(Entry entry) {
+		Entry previous = byId.put(entry.account.getId(), entry);
+		if (previous != null) {
+			byUsername.remove(previous.account.getUsername());
+			active.remove(previous.account.getUsername());
+			liveBytes -= previous.recordBytes;
+		}
+		byUsername.put(entry.account.getUsername(), entry);
+		if (entry.active)
+			active.put(entry.account.getUsername(), entry);
+		liveBytes += entry.recordBytes;
+		nextId = Math.max(nextId, entry.account.getId() + 1);
+	}
+
+	/**
+	 * Appends the new states of accounts to the log, forces it to disk, and then
+	 * puts them into the maps. Must be called with the write lock held.
+	 */
+	private void append(List<Entry> changes) throws SQLException {
+		ArrayList<byte[]> records = new ArrayList<byte[]>(changes.size());
+		int totalBytes = 0;
+		for (Entry change : changes) {
+			byte[] record = encode(change);
+			records.add(record);
+			totalBytes += record.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(totalBytes);
+		for (byte[] record : records)
+			buffer.put(record);
+		buffer.flip();
+
+		try {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(false);
+		} catch (IOException e) {
+			try {
+				// Do not leave half a change in the log.
+				channel.truncate(logBytes);
+				channel.position(logBytes);
+			} catch (IOException truncateError) {
+				e.addSuppressed(truncateError);
+			}
+			throw new SQLException("Cannot write to " + path, e);
+		}
+		logBytes += totalBytes;
+		appendedRecords += records.size();
+		for (int i = 0; i < changes.size(); i++) {
+			Entry change = changes.get(i);
+			apply(new Entry(change.account, change.active, change.availableSeconds, records.get(i).length));
+		}
+
+		if (needsCompaction()) {
+			try {
+				compact();
+			} catch (IOException e) {
+				// The change is stored; the log is compacted another time.
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void append(Account account, boolean isActive, Long availableSeconds) throws SQLException {
+		append(Collections.singletonList(new Entry(account, isActive, availableSeconds, 0)));
+	}
+
+	private boolean needsCompaction() {
+		return logBytes > COMPACTION_MINIMUM_BYTES && logBytes > COMPACTION_RATIO * (liveBytes + HEADER_BYTES);
+	}
+
+	/**
+	 * Rewrites the log with only the current state of every account. The new
+	 * log is written next to the old one and then moved over it, so a crash
+	 * leaves one of them complete.
+	 *
+	 * @throws IOException if the log cannot be rewritten.
+	 */
+	public void compact() throws IOException {
+		lock.writeLock().lock();
+		try {
+			long startMillis = System.currentTimeMillis();
+			long previousBytes = logBytes;
+			Path temporary = path.resolveSibling(path.getFileName() + ".compact");
+			long newBytes = HEADER_BYTES;
+			try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				writeHeader(out);
+				for (Entry entry : byId.values()) {
+					ByteBuffer record = ByteBuffer.wrap(encode(entry));
+					newBytes += record.remaining();
+					while (record.hasRemaining())
+						out.write(record);
+				}
+				out.force(true);
+			}
+			channel.close();
+			try {
+				Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				channel.position(channel.size());
+			}
+			logBytes = newBytes;
+			liveBytes = newBytes - HEADER_BYTES;
+			compactions++;
+			System.out.println("Compacted " + path + " from " + previousBytes + " to " + newBytes + " bytes in "
+					+ (System.currentTimeMillis() - startMillis) + " ms");
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a copy of the stored account, so callers cannot change the stored one.
+	 */
+	private static Account copy(Entry entry) {
+		Account account = entry.account;
+		return new Account(account.getId(), account.getUsername(), account.getEncodedPassword(),
+				account.getFirstName(), account.getLastName(), account.getEmail(), account.getPhoneNumber(),
+				account.getNotes());
+	}
+
+	/**
+	 * @return the account as the accounts table shows it, without id or password.
+	 */
+	private static Account snippet(Entry entry) {
+		Account account = entry.account;
+		return new Account(0, account.getUsername(), null, account.getFirstName(), account.getLastName(),
+				account.getEmail(), account.getPhoneNumber(), account.getNotes());
+	}
+
+	private static String nullIfBlank(String string) {
+		return (string == null || string.trim().isEmpty()) ? null : string;
+	}
+
+	private static Account stored(long id, String username, String encodedPassword, Account details) {
+		return new Account(id, username, nullIfBlank(encodedPassword), nullIfBlank(details.getFirstName()),
+				nullIfBlank(details.getLastName()), nullIfBlank(details.getEmail()),
+				nullIfBlank(details.getPhoneNumber()), nullIfBlank(details.getNotes()));
+	}
+
+	private static SQLException duplicate(String username) {
+		return new SQLIntegrityConstraintViolationException("Duplicate entry '" + username + "' for key 'username'");
+	}
+
+	@Override
+	public Account findByUsername(String username) throws SQLException {
+		lock.readLock().lock();
+		try {
+			Entry entry = byUsername.get(username);
+			return (entry == null) ? null : copy(entry);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Account findActiveByUsername(String username) throws SQLException {
+		lock.readLock().lock();
+		try {
+			Entry entry = active.get(username);
+			return (entry == null) ? null : copy(entry);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<Account> findActiveByUsernames(Collection<String> usernames) throws SQLException {
+		ArrayList<Account> accounts = new ArrayList<Account>();
+		lock.readLock().lock();
+		try {
+			for (String username : new TreeSet<String>(usernames)) {
+				Entry entry = active.get(username);
+				if (entry != null)
+					accounts.add(copy(entry));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return accounts;
+	}
+
+	@Override
+	public Set<String> findExistingUsernames(Collection<String> usernames) throws SQLException {
+		HashSet<String> existing = new HashSet<String>();
+		lock.readLock().lock();
+		try {
+			for (String username : usernames) {
+				Entry entry = byUsername.get(username);
+				if (entry != null)
+					existing.add(entry.account.getUsername());
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return existing;
+	}
+
+	@Override
+	public List<Account> findSnippets() throws SQLException {
+		lock.readLock().lock();
+		try {
+			ArrayList<Account> accounts = new ArrayList<Account>(active.size());
+			for (Entry entry : active.values())
+				accounts.add(snippet(entry));
+			return accounts;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int forEachSnippet(Consumer<Account> action) throws SQLException {
+		// The accounts are in memory anyway; the action runs without the lock.
+		List<Account> accounts = findSnippets();
+		accounts.forEach(action);
+		return accounts.size();
+	}
+
+	@Override
+	public int forEachActive(Consumer<Account> action) throws SQLException {
+		ArrayList<Account> accounts;
+		lock.readLock().lock();
+		try {
+			accounts = new ArrayList<Account>(active.size());
+			for (Entry entry : active.values())
+				accounts.add(copy(entry));
+		} finally {
+			lock.readLock().unlock();
+		}
+		accounts.forEach(action);
+		return accounts.size();
+	}
+
+	@Override
+	public Account findSnippet(String username) throws SQLException {
+		lock.readLock().lock();
+		try {
+			Entry entry = active.get(username);
+			return (entry == null) ? null : snippet(entry);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int countSnippets() throws SQLException {
+		lock.readLock().lock();
+		try {
+			return active.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<String> findSnippetPageKeys(int pageSize) throws SQLException {
+		ArrayList<String> keys = new ArrayList<String>();
+		lock.readLock().lock();
+		try {
+			int position = 0;
+			for (String username : active.keySet())
+				if (position++ % pageSize == 0)
+					keys.add(username);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return keys;
+	}
+
+	@Override
+	public List<Account> findSnippetPage(String fromUsername, int limit) throws SQLException {
+		ArrayList<Account> accounts = new ArrayList<Account>(Math.min(limit, 1024));
+		lock.readLock().lock();
+		try {
+			for (Entry entry : ((fromUsername == null) ? active : active.tailMap(fromUsername, true)).values()) {
+				if (accounts.size() == limit)
+					break;
+				accounts.add(snippet(entry));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return accounts;
+	}
+
+	@Override
+	public void create(Account account) throws SQLException {
+		lock.writeLock().lock();
+		try {
+			if (byUsername.containsKey(account.getUsername()))
+				throw duplicate(account.getUsername());
+			append(stored(nextId, account.getUsername(), account.getEncodedPassword(), account), true, null);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int createAll(List<Account> accounts, int batchSize) throws SQLException {
+		int created = 0;
+		for (int start = 0; start < accounts.size(); start += batchSize) {
+			List<Account> batch = accounts.subList(start, Math.min(start + batchSize, accounts.size()));
+			lock.writeLock().lock();
+			try {
+				TreeSet<String> usernames = new TreeSet<String>(USERNAME_ORDER);
+				ArrayList<Entry> records = new ArrayList<Entry>(batch.size());
+				long id = nextId;
+				for (Account account : batch) {
+					if (byUsername.containsKey(account.getUsername()) || !usernames.add(account.getUsername()))
+						throw new BatchUpdateException(duplicate(account.getUsername()).getMessage(), new int[0]);
+					records.add(new Entry(stored(id++, account.getUsername(), account.getEncodedPassword(), account),
+							true, null, 0));
+				}
+				append(records);
+				created += records.size();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+		return created;
+	}
+
+	@Override
+	public void update(String username, Account account) throws SQLException {
+		lock.writeLock().lock();
+		try {
+			Entry entry = byUsername.get(username);
+			if (entry == null)
+				throw new SQLException("Error updating account.");
+			Entry taken = byUsername.get(account.getUsername());
+			if (taken != null && taken != entry)
+				throw duplicate(account.getUsername());
+			// One record holds both the new username and the new details.
+			String password = nullIfBlank(account.getEncodedPassword());
+			append(stored(entry.account.getId(), account.getUsername(),
+					(password == null) ? entry.account.getEncodedPassword() : password, account), entry.active,
+					entry.availableSeconds);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void deactivate(String username) throws SQLException {
+		lock.writeLock().lock();
+		try {
+			Entry entry = byUsername.get(username);
+			if (entry == null)
+				throw new SQLException("Error removing account.");
+			if (entry.active)
+				append(entry.account, false, entry.availableSeconds);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Long findAvailableSeconds(String username) throws SQLException {
+		lock.readLock().lock();
+		try {
+			Entry entry = byUsername.get(username);
+			return (entry == null) ? null : entry.availableSeconds;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int addAvailableSeconds(Map<String, Long> seconds) throws SQLException {
+		lock.writeLock().lock();
+		try {
+			// One record per account, all forced to disk together.
+			ArrayList<Entry> changes = new ArrayList<Entry>(seconds.size());
+			for (Map.Entry<String, Long> change : seconds.entrySet()) {
+				Entry entry = byUsername.get(change.getKey());
+				if (entry == null)
+					continue;
+				long balance = (entry.availableSeconds == null) ? 0 : entry.availableSeconds;
+				changes.add(new Entry(entry.account, entry.active, Math.max(0, balance + change.getValue()), 0));
+			}
+			if (!changes.isEmpty())
+				append(changes);
+			return changes.size();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String getName() { return "the embedded log " + path; }
+
+	@Override
+	public AccountRepository getAccountRepository() { return this; }
+
+	@Override
+	public String getStatistics() {
+		lock.readLock().lock();
+		try {
+			return String.format("%d accounts (%d active), log %d KB of which %d KB current, %d records appended, "
+					+ "%d compactions", byId.size(), active.size(), logBytes / 1024, liveBytes / 1024,
+					appendedRecords, compactions);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			if (channel != null)
+				channel.close();
+			// Closing the channel releases the lock.
+			if (lockChannel != null)
+				lockChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
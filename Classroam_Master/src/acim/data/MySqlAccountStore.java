@@ -0,0 +1,38 @@
+package acim.data;
+
+/**
+ * An {@link AccountStore} on a MySQL server, through a {@link ConnectionPool}.
+ */
+public class MySqlAccountStore implements AccountStore {
+	private final ConnectionPool pool;
+	private final JdbcAccountRepository repository;
+
+	/**
+	 * @param pool the pool that lends the connections to the server.
+	 */
+	public MySqlAccountStore(ConnectionPool pool) {
+		this.pool = pool;
+		repository = new JdbcAccountRepository(pool);
+	}
+
+	@Override
+	public String getName() { return "MySQL"; }
+
+	@Override
+	public AccountRepository getAccountRepository() { return repository; }
+
+	/**
+	 * @return the pool that lends the connections to the server.
+	 */
+	public ConnectionPool getConnectionPool() { return pool; }
+
+	@Override
+	public String getStatistics() {
+		return pool.getStatistics();
+	}
+
+	@Override
+	public void close() {
+		pool.close();
+	}
+}
@@ -1,73 +1,506 @@
 package acim.data;
 
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
-import acim.data.structure.Node;
+import acim.data.structure.*;
 
 public class WebsiteChecker {
-	private static ArrayList<String> normalList;
-	private static Node trieRoot;
+	private static final int MAXIMUM_FILTER_DELTAS = 32;
+	private static final double DEFAULT_BLOOM_FALSE_POSITIVE_RATE = 0.01;
+	private static final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>();
+	private static LinkedList<BanFilter.Delta> filterDeltas = new LinkedList<BanFilter.Delta>();
+	private static Runnable reloadListener;
+	
+	/**
+	 * Everything that belongs to one loaded version of the ban list.
+	 * A snapshot is fully built before it is published with a single atomic
+	 * swap, so readers never block and never see a half-built trie.
+	 */
+	private static class Snapshot {
+		private final DomainSet trieRoot;
+		private final DomainSet patterns;
+		private final BanPolicies policies;
+		private final PolicyDomainTrie policyTrie;
+		private final BanFilter banFilter;
+		private final long buildMillis;
+		
+		private Snapshot(DomainSet trieRoot, DomainSet patterns, BanPolicies policies, PolicyDomainTrie policyTrie,
+				BanFilter banFilter, long buildMillis) {
+			this.trieRoot = trieRoot;
+			this.patterns = patterns;
+			this.policies = policies;
+			this.policyTrie = policyTrie;
+			this.banFilter = banFilter;
+			this.buildMillis = buildMillis;
+		}
+	}
+	
+	/**
+	 * The banned domains, the allow-list exceptions and the pattern rules read from the sources.
+	 */
+	private static class BanList {
+		private final List<String> normalList;
+		private final List<String> allowList;
+		private final List<String> patternList;
+		
+		private BanList(List<String> normalList, List<String> allowList, List<String> patternList) {
+			this.normalList = normalList;
+			this.allowList = allowList;
+			this.patternList = patternList;
+		}
+	}
+	
 	public static void load() {
-		trieRoot = new Node();
-		normalList = new ArrayList<String>();
+		long startTime = System.nanoTime();
+		DomainSet trieRoot = null;
+		long[] filterHashes = null;
+		List<String> patterns = null;
+		BanPolicies policies = loadPolicies();
+		PolicyDomainTrie policyTrie = null;
+		
+		// The image only holds the shared ban list, so it is not used with ban policies.
+		Path imagePath = (policies == null) ? getImagePath() : null;
+		if (imagePath != null) {
+			try {
+				BanListImage image = loadImage(imagePath);
+				MappedDomainTrie trie = image.getTrie();
+				trieRoot = (image.getBloomFilter() == null) ? trie : new BloomFrontedSet(image.getBloomFilter(), trie, true);
+				filterHashes = image.getFilterHashes();
+				patterns = image.getPatterns();
+				System.out.println("Loaded ban list image with " + trie.getBanCount() + " bans and "
+						+ trie.getAllowCount() + " exceptions");
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Cannot use the ban list image, reading the text ban list instead.");
+			}
+		}
 		
+		if (trieRoot == null) {
+			BanList list = readList();
+			if (policies != null) {
+				ArrayList<String> allBanned = new ArrayList<String>();
+				policyTrie = buildPolicyTrie(policies, list, allBanned);
+				if (policyTrie == null) {
+					policies = null;
+				} else {
+					trieRoot = policyTrie.forPolicies(policies.select(null, null));
+					// Clients get every domain that any policy bans, and the master decides per client.
+					filterHashes = hashDomains(allBanned);
+				}
+			}
+			if (policyTrie == null) {
+				trieRoot = addBloomFilter(list.normalList, buildTrie(list));
+				filterHashes = hashDomains(list.normalList);
+			}
+			patterns = list.patternList;
+		}
+		DomainSet patternSet = buildPatternSet(patterns);
+		
+		long buildMillis = (System.nanoTime() - startTime) / 1000000;
+		Snapshot snapshot = publish(trieRoot, patternSet, policies, policyTrie, filterHashes, patterns, buildMillis);
+		System.out.println("Ban list version " + snapshot.banFilter.getVersion() + " is now live (built in "
+				+ buildMillis + " ms)");
+	}
+	/**
+	 * Rebuilds the ban list in the calling thread and swaps it in,
+	 * then notifies the reload listener so clients can be updated.
+	 * Lookups keep using the previous version until the swap.
+	 */
+	public static void reload() {
+		load();
+		Runnable listener = reloadListener;
+		if (listener != null)
+			listener.run();
+	}
+	/**
+	 * Sets the action to run after the ban list has been reloaded.
+	 * 
+	 * @param listener the action, or null for none.
+	 */
+	public static void setReloadListener(Runnable listener) {
+		reloadListener = listener;
+	}
+	/**
+	 * @return the version of the ban list that is live, or 0 if none is loaded.
+	 */
+	public static long getLiveVersion() {
+		Snapshot snapshot = current.get();
+		return (snapshot == null) ? 0 : snapshot.banFilter.getVersion();
+	}
+	/**
+	 * @return how long building the live ban list took, in milliseconds.
+	 */
+	public static long getLastBuildMillis() {
+		Snapshot snapshot = current.get();
+		return (snapshot == null) ? 0 : snapshot.buildMillis;
+	}
+	/**
+	 * Reads every ban list source in parallel and combines them. Sources can be plain
+	 * domain lists, hosts files or adblock filters, optionally gzipped, see
+	 * {@link BanListIngester}. Lines with a '*' or '?' are pattern rules, like
+	 * "*casino*" or "bet*", and lines starting with "@@" are exceptions.
+	 * 
+	 * @return the lists that were read.
+	 */
+	private static BanList readList() {
 		System.out.println("Reading website ban list...");
-		try (BufferedReader reader = new BufferedReader(new FileReader(Env.get("BAN_LIST_FILE")))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-            	if (!line.startsWith("#") && !line.isEmpty()) {
-            		normalList.add(line);
-        			Node currentChild = trieRoot;
-        			for (int i = 0; i < line.length(); i++) {
-        				currentChild = currentChild.createChildIfNotExist(line.charAt(i));
-        				if (i == line.length() - 1) {
-        					currentChild.markAsEnd();
-        				}
-        			}
-            	}
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+		try {
+			BanListIngester.Result result = BanListIngester.ingest(getSourcePaths());
+			for (BanListIngester.SourceStatistics statistics : result.getStatistics())
+				System.out.println("  " + statistics);
+			System.out.println("Read " + result.getDomains().size() + " unique domains (" + result.getDuplicates()
+					+ " duplicates removed)");
+			return new BanList(result.getDomains(), result.getAllowed(), result.getPatterns());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new BanList(Collections.<String>emptyList(), Collections.<String>emptyList(),
+					Collections.<String>emptyList());
+		}
+	}
+	/**
+	 * Reads the ban policies, see {@link BanPolicies}.
+	 * 
+	 * @return the policies, or null if none are configured or the policy file is invalid.
+	 */
+	private static BanPolicies loadPolicies() {
+		try {
+			BanPolicies policies = BanPolicies.load();
+			if (policies != null)
+				System.out.println("Loaded ban policies " + policies.getNames());
+			return policies;
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Cannot read the ban policies, using the shared ban list for every client.");
+			return null;
+		}
+	}
+	/**
+	 * Compiles the shared ban list together with the overlays of every policy.
+	 * 
+	 * @param policies the ban policies.
+	 * @param list the shared ban list.
+	 * @param allBanned receives every domain banned by any policy.
+	 * @return the compiled policies, or null if an overlay cannot be read.
+	 */
+	private static PolicyDomainTrie buildPolicyTrie(BanPolicies policies, BanList list, List<String> allBanned) {
+		try {
+			PolicyDomainTrie trie = policies.build(list.normalList, list.allowList, allBanned);
+			System.out.println("Built policy trie with " + trie.getRuleCount() + " rules shared by "
+					+ policies.getNames().size() + " policies (" + trie.estimateMemoryBytes() / 1024 + " KiB)");
+			return trie;
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Cannot read the ban policy overlays, using the shared ban list for every client.");
+			return null;
+		}
+	}
+	/**
+	 * Returns every file the live ban list is built from: the sources, and the
+	 * policy file and overlays if ban policies are configured.
+	 * 
+	 * @return the paths to watch for changes.
+	 */
+	public static List<Path> getWatchedPaths() {
+		List<Path> paths = getSourcePaths();
+		Snapshot snapshot = current.get();
+		if (snapshot != null && snapshot.policies != null) {
+			paths.addAll(snapshot.policies.getSourcePaths());
+		} else {
+			String policyFile = Env.get("BAN_POLICY_FILE");
+			if (policyFile != null && !policyFile.trim().isEmpty())
+				paths.add(Paths.get(policyFile.trim()));
+		}
+		return paths;
+	}
+	/**
+	 * Returns the ban list sources: BAN_LIST_FILE followed by the comma-separated
+	 * paths in BAN_LIST_SOURCES from the .env file.
+	 * 
+	 * @return the paths of the sources.
+	 */
+	public static List<Path> getSourcePaths() {
+		ArrayList<Path> sources = new ArrayList<Path>();
+		sources.add(Paths.get(Env.get("BAN_LIST_FILE")));
+		String extraSources = Env.get("BAN_LIST_SOURCES");
+		if (extraSources != null) {
+			for (String source : extraSources.split(",")) {
+				if (!source.trim().isEmpty())
+					sources.add(Paths.get(source.trim()));
+			}
+		}
+		return sources;
+	}
+	/**
+	 * Returns the path of the precompiled ban list image. It is set with BAN_LIST_IMAGE
+	 * in the .env file, and defaults to BAN_LIST_FILE with ".img" appended.
+	 * 
+	 * @return the image path, or null if images are disabled ("none") or not
+	 * supported by the selected BAN_LIST_STRUCTURE.
+	 */
+	private static Path getImagePath() {
+		String structure = Env.get("BAN_LIST_STRUCTURE");
+		if (structure != null && !structure.equalsIgnoreCase("labels"))
+			return null;
+
+		String image = Env.get("BAN_LIST_IMAGE");
+		if (image == null)
+			return Paths.get(Env.get("BAN_LIST_FILE") + ".img");
+		if (image.equalsIgnoreCase("none"))
+			return null;
+		return Paths.get(image);
+	}
+	/**
+	 * Memory-maps the precompiled ban list image, and compiles a new one first if
+	 * any of the ban list sources or the Bloom filter's false-positive rate has
+	 * changed since the image was written. Older images are deleted once they are
+	 * no longer mapped, see {@link BanListImage}.
+	 * 
+	 * @param imagePath the path of the image.
+	 * @return the mapped image.
+	 * @throws IOException if the image cannot be compiled or opened.
+	 */
+	private static BanListImage loadImage(Path imagePath) throws IOException {
+		double falsePositiveRate = getBloomFalsePositiveRate();
+		byte[] sourceHash = BanListImage.hashFiles(getSourcePaths(), "bloom fpp " + falsePositiveRate);
+		BanListImage image = BanListImage.open(imagePath);
 		
-		benchmark();
+		if (image == null || !image.isCompiledFrom(sourceHash)) {
+			System.out.println("Ban list or its settings have changed, compiling " + imagePath + "...");
+			BanList list = readList();
+			DomainLabelTrie trie = DomainLabelTrie.build(list.normalList, list.allowList);
+			BloomFilter bloomFilter = buildBloomFilter(list.normalList, falsePositiveRate);
+			BanFilter filter = BanFilter.fromHashes(hashDomains(list.normalList), list.patternList, 0);
+			Path file = BanListImage.compile(imagePath, sourceHash, trie, filter, bloomFilter);
+			image = BanListImage.openFile(file);
+			if (image == null)
+				throw new IOException("Compiled ban list image " + file + " cannot be opened.");
+		}
+		BanListImage.deleteOlderVersions(imagePath, image.getFile());
+		return image;
 	}
-	public static void benchmark() {
-		System.out.println();
-		long startTime = System.nanoTime();
-		boolean result = normalList.contains("pornhub.com");
-		long endTime = System.nanoTime();
-		System.out.println("ArrayList lookup result (should be true):\t" + result);
-		long arrayTrueTime = endTime - startTime;
-		System.out.println("ArrayList lookup duration in nanoseconds:\t" + arrayTrueTime);
-		startTime = System.nanoTime();
-		result = trieRoot.entryExists("pornhub.com");
-		endTime = System.nanoTime();
-		System.out.println("Trie lookup check result (should be true):\t" + result);
-		long trieTrueTime = endTime - startTime;
-		System.out.println("Trie lookup duration in nanoseconds:\t\t" + trieTrueTime);
-		System.out.println();
-		startTime = System.nanoTime();
-		result = normalList.contains("pornhubber.com.ph");
-		endTime = System.nanoTime();
-		System.out.println("ArrayList lookup result (should be false):\t" + result);
-		long arrayFalseTime = endTime - startTime;
-		System.out.println("ArrayList lookup duration in nanoseconds:\t" + arrayFalseTime);
-		startTime = System.nanoTime();
-		result = trieRoot.entryExists("pornhubber.com.ph");
-		endTime = System.nanoTime();
-		System.out.println("Trie lookup check result (should be false):\t" + result);
-		long trieFalseTime = endTime - startTime;
-		System.out.println("Trie lookup duration in nanoseconds:\t\t" + trieFalseTime);
-		System.out.println();
-		System.out.println("Trie vs ArrayList lookup difference (true result):   " + (arrayTrueTime - trieTrueTime));
-		System.out.println("Trie vs ArrayList lookup difference (false result):  " + (arrayFalseTime - trieFalseTime));
+	private static long[] hashDomains(List<String> domains) {
+		long[] hashes = new long[domains.size()];
+		Arrays.parallelSetAll(hashes, i -> BanFilter.hash(domains.get(i)));
+		return hashes;
+	}
+	/**
+	 * Builds the lookup structure selected by BAN_LIST_STRUCTURE in the .env file.
+	 * "labels" (the default) also bans subdomains and honors "@@" exceptions,
+	 * "compact" uses the flat array trie, "dafsa" uses the minimal automaton,
+	 * which also shares common suffixes, and "node" uses the object trie.
+	 * The last three only match exact names.
+	 * 
+	 * @param list the ban list and its exceptions.
+	 * @return the lookup structure.
+	 */
+	private static DomainSet buildTrie(BanList list) {
+		List<String> domains = list.normalList;
+		String structure = Env.get("BAN_LIST_STRUCTURE");
+		if (structure == null || structure.equalsIgnoreCase("labels")) {
+			DomainLabelTrie trie = DomainLabelTrie.build(domains, list.allowList);
+			System.out.println("Built domain label trie with " + trie.getBanCount() + " bans and "
+					+ trie.getAllowCount() + " exceptions");
+			return trie;
+		} else if (structure.equalsIgnoreCase("node")) {
+			Node root = new Node();
+			for (String domain : domains) {
+				Node currentChild = root;
+				for (int i = 0; i < domain.length(); i++) {
+					currentChild = currentChild.createChildIfNotExist(domain.charAt(i));
+				}
+				currentChild.markAsEnd();
+			}
+			return root;
+		} else if (structure.equalsIgnoreCase("dafsa")) {
+			Dafsa dafsa = Dafsa.build(domains);
+			System.out.println("Built minimal automaton with " + dafsa.getStateCount() + " states and "
+					+ dafsa.getEdgeCount() + " edges (" + dafsa.estimateMemoryBytes() / 1024 + " KiB)");
+			return dafsa;
+		}
+		CompactTrie trie = CompactTrie.build(domains);
+		System.out.println("Built compact trie with " + trie.getNodeCount() + " nodes ("
+				+ trie.estimateMemoryBytes() / 1024 + " KiB)");
+		return trie;
+	}
+	/**
+	 * Puts a Bloom filter in front of the lookup structure, so that most negative
+	 * lookups never reach it. The false-positive rate is read from BAN_LIST_BLOOM_FPP
+	 * in the .env file (0.01 by default), and a rate of 0 disables the filter.
+	 * 
+	 * @param domains the banned domains.
+	 * @param trie the lookup structure.
+	 * @return the lookup structure with the filter in front of it.
+	 */
+	private static DomainSet addBloomFilter(Collection<String> domains, DomainSet trie) {
+		BloomFilter bloomFilter = buildBloomFilter(domains, getBloomFalsePositiveRate());
+		if (bloomFilter == null)
+			return trie;
+		return new BloomFrontedSet(bloomFilter, trie, trie instanceof DomainLabelTrie);
+	}
+	/**
+	 * @return the Bloom filter's false-positive rate from BAN_LIST_BLOOM_FPP in the
+	 * .env file (0.01 by default), where 0 disables the filter.
+	 */
+	private static double getBloomFalsePositiveRate() {
+		double falsePositiveRate = DEFAULT_BLOOM_FALSE_POSITIVE_RATE;
+		String configured = Env.get("BAN_LIST_BLOOM_FPP");
+		if (configured != null) {
+			try {
+				falsePositiveRate = Double.parseDouble(configured);
+			} catch (NumberFormatException e) {
+				System.out.println("Invalid BAN_LIST_BLOOM_FPP, using " + falsePositiveRate);
+			}
+		}
+		return falsePositiveRate;
+	}
+	/**
+	 * Builds a Bloom filter over the banned domains.
+	 * 
+	 * @param domains the banned domains.
+	 * @param falsePositiveRate the false-positive rate, see {@link #getBloomFalsePositiveRate()}.
+	 * @return the filter, or null if it is disabled with a rate of 0.
+	 */
+	private static BloomFilter buildBloomFilter(Collection<String> domains, double falsePositiveRate) {
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+			return null;
+
+		BloomFilter bloomFilter = new BloomFilter(domains.size(), falsePositiveRate);
+		for (String domain : domains)
+			bloomFilter.add(domain);
+		System.out.println("Built Bloom filter with " + bloomFilter.getBitCount() / 8 / 1024 + " KiB and "
+				+ bloomFilter.getHashCount() + " hashes (false-positive rate " + falsePositiveRate + ")");
+		return bloomFilter;
+	}
+	/**
+	 * Compiles the pattern rules into a single {@link GlobAutomaton}, so that
+	 * a lookup takes one pass over the name no matter how many patterns there
+	 * are. Pattern sets that would need too many DFA states fall back to a
+	 * {@link RegexPatternSet}.
+	 * 
+	 * @param patterns the pattern rules.
+	 * @return the matcher, or null if there are no pattern rules.
+	 */
+	private static DomainSet buildPatternSet(List<String> patterns) {
+		if (patterns.isEmpty())
+			return null;
+		try {
+			GlobAutomaton automaton = GlobAutomaton.build(patterns);
+			System.out.println("Built pattern automaton with " + automaton.getPatternCount() + " patterns and "
+					+ automaton.getStateCount() + " states");
+			return automaton;
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage() + " Matching " + patterns.size() + " patterns with a regex instead.");
+			return new RegexPatternSet(patterns);
+		}
+	}
+	/**
+	 * Returns lookup statistics of the ban list, including how many
+	 * lookups were rejected by the Bloom filter alone.
+	 * 
+	 * @return a human-readable summary of the statistics.
+	 */
+	public static String getLookupStatistics() {
+		Snapshot snapshot = current.get();
+		DomainSet set = (snapshot == null) ? null : snapshot.trieRoot;
+		if (!(set instanceof BloomFrontedSet))
+			return "Bloom filter disabled";
+		BloomFrontedSet bloom = (BloomFrontedSet) set;
+		return String.format("%d lookups, %d rejected by the Bloom filter (%.2f%%)", bloom.getLookupCount(),
+				bloom.getRejectionCount(), bloom.getRejectionRatio() * 100);
+	}
+	/**
+	 * Compiles the filter image for the clients and publishes it together with
+	 * the lookup structure as the new live snapshot. If a filter was already
+	 * compiled before, the changes are kept as a delta so that connected clients
+	 * can be updated incrementally.
+	 * 
+	 * @param trieRoot the new lookup structure.
+	 * @param patternSet the matcher for the pattern rules, or null if there are none.
+	 * @param policies the ban policies, or null if every client uses the shared ban list.
+	 * @param policyTrie the compiled policies, or null.
+	 * @param hashes the hashes of the banned domains.
+	 * @param patterns the pattern rules.
+	 * @param buildMillis how long building the lookup structure took.
+	 * @return the published snapshot.
+	 */
+	private static synchronized Snapshot publish(DomainSet trieRoot, DomainSet patternSet, BanPolicies policies,
+			PolicyDomainTrie policyTrie, long[] hashes, List<String> patterns, long buildMillis) {
+		Snapshot previous = current.get();
+		long version = (previous == null) ? System.currentTimeMillis() : previous.banFilter.getVersion() + 1;
+		BanFilter compiled = BanFilter.fromHashes(hashes, patterns, version);
+		if (previous != null) {
+			filterDeltas.add(compiled.diff(previous.banFilter));
+			while (filterDeltas.size() > MAXIMUM_FILTER_DELTAS)
+				filterDeltas.removeFirst();
+		}
+		System.out.println("Compiled ban filter version " + version + " (" + compiled.size() + " domains, "
+				+ patterns.size() + " patterns)");
+		
+		Snapshot snapshot = new Snapshot(trieRoot, patternSet, policies, policyTrie, compiled, buildMillis);
+		current.set(snapshot);
+		return snapshot;
+	}
+	/**
+	 * Returns the latest compiled ban filter.
+	 * 
+	 * @return the ban filter, or null if the ban list is not loaded yet.
+	 */
+	public static BanFilter getBanFilter() {
+		Snapshot snapshot = current.get();
+		return (snapshot == null) ? null : snapshot.banFilter;
+	}
+	/**
+	 * Returns the deltas needed to bring a client's filter up to date.
+	 * 
+	 * @param fromVersion the filter version the client currently has.
+	 * @return the deltas in order, or null if the client needs the full filter.
+	 */
+	public static synchronized List<BanFilter.Delta> getFilterDeltas(long fromVersion) {
+		ArrayList<BanFilter.Delta> deltas = new ArrayList<BanFilter.Delta>();
+		long version = fromVersion;
+		for (BanFilter.Delta delta : filterDeltas) {
+			if (delta.getFromVersion() == version) {
+				deltas.add(delta);
+				version = delta.getToVersion();
+			}
+		}
+		BanFilter banFilter = getBanFilter();
+		if (banFilter == null || version != banFilter.getVersion())
+			return null;
+		return deltas;
+	}
+	/**
+	 * Returns the ban list that applies to a client, selected by its room and
+	 * logged-in account if ban policies are configured. The returned set keeps
+	 * using the ban list version that was live when it was created, so one
+	 * message from a client is checked against a single version. Names are
+	 * normalized before they reach the lookup structure, which may compare
+	 * them exactly.
+	 * 
+	 * @param machineAddress the client's IP address.
+	 * @param username the logged-in account, or null if nobody is logged in.
+	 * @return the ban list of the client.
+	 */
+	public static DomainSet forClient(String machineAddress, String username) {
+		Snapshot snapshot = current.get();
+		DomainSet domains = (snapshot.policyTrie == null) ? snapshot.trieRoot
+				: snapshot.policyTrie.forPolicies(snapshot.policies.select(machineAddress, username));
+		DomainSet patterns = snapshot.patterns;
+		return name -> {
+			CharSequence normalized = DomainSet.normalize(name);
+			return normalized.length() != 0
+					&& (domains.contains(normalized) || (patterns != null && patterns.contains(normalized)));
+		};
 	}
 	public static boolean isBanned(String str) {
-		if (str.length() == 0) {
+		CharSequence domain = DomainSet.normalize(str);
+		if (domain.length() == 0) {
 			return false;
 		}
-		return trieRoot.entryExists(str);
+		Snapshot snapshot = current.get();
+		return snapshot.trieRoot.contains(domain) || (snapshot.patterns != null && snapshot.patterns.contains(domain));
 	}
 }
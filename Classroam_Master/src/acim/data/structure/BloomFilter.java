@@ -0,0 +1,126 @@
+package acim.data.structure;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * A fixed-size Bloom filter over domain names.
+ *
+ * The filter is sized from the expected number of entries and the wanted
+ * false-positive rate. Every name is hashed once with {@link DomainHash}, and
+ * the k bit positions are derived from that hash with double hashing, so a
+ * check costs one pass over the characters plus k reads from a long array.
+ */
+public class BloomFilter {
+	private final long[] bits;
+	private final long bitCount;
+	private final int hashCount;
+
+	/**
+	 * Creates an empty filter.
+	 *
+	 * @param expectedEntries the number of entries that will be added.
+	 * @param falsePositiveRate the wanted false-positive rate, between 0 and 1.
+	 */
+	public BloomFilter(long expectedEntries, double falsePositiveRate) {
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+			throw new IllegalArgumentException("False-positive rate must be between 0 and 1.");
+
+		long n = Math.max(1, expectedEntries);
+		// m = -n ln(p) / (ln 2)^2, k = m / n ln 2
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		m = Math.max(64, (m + 63) / 64 * 64);
+		bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, m / 64)];
+		bitCount = (long) bits.length * 64;
+		hashCount = (int) Math.max(1, Math.min(16, Math.round((double) bitCount / n * Math.log(2))));
+	}
+
+	private BloomFilter(long[] bits, int hashCount) {
+		this.bits = bits;
+		this.bitCount = (long) bits.length * 64;
+		this.hashCount = hashCount;
+	}
+
+	/**
+	 * Writes the filter in the layout read by {@link #read(ByteBuffer)}:
+	 * the hash count and word count (ints) followed by the bits (longs).
+	 *
+	 * @param out the stream to write to.
+	 * @throws IOException if writing fails.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(hashCount);
+		out.writeInt(bits.length);
+		for (long word : bits)
+			out.writeLong(word);
+	}
+
+	/**
+	 * Reads a filter written by {@link #write(DataOutputStream)} from the
+	 * buffer's position, and moves the position past it.
+	 *
+	 * @param buffer the buffer to read from, in big-endian order.
+	 * @return the filter, copied onto the heap.
+	 * @throws BufferUnderflowException if the buffer ends before the filter does.
+	 * @throws IllegalArgumentException if the filter is damaged.
+	 */
+	public static BloomFilter read(ByteBuffer buffer) {
+		int hashCount = buffer.getInt();
+		int words = buffer.getInt();
+		if (words < 0 || words > buffer.remaining() / 8)
+			throw new BufferUnderflowException();
+		if (words == 0 || hashCount < 1)
+			throw new IllegalArgumentException("Damaged Bloom filter.");
+		long[] bits = new long[words];
+		buffer.asLongBuffer().get(bits);
+		buffer.position(buffer.position() + bits.length * 8);
+		return new BloomFilter(bits, hashCount);
+	}
+
+	/**
+	 * Adds a name to the filter.
+	 *
+	 * @param name the name to add.
+	 */
+	public void add(CharSequence name) {
+		long hash = DomainHash.mixedHash(name, 0);
+		int h1 = (int) hash, h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = Integer.toUnsignedLong(h1 + i * h2) % bitCount;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Checks whether a name might have been added.
+	 *
+	 * @param name the name to check.
+	 * @return false if the name was definitely never added.
+	 */
+	public boolean mightContain(CharSequence name) {
+		return mightContain(name, 0);
+	}
+
+	/**
+	 * Checks whether the part of a name starting at the given index might
+	 * have been added, which is used to check parent domains without
+	 * creating substrings.
+	 *
+	 * @param name the name to check.
+	 * @param from the index of the first character to check.
+	 * @return false if that part of the name was definitely never added.
+	 */
+	public boolean mightContain(CharSequence name, int from) {
+		long hash = DomainHash.mixedHash(name, from);
+		int h1 = (int) hash, h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = Integer.toUnsignedLong(h1 + i * h2) % bitCount;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	public long getBitCount() { return bitCount; }
+	public int getHashCount() { return hashCount; }
+}
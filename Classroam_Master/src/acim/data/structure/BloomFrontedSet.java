@@ -0,0 +1,84 @@
+package acim.data.structure;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Puts a {@link BloomFilter} in front of another DomainSet.
+ *
+ * Nearly every domain that gets checked is not banned, and the Bloom filter
+ * can prove that after a few hashes without touching the larger structure
+ * behind it. Only names that might be banned are passed on.
+ *
+ * When the structure behind it also matches subdomains, every parent domain
+ * of the name is checked against the filter as well.
+ */
+public class BloomFrontedSet implements DomainSet {
+	private final BloomFilter filter;
+	private final DomainSet delegate;
+	private final boolean matchSubdomains;
+
+	private final LongAdder lookups = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+
+	/**
+	 * Builds the Bloom filter over the given domains and puts it in front of the delegate.
+	 *
+	 * @param domains the domains stored in the delegate.
+	 * @param delegate the structure that answers when the filter cannot.
+	 * @param matchSubdomains true if the delegate also matches subdomains.
+	 * @param falsePositiveRate the wanted false-positive rate of the filter.
+	 */
+	public BloomFrontedSet(Collection<String> domains, DomainSet delegate, boolean matchSubdomains,
+			double falsePositiveRate) {
+		this(new BloomFilter(domains.size(), falsePositiveRate), delegate, matchSubdomains);
+		for (String domain : domains)
+			filter.add(domain);
+	}
+
+	/**
+	 * Puts an already built Bloom filter in front of the delegate.
+	 *
+	 * @param filter a filter containing every domain stored in the delegate.
+	 * @param delegate the structure that answers when the filter cannot.
+	 * @param matchSubdomains true if the delegate also matches subdomains.
+	 */
+	public BloomFrontedSet(BloomFilter filter, DomainSet delegate, boolean matchSubdomains) {
+		this.filter = filter;
+		this.delegate = delegate;
+		this.matchSubdomains = matchSubdomains;
+	}
+
+	@Override
+	public boolean contains(CharSequence domain) {
+		lookups.increment();
+		if (!mightContain(domain)) {
+			rejections.increment();
+			return false;
+		}
+		return delegate.contains(domain);
+	}
+
+	private boolean mightContain(CharSequence domain) {
+		if (!matchSubdomains)
+			return filter.mightContain(domain);
+		for (int i = 0; i < domain.length(); i++) {
+			if ((i == 0 || domain.charAt(i - 1) == '.') && filter.mightContain(domain, i))
+				return true;
+		}
+		return false;
+	}
+
+	public BloomFilter getFilter() { return filter; }
+	public DomainSet getDelegate() { return delegate; }
+	public long getLookupCount() { return lookups.sum(); }
+	public long getRejectionCount() { return rejections.sum(); }
+
+	/**
+	 * @return the share of lookups answered by the filter alone, between 0 and 1.
+	 */
+	public double getRejectionRatio() {
+		long total = lookups.sum();
+		return total == 0 ? 0 : (double) rejections.sum() / total;
+	}
+}
@@ -0,0 +1,169 @@
+package acim.data.structure;
+
+import java.util.*;
+
+/**
+ * A read-only trie stored in flat primitive arrays instead of node objects.
+ *
+ * Nodes are numbered in breadth-first order, so the children of every node
+ * are stored next to each other and sorted by character. The children of
+ * node i are the nodes from firstChild[i] up to firstChild[i + 1], and
+ * labels[n] is the character on the edge leading to node n. Finding a child
+ * is a binary search over a small slice of the labels array, and a lookup
+ * never allocates.
+ */
+public class CompactTrie implements DomainSet {
+	private final char[] labels;
+	private final int[] firstChild;
+	private final long[] terminal;
+	private final int nodeCount;
+	private final int size;
+
+	private CompactTrie(char[] labels, int[] firstChild, long[] terminal, int nodeCount, int size) {
+		this.labels = labels;
+		this.firstChild = firstChild;
+		this.terminal = terminal;
+		this.nodeCount = nodeCount;
+		this.size = size;
+	}
+
+	/**
+	 * Builds a trie out of a collection of strings.
+	 *
+	 * @param entries the strings to store. Duplicates are ignored.
+	 * @return the built trie.
+	 */
+	public static CompactTrie build(Collection<String> entries) {
+		String[] sorted = entries.toArray(new String[0]);
+		Arrays.sort(sorted);
+		int unique = 0;
+		long totalChars = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (unique == 0 || !sorted[unique - 1].equals(sorted[i])) {
+				sorted[unique++] = sorted[i];
+				totalChars += sorted[i].length();
+			}
+		}
+
+		// There can never be more nodes than characters, plus the root,
+		// but shared prefixes usually keep the count far below that.
+		long maximumNodes = totalChars + 1;
+		int capacity = (int) Math.min(maximumNodes, Math.max(16, unique * 4L));
+		char[] labels = new char[capacity];
+		int[] firstChild = new int[capacity + 1];
+
+		// Every node covers the range of sorted strings that share its prefix.
+		// The queue holds (from, to) for each node in breadth-first order,
+		// and the depth of a node is the length of its prefix.
+		int[] rangeFrom = new int[capacity];
+		int[] rangeTo = new int[capacity];
+		int[] depth = new int[capacity];
+		BitSet terminal = new BitSet();
+		rangeFrom[0] = 0;
+		rangeTo[0] = unique;
+		int nodeCount = 1;
+
+		for (int node = 0; node < nodeCount; node++) {
+			int from = rangeFrom[node], to = rangeTo[node], d = depth[node];
+			firstChild[node] = nodeCount;
+
+			// Since the strings are sorted, a string that ends here comes first.
+			if (from < to && sorted[from].length() == d) {
+				terminal.set(node);
+				from++;
+			}
+
+			// Group the remaining strings by their next character.
+			while (from < to) {
+				char c = sorted[from].charAt(d);
+				int end = from + 1;
+				while (end < to && sorted[end].charAt(d) == c)
+					end++;
+
+				if (nodeCount == capacity) {
+					capacity = (int) Math.min(maximumNodes, capacity + (capacity >> 1));
+					labels = Arrays.copyOf(labels, capacity);
+					firstChild = Arrays.copyOf(firstChild, capacity + 1);
+					rangeFrom = Arrays.copyOf(rangeFrom, capacity);
+					rangeTo = Arrays.copyOf(rangeTo, capacity);
+					depth = Arrays.copyOf(depth, capacity);
+				}
+				labels[nodeCount] = c;
+				rangeFrom[nodeCount] = from;
+				rangeTo[nodeCount] = end;
+				depth[nodeCount] = d + 1;
+				nodeCount++;
+				from = end;
+			}
+		}
+		firstChild[nodeCount] = nodeCount;
+
+		return new CompactTrie(Arrays.copyOf(labels, nodeCount), Arrays.copyOf(firstChild, nodeCount + 1),
+				Arrays.copyOf(terminal.toLongArray(), (nodeCount + 63) / 64), nodeCount, unique);
+	}
+
+	/**
+	 * Finds the child of a node through the edge with the given character.
+	 *
+	 * @param node the parent node.
+	 * @param c the character on the edge.
+	 * @return the child node, or -1 if there is none.
+	 */
+	public int child(int node, char c) {
+		int low = firstChild[node], high = firstChild[node + 1] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			char label = labels[mid];
+			if (label < c)
+				low = mid + 1;
+			else if (label > c)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param node the node to check.
+	 * @return true if a stored string ends at the node.
+	 */
+	public boolean isTerminal(int node) {
+		return (terminal[node >>> 6] & (1L << node)) != 0;
+	}
+
+	@Override
+	public boolean contains(CharSequence str) {
+		int node = 0;
+		for (int i = 0, length = str.length(); i < length; i++) {
+			node = child(node, str.charAt(i));
+			if (node < 0)
+				return false;
+		}
+		return isTerminal(node);
+	}
+
+	/**
+	 * @return the number of distinct strings stored in the trie.
+	 */
+	public int size() { return size; }
+
+	/**
+	 * @return the number of nodes, including the root.
+	 */
+	public int getNodeCount() { return nodeCount; }
+
+	// Raw arrays, used to write the trie into a ban list image.
+	char[] getLabels() { return labels; }
+	int[] getFirstChild() { return firstChild; }
+	long[] getTerminal() { return terminal; }
+
+	/**
+	 * Estimates the heap memory used by the arrays of this trie.
+	 *
+	 * @return the approximate size in bytes.
+	 */
+	public long estimateMemoryBytes() {
+		return (long) labels.length * 2 + (long) firstChild.length * 4 + (long) terminal.length * 8;
+	}
+}
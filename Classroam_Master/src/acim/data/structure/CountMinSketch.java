@@ -0,0 +1,102 @@
+package acim.data.structure;
+
+import java.util.*;
+
+/**
+ * A count-min sketch that estimates how often each domain name was seen,
+ * in a fixed amount of memory no matter how many distinct names there are.
+ *
+ * The sketch has a few rows of counters. A name is hashed once with
+ * {@link DomainHash}, and its counter in each row is derived from that hash
+ * with double hashing. Estimates never undercount; they overcount by at most
+ * e / width of the total count with probability 1 - e^-depth. Updates are
+ * conservative, so only the counters that hold the current minimum grow,
+ * which keeps the overcounting much lower in practice.
+ *
+ * The sketch is not thread-safe.
+ */
+public class CountMinSketch {
+	private final int width;
+	private final int depth;
+	// Row r occupies counters[r * width] to counters[(r + 1) * width - 1].
+	private final long[] counters;
+	private long total;
+
+	/**
+	 * Creates an empty sketch.
+	 *
+	 * @param width the number of counters per row, which bounds the error.
+	 * @param depth the number of rows, which bounds the probability of a larger error.
+	 */
+	public CountMinSketch(int width, int depth) {
+		if (width < 1 || depth < 1)
+			throw new IllegalArgumentException("Width and depth must be positive.");
+		this.width = width;
+		this.depth = depth;
+		counters = new long[width * depth];
+	}
+
+	/**
+	 * Adds occurrences of a name.
+	 *
+	 * @param name the name.
+	 * @param count how often it was seen.
+	 * @return the new estimate of the name's count.
+	 */
+	public long add(CharSequence name, long count) {
+		long hash = DomainHash.mixedHash(name, 0);
+		long estimate = estimate(hash) + count;
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int row = 0; row < depth; row++) {
+			int index = row * width + index(h1 + row * h2);
+			if (counters[index] < estimate)
+				counters[index] = estimate;
+		}
+		total += count;
+		return estimate;
+	}
+
+	/**
+	 * Estimates how often a name was seen.
+	 *
+	 * @param name the name.
+	 * @return the estimate, which is never lower than the real count.
+	 */
+	public long estimate(CharSequence name) {
+		return estimate(DomainHash.mixedHash(name, 0));
+	}
+
+	private long estimate(long hash) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long minimum = Long.MAX_VALUE;
+		for (int row = 0; row < depth; row++)
+			minimum = Math.min(minimum, counters[row * width + index(h1 + row * h2)]);
+		return minimum;
+	}
+
+	private int index(int combined) {
+		return (combined & Integer.MAX_VALUE) % width;
+	}
+
+	/**
+	 * Resets every counter to 0.
+	 */
+	public void clear() {
+		Arrays.fill(counters, 0);
+		total = 0;
+	}
+
+	/**
+	 * @return the sum of all counts that were added.
+	 */
+	public long getTotal() { return total; }
+	public int getWidth() { return width; }
+	public int getDepth() { return depth; }
+
+	/**
+	 * @return the approximate heap memory used by the counters, in bytes.
+	 */
+	public long estimateMemoryBytes() { return (long) counters.length * 8; }
+}
@@ -0,0 +1,269 @@
+package acim.data.structure;
+
+import java.util.*;
+
+/**
+ * A read-only minimal acyclic automaton (DAFSA) stored in flat arrays.
+ *
+ * Unlike a trie, which only shares prefixes, the automaton also merges
+ * common suffixes, so endings like ".com" and ".net" are stored once
+ * instead of once per domain. It is built incrementally from sorted input
+ * (Daciuk et al.): after each string, the part of the previous string that
+ * is no longer shared is minimized by replacing every state with an
+ * equivalent one that is already registered.
+ *
+ * The outgoing edges of state i are the edges from firstEdge[i] up to
+ * firstEdge[i + 1], sorted by character, and edgeTargets holds the state
+ * each edge leads to. Like {@link CompactTrie}, a lookup is a binary
+ * search per character, never allocates, and only matches exact names.
+ */
+public class Dafsa implements DomainSet {
+	private final char[] edgeLabels;
+	private final int[] edgeTargets;
+	private final int[] firstEdge;
+	private final long[] terminal;
+	private final int stateCount;
+	private final int size;
+
+	private Dafsa(char[] edgeLabels, int[] edgeTargets, int[] firstEdge, long[] terminal, int stateCount, int size) {
+		this.edgeLabels = edgeLabels;
+		this.edgeTargets = edgeTargets;
+		this.firstEdge = firstEdge;
+		this.terminal = terminal;
+		this.stateCount = stateCount;
+		this.size = size;
+	}
+
+	/**
+	 * A state while building. Once a state is registered it is never
+	 * changed again, so its hash code can be cached.
+	 */
+	private static class State {
+		private char[] labels = new char[0];
+		private State[] targets = new State[0];
+		private int edgeCount;
+		private boolean terminal;
+		private int hash;
+		private boolean registered;
+		private int id = -1;
+
+		private State lastChild() {
+			return edgeCount == 0 ? null : targets[edgeCount - 1];
+		}
+
+		private void addEdge(char c, State target) {
+			if (edgeCount == labels.length) {
+				int capacity = Math.max(2, edgeCount * 2);
+				labels = Arrays.copyOf(labels, capacity);
+				targets = Arrays.copyOf(targets, capacity);
+			}
+			labels[edgeCount] = c;
+			targets[edgeCount++] = target;
+		}
+
+		private void freeze() {
+			labels = Arrays.copyOf(labels, edgeCount);
+			targets = Arrays.copyOf(targets, edgeCount);
+			int h = terminal ? 1 : 0;
+			for (int i = 0; i < edgeCount; i++)
+				h = h * 31 + labels[i] * 17 + System.identityHashCode(targets[i]);
+			hash = h;
+		}
+
+		// Two states are equivalent if they accept the same suffixes. Their
+		// children are already registered, so comparing them by identity is enough.
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof State))
+				return false;
+			State state = (State) other;
+			if (terminal != state.terminal || edgeCount != state.edgeCount || hash != state.hash)
+				return false;
+			for (int i = 0; i < edgeCount; i++) {
+				if (labels[i] != state.labels[i] || targets[i] != state.targets[i])
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() { return hash; }
+	}
+
+	/**
+	 * Builds an automaton out of a collection of strings.
+	 *
+	 * @param entries the strings to store. Duplicates are ignored.
+	 * @return the built automaton.
+	 */
+	public static Dafsa build(Collection<String> entries) {
+		String[] sorted = entries.toArray(new String[0]);
+		Arrays.sort(sorted);
+
+		HashMap<State, State> register = new HashMap<State, State>();
+		State root = new State();
+		String previous = null;
+		int size = 0;
+		for (String entry : sorted) {
+			if (entry.equals(previous))
+				continue;
+
+			// Follow the prefix shared with the previous string. Only the
+			// last edge of every state on that path can still change.
+			int prefix = 0;
+			State state = root;
+			while (prefix < entry.length() && state.edgeCount > 0
+					&& state.labels[state.edgeCount - 1] == entry.charAt(prefix)) {
+				state = state.lastChild();
+				prefix++;
+			}
+
+			// The rest of the previous string will never be extended again.
+			if (state.edgeCount > 0)
+				replaceOrRegister(state, register);
+
+			for (int i = prefix; i < entry.length(); i++) {
+				State next = new State();
+				state.addEdge(entry.charAt(i), next);
+				state = next;
+			}
+			state.terminal = true;
+			previous = entry;
+			size++;
+		}
+		replaceOrRegister(root, register);
+		root.freeze();
+
+		return flatten(root, size);
+	}
+
+	/**
+	 * Minimizes the path below the last edge of a state, bottom-up,
+	 * replacing each state with an equivalent registered one if there is one.
+	 */
+	private static void replaceOrRegister(State state, HashMap<State, State> register) {
+		// Walk down iteratively, since domain names can be long.
+		ArrayList<State> path = new ArrayList<State>();
+		for (State parent = state; parent.edgeCount > 0 && !parent.lastChild().registered; parent = parent.lastChild())
+			path.add(parent);
+
+		for (int i = path.size() - 1; i >= 0; i--) {
+			State parent = path.get(i);
+			State child = parent.lastChild();
+			child.freeze();
+			State existing = register.get(child);
+			if (existing != null) {
+				parent.targets[parent.edgeCount - 1] = existing;
+			} else {
+				child.registered = true;
+				register.put(child, child);
+			}
+		}
+	}
+
+	/**
+	 * Numbers the states in breadth-first order and copies them into arrays.
+	 */
+	private static Dafsa flatten(State root, int size) {
+		ArrayList<State> order = new ArrayList<State>();
+		root.id = 0;
+		order.add(root);
+		int edgeCount = 0;
+		for (int i = 0; i < order.size(); i++) {
+			State state = order.get(i);
+			edgeCount += state.edgeCount;
+			for (int e = 0; e < state.edgeCount; e++) {
+				State target = state.targets[e];
+				if (target.id < 0) {
+					target.id = order.size();
+					order.add(target);
+				}
+			}
+		}
+
+		int stateCount = order.size();
+		char[] edgeLabels = new char[edgeCount];
+		int[] edgeTargets = new int[edgeCount];
+		int[] firstEdge = new int[stateCount + 1];
+		long[] terminal = new long[(stateCount + 63) / 64];
+		int edge = 0;
+		for (int i = 0; i < stateCount; i++) {
+			State state = order.get(i);
+			firstEdge[i] = edge;
+			if (state.terminal)
+				terminal[i >>> 6] |= 1L << i;
+			for (int e = 0; e < state.edgeCount; e++) {
+				edgeLabels[edge] = state.labels[e];
+				edgeTargets[edge++] = state.targets[e].id;
+			}
+		}
+		firstEdge[stateCount] = edge;
+		return new Dafsa(edgeLabels, edgeTargets, firstEdge, terminal, stateCount, size);
+	}
+
+	/**
+	 * Follows the edge with the given character out of a state.
+	 *
+	 * @param state the state.
+	 * @param c the character on the edge.
+	 * @return the target state, or -1 if there is no such edge.
+	 */
+	public int next(int state, char c) {
+		int low = firstEdge[state], high = firstEdge[state + 1] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			char label = edgeLabels[mid];
+			if (label < c)
+				low = mid + 1;
+			else if (label > c)
+				high = mid - 1;
+			else
+				return edgeTargets[mid];
+		}
+		return -1;
+	}
+
+	/**
+	 * @param state the state to check.
+	 * @return true if a stored string ends in the state.
+	 */
+	public boolean isTerminal(int state) {
+		return (terminal[state >>> 6] & (1L << state)) != 0;
+	}
+
+	@Override
+	public boolean contains(CharSequence str) {
+		int state = 0;
+		for (int i = 0, length = str.length(); i < length; i++) {
+			state = next(state, str.charAt(i));
+			if (state < 0)
+				return false;
+		}
+		return isTerminal(state);
+	}
+
+	/**
+	 * @return the number of distinct strings stored in the automaton.
+	 */
+	public int size() { return size; }
+
+	/**
+	 * @return the number of states, including the start state.
+	 */
+	public int getStateCount() { return stateCount; }
+
+	/**
+	 * @return the number of edges between the states.
+	 */
+	public int getEdgeCount() { return edgeLabels.length; }
+
+	/**
+	 * Estimates the heap memory used by the arrays of this automaton.
+	 *
+	 * @return the approximate size in bytes.
+	 */
+	public long estimateMemoryBytes() {
+		return (long) edgeLabels.length * 2 + (long) edgeTargets.length * 4 + (long) firstEdge.length * 4
+				+ (long) terminal.length * 8;
+	}
+}
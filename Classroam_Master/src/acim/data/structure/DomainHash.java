@@ -0,0 +1,59 @@
+package acim.data.structure;
+
+/**
+ * The 64-bit FNV-1a hash of domain names used by the master's hashed
+ * structures: the client ban filter image, the Bloom filter and the
+ * count-min sketch.
+ *
+ * ASCII letters are lower-cased and a trailing dot is ignored, so
+ * "Example.COM." and "example.com" produce the same hash. The client's
+ * LocalBanFilter has its own copy of {@link #hash(CharSequence, int)},
+ * which must produce the same values.
+ */
+public final class DomainHash {
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private DomainHash() {
+	}
+
+	/**
+	 * Hashes the part of a domain name starting at the given index,
+	 * which is used to hash parent domains without creating substrings.
+	 *
+	 * @param domain the domain to hash.
+	 * @param from the index of the first character to hash.
+	 * @return the 64-bit hash.
+	 */
+	public static long hash(CharSequence domain, int from) {
+		int length = domain.length();
+		if (length > 0 && domain.charAt(length - 1) == '.')
+			length--;
+
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = from; i < length; i++) {
+			char c = domain.charAt(i);
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			hash ^= c;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Hashes a domain name and mixes the bits, so that both 32-bit halves of
+	 * the result are usable on their own, e.g. for double hashing.
+	 *
+	 * @param domain the domain to hash.
+	 * @param from the index of the first character to hash.
+	 * @return the mixed 64-bit hash.
+	 */
+	public static long mixedHash(CharSequence domain, int from) {
+		long hash = hash(domain, from);
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
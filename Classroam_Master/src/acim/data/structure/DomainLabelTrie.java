@@ -0,0 +1,106 @@
+package acim.data.structure;
+
+import java.util.*;
+
+/**
+ * A domain matcher where banning a domain also bans all of its subdomains.
+ *
+ * Every rule is stored reversed ("example.com" becomes "moc.elpmaxe") in a
+ * {@link CompactTrie}. A lookup walks the queried name from its last character
+ * to its first, and every time it reaches a label boundary it checks whether a
+ * rule ends there. So "www.example.com" is checked against "com", "example.com"
+ * and "www.example.com" in one descending walk without allocating anything.
+ *
+ * Allow rules are exceptions to ban rules. The most specific matching rule
+ * wins, so allowing "mail.example.com" while banning "example.com" only lets
+ * that subdomain (and its own subdomains) through.
+ */
+public class DomainLabelTrie implements DomainSet {
+	private final CompactTrie trie;
+	private final long[] allowed;
+	private final int banCount, allowCount;
+
+	private DomainLabelTrie(CompactTrie trie, long[] allowed, int banCount, int allowCount) {
+		this.trie = trie;
+		this.allowed = allowed;
+		this.banCount = banCount;
+		this.allowCount = allowCount;
+	}
+
+	/**
+	 * Builds a matcher from ban rules and allow-list exceptions.
+	 * Rules are normalized to lower case and a trailing dot is ignored.
+	 *
+	 * @param banned the banned domains.
+	 * @param allowedDomains the exceptions to the banned domains.
+	 * @return the built matcher.
+	 */
+	public static DomainLabelTrie build(Collection<String> banned, Collection<String> allowedDomains) {
+		ArrayList<String> reversed = new ArrayList<String>(banned.size() + allowedDomains.size());
+		for (String domain : banned)
+			reversed.add(reverse(domain));
+		for (String domain : allowedDomains)
+			reversed.add(reverse(domain));
+		CompactTrie trie = CompactTrie.build(reversed);
+
+		// Mark the nodes where allow rules end.
+		long[] allowed = new long[(trie.getNodeCount() + 63) / 64];
+		for (String domain : allowedDomains) {
+			String rule = reverse(domain);
+			int node = 0;
+			for (int i = 0; i < rule.length() && node >= 0; i++)
+				node = trie.child(node, rule.charAt(i));
+			if (node >= 0)
+				allowed[node >>> 6] |= 1L << node;
+		}
+		return new DomainLabelTrie(trie, allowed, banned.size(), allowedDomains.size());
+	}
+
+	private static String reverse(String domain) {
+		String normalized = domain.trim().toLowerCase(Locale.ROOT);
+		if (normalized.endsWith("."))
+			normalized = normalized.substring(0, normalized.length() - 1);
+		return new StringBuilder(normalized).reverse().toString();
+	}
+
+	/**
+	 * Checks whether the name or any of its parent domains is banned,
+	 * taking allow-list exceptions into account.
+	 *
+	 * @param name the domain name to check.
+	 * @return true if the most specific matching rule is a ban.
+	 */
+	@Override
+	public boolean contains(CharSequence name) {
+		int end = name.length();
+		if (end > 0 && name.charAt(end - 1) == '.')
+			end--;
+
+		boolean banned = false;
+		int node = 0;
+		for (int i = end - 1; i >= 0; i--) {
+			char c = name.charAt(i);
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			node = trie.child(node, c);
+			if (node < 0)
+				break;
+
+			// A rule only matches whole labels.
+			if ((i == 0 || name.charAt(i - 1) == '.') && trie.isTerminal(node))
+				banned = (allowed[node >>> 6] & (1L << node)) == 0;
+		}
+		return banned;
+	}
+
+	// Raw allow-rule bits, used to write the trie into a ban list image.
+	long[] getAllowed() { return allowed; }
+
+	public int getBanCount() { return banCount; }
+	public int getAllowCount() { return allowCount; }
+
+	/**
+	 * @return the underlying trie of reversed rules.
+	 */
+	public CompactTrie getTrie() { return trie; }
+}
@@ -0,0 +1,65 @@
+package acim.data.structure;
+
+import java.nio.*;
+
+/**
+ * A read-only set of domain names that can be queried without allocating.
+ * Implemented by every ban list representation, so that WebsiteChecker
+ * can switch between them.
+ *
+ * Some implementations compare names exactly, so callers pass names through
+ * {@link #normalize(CharSequence)} before they reach any of them.
+ */
+public interface DomainSet {
+	/**
+	 * Checks whether the domain is matched by the set. Depending on the
+	 * implementation, this is either an exact match or also matches subdomains.
+	 * 
+	 * @param domain the domain to look up.
+	 * @return true if the domain is matched by the set.
+	 */
+	boolean contains(CharSequence domain);
+
+	/**
+	 * Checks a domain name in DNS wire format, read in place through the
+	 * calling thread's {@link WireName} view, so no objects are created.
+	 * 
+	 * @param buffer the buffer holding the name, for example a DNS packet.
+	 * @param offset the absolute index of the name's first length byte.
+	 * @return true if the name is matched by the set, false if it is not
+	 * or if it is malformed.
+	 */
+	default boolean contains(ByteBuffer buffer, int offset) {
+		WireName name = WireName.forCurrentThread();
+		return name.wrap(buffer, offset) && contains(name);
+	}
+
+	/**
+	 * Normalizes a name for a lookup: ASCII letters are lower-cased and a
+	 * trailing dot is removed. A name that is already normalized is returned
+	 * as it is, so the common case does not allocate.
+	 *
+	 * @param name the name to normalize.
+	 * @return the normalized name.
+	 */
+	static CharSequence normalize(CharSequence name) {
+		int length = name.length();
+		boolean trailingDot = length > 0 && name.charAt(length - 1) == '.';
+		boolean upperCase = false;
+		for (int i = 0; i < length && !upperCase; i++) {
+			char c = name.charAt(i);
+			upperCase = c >= 'A' && c <= 'Z';
+		}
+		if (!trailingDot && !upperCase)
+			return name;
+
+		if (trailingDot)
+			length--;
+		StringBuilder normalized = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			normalized.append((c >= 'A' && c <= 'Z') ? (char) (c + 'a' - 'A') : c);
+		}
+		return normalized.toString();
+	}
+}
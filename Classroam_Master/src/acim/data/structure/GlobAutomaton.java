@@ -0,0 +1,263 @@
+package acim.data.structure;
+
+import java.util.*;
+
+/**
+ * Matches domain names against a set of glob patterns with a single DFA.
+ *
+ * Patterns may use '*' for any run of characters and '?' for any single
+ * character, so "*casino*" blocks every name containing "casino" and "bet*"
+ * blocks every name starting with "bet". A trailing dot anchors the pattern
+ * to the end of the name like in DNS, which for globs makes "bet*." the same
+ * as "bet*". Matching ignores ASCII case.
+ *
+ * All patterns are combined into one NFA, which is turned into a DFA by
+ * subset construction when the automaton is built. A lookup is one table
+ * read per character no matter how many patterns there are. As soon as a
+ * pattern that ends in '*' has matched, the DFA moves into an absorbing
+ * accept state and the lookup stops early. This also keeps keyword sets
+ * like "*casino*" from multiplying the number of states.
+ */
+public class GlobAutomaton implements DomainSet {
+	public static final int MAXIMUM_STATES = 65536;
+
+	private static final int DEAD = -1;
+	private static final int ACCEPT_ALL = -2;
+
+	private final short[] classes;
+	private final int classCount;
+	private final int[] transitions;
+	private final boolean[] accepting;
+	private final int start;
+	private final int patternCount;
+
+	private GlobAutomaton(short[] classes, int classCount, int[] transitions, boolean[] accepting,
+			int start, int patternCount) {
+		this.classes = classes;
+		this.classCount = classCount;
+		this.transitions = transitions;
+		this.accepting = accepting;
+		this.start = start;
+		this.patternCount = patternCount;
+	}
+
+	/**
+	 * @param rule a ban list line.
+	 * @return true if the line is a pattern rule instead of a plain domain.
+	 */
+	public static boolean isPattern(String rule) {
+		return rule.indexOf('*') != -1 || rule.indexOf('?') != -1;
+	}
+
+	/**
+	 * Normalizes a pattern: lower-cases it, removes the trailing dot
+	 * and collapses runs of '*'.
+	 *
+	 * @param pattern the pattern to normalize.
+	 * @return the normalized pattern.
+	 */
+	public static String normalize(String pattern) {
+		String lower = pattern.trim().toLowerCase(Locale.ROOT);
+		if (lower.endsWith("."))
+			lower = lower.substring(0, lower.length() - 1);
+		StringBuilder builder = new StringBuilder(lower.length());
+		for (int i = 0; i < lower.length(); i++) {
+			char c = lower.charAt(i);
+			if (c != '*' || builder.length() == 0 || builder.charAt(builder.length() - 1) != '*')
+				builder.append(c);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Sorted set of NFA states, used as the key of a DFA state while building.
+	 */
+	private static class StateSet {
+		private final int[] states;
+		private final int hash;
+
+		private StateSet(int[] states) {
+			this.states = states;
+			this.hash = Arrays.hashCode(states);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof StateSet && Arrays.equals(states, ((StateSet) other).states);
+		}
+
+		@Override
+		public int hashCode() { return hash; }
+	}
+
+	/**
+	 * Builds the automaton for a set of patterns.
+	 *
+	 * @param patterns the glob patterns.
+	 * @return the automaton.
+	 * @throws IllegalArgumentException if the DFA would need more than
+	 * {@link #MAXIMUM_STATES} states.
+	 */
+	public static GlobAutomaton build(Collection<String> patterns) {
+		// Flatten every pattern into NFA states, one per character followed by
+		// an end marker. Being in a state means every token before it has been
+		// matched, and being on an end marker means the pattern has matched.
+		ArrayList<String> normalized = new ArrayList<String>();
+		for (String pattern : patterns)
+			normalized.add(normalize(pattern));
+		StringBuilder flattened = new StringBuilder();
+		for (String pattern : normalized)
+			flattened.append(pattern).append('\0');
+		char[] tokens = flattened.toString().toCharArray();
+		int nfaStates = tokens.length;
+		boolean[] isEnd = new boolean[nfaStates];
+		for (int i = 0; i < nfaStates; i++)
+			isEnd[i] = tokens[i] == '\0';
+
+		// Every literal character gets its own class, everything else shares class 0.
+		short[] classes = new short[Character.MAX_VALUE + 1];
+		StringBuilder representatives = new StringBuilder("\0");
+		for (int i = 0; i < nfaStates; i++) {
+			char c = tokens[i];
+			if (c == '*' || c == '?' || c == '\0' || classes[c] != 0)
+				continue;
+			classes[c] = (short) representatives.length();
+			if (c >= 'a' && c <= 'z')
+				classes[c - 'a' + 'A'] = classes[c];
+			representatives.append(c);
+		}
+		int classCount = representatives.length();
+
+		// Subset construction, starting from the first state of every pattern.
+		HashMap<StateSet, Integer> ids = new HashMap<StateSet, Integer>();
+		ArrayList<int[]> sets = new ArrayList<int[]>();
+		int[] initial = new int[normalized.size()];
+		for (int i = 0, p = 0; i < nfaStates; i++) {
+			if (i == 0 || isEnd[i - 1])
+				initial[p++] = i;
+		}
+		int[] transitions = new int[Math.max(1, classCount * 16)];
+		ArrayList<Boolean> accepting = new ArrayList<Boolean>();
+		int[] next = new int[nfaStates];
+		int[] buffer = new int[nfaStates];
+		int[] seen = new int[nfaStates];
+
+		int stamp = 1;
+		int start = addState(closure(initial, initial.length, tokens, isEnd, buffer, seen, stamp), tokens, isEnd, ids,
+				sets, accepting);
+		for (int state = 0; state < sets.size(); state++) {
+			int[] set = sets.get(state);
+			if (transitions.length < (state + 1) * classCount)
+				transitions = Arrays.copyOf(transitions, Math.max(transitions.length * 2, (state + 1) * classCount));
+
+			for (int k = 0; k < classCount; k++) {
+				char c = representatives.charAt(k);
+				int count = 0;
+				for (int s : set) {
+					if (isEnd[s])
+						continue;
+					char token = tokens[s];
+					if (token == '*')
+						next[count++] = s;
+					else if (token == '?' || (k != 0 && token == c))
+						next[count++] = s + 1;
+				}
+				int[] closed = closure(next, count, tokens, isEnd, buffer, seen, ++stamp);
+				int target = addState(closed, tokens, isEnd, ids, sets, accepting);
+				if (sets.size() > MAXIMUM_STATES)
+					throw new IllegalArgumentException("Patterns need more than " + MAXIMUM_STATES + " DFA states.");
+				transitions[state * classCount + k] = target;
+			}
+		}
+
+		boolean[] acceptingArray = new boolean[sets.size()];
+		for (int i = 0; i < acceptingArray.length; i++)
+			acceptingArray[i] = accepting.get(i);
+		return new GlobAutomaton(classes, classCount, Arrays.copyOf(transitions, sets.size() * classCount),
+				acceptingArray, start, normalized.size());
+	}
+
+	/**
+	 * Adds the states that can be reached without reading a character,
+	 * which is skipping over a '*' that matches nothing.
+	 *
+	 * @param states the states.
+	 * @param count the number of states.
+	 * @param buffer scratch space for the result, as large as the NFA.
+	 * @param seen marks which states were added, compared against stamp.
+	 * @param stamp a value not used in seen before.
+	 * @return the sorted states without duplicates.
+	 */
+	private static int[] closure(int[] states, int count, char[] tokens, boolean[] isEnd, int[] buffer,
+			int[] seen, int stamp) {
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			int s = states[i];
+			while (true) {
+				if (seen[s] != stamp) {
+					seen[s] = stamp;
+					buffer[size++] = s;
+				}
+				if (isEnd[s] || tokens[s] != '*')
+					break;
+				s++;
+			}
+		}
+		int[] result = Arrays.copyOf(buffer, size);
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Returns the DFA state for a set of NFA states, creating it if needed.
+	 */
+	private static int addState(int[] set, char[] tokens, boolean[] isEnd, HashMap<StateSet, Integer> ids,
+			ArrayList<int[]> sets, ArrayList<Boolean> accepting) {
+		if (set.length == 0)
+			return DEAD;
+
+		boolean accepts = false;
+		for (int s : set) {
+			// A pattern ending in '*' that has matched stays matched forever.
+			if (!isEnd[s] && tokens[s] == '*' && isEnd[s + 1])
+				return ACCEPT_ALL;
+			accepts |= isEnd[s];
+		}
+
+		StateSet key = new StateSet(set);
+		Integer id = ids.get(key);
+		if (id == null) {
+			id = sets.size();
+			ids.put(key, id);
+			sets.add(set);
+			accepting.add(accepts);
+		}
+		return id;
+	}
+
+	/**
+	 * Checks whether the name matches any of the patterns.
+	 *
+	 * @param name the domain name to check.
+	 * @return true if a pattern matches the whole name.
+	 */
+	@Override
+	public boolean contains(CharSequence name) {
+		int end = name.length();
+		if (end > 0 && name.charAt(end - 1) == '.')
+			end--;
+
+		int state = start;
+		if (state < 0)
+			return state == ACCEPT_ALL;
+		for (int i = 0; i < end; i++) {
+			state = transitions[state * classCount + classes[name.charAt(i)]];
+			if (state < 0)
+				return state == ACCEPT_ALL;
+		}
+		return accepting[state];
+	}
+
+	public int getPatternCount() { return patternCount; }
+	public int getStateCount() { return accepting.length; }
+}
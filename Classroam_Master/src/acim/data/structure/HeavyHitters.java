@@ -0,0 +1,205 @@
+package acim.data.structure;
+
+import java.util.*;
+
+/**
+ * Tracks the most frequent domain names over a sliding time window, in
+ * bounded memory.
+ *
+ * Time is split into a ring of fixed-length buckets. Each bucket counts names
+ * with a {@link CountMinSketch} and keeps the names with the highest estimates
+ * in a min-heap of at most K entries, so a name only has to beat the smallest
+ * of them to get in. When the ring wraps around, the oldest bucket is cleared
+ * and reused. A query over the last few buckets merges their heaps and ranks
+ * the candidates by the sum of their estimates in those buckets.
+ *
+ * Names are added from every client thread, so each bucket has its own lock
+ * instead of one lock for the whole tracker. Adders take the lock of the
+ * current bucket once per batch with {@link #addAll(Map, long)}, and a query
+ * takes the lock of one bucket at a time, so it never holds up adders for the
+ * whole window.
+ */
+public class HeavyHitters {
+	private final long bucketMillis;
+	private final int topCount;
+	private final Bucket[] buckets;
+
+	/**
+	 * A name and its estimated count.
+	 */
+	public static class Entry {
+		private final String name;
+		private long count;
+
+		private Entry(String name, long count) {
+			this.name = name;
+			this.count = count;
+		}
+
+		public String getName() { return name; }
+		public long getCount() { return count; }
+
+		@Override
+		public String toString() {
+			return name + "=" + count;
+		}
+	}
+
+	private static class Bucket {
+		// The index of the time slot this bucket currently counts, or -1 if it is unused.
+		private long slot = -1;
+		private final CountMinSketch sketch;
+		private final PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Comparator.comparingLong(Entry::getCount));
+		private final HashMap<String, Entry> top = new HashMap<String, Entry>();
+
+		private Bucket(int sketchWidth, int sketchDepth) {
+			sketch = new CountMinSketch(sketchWidth, sketchDepth);
+		}
+	}
+
+	/**
+	 * Creates an empty tracker.
+	 *
+	 * @param bucketCount how many buckets the window is made of.
+	 * @param bucketMillis the length of one bucket, in milliseconds.
+	 * @param topCount how many names are kept per bucket (K).
+	 * @param sketchWidth the number of counters per sketch row.
+	 * @param sketchDepth the number of sketch rows.
+	 */
+	public HeavyHitters(int bucketCount, long bucketMillis, int topCount, int sketchWidth, int sketchDepth) {
+		if (bucketCount < 1 || bucketMillis < 1 || topCount < 1)
+			throw new IllegalArgumentException("Bucket count, bucket length and top count must be positive.");
+		this.bucketMillis = bucketMillis;
+		this.topCount = topCount;
+		buckets = new Bucket[bucketCount];
+		for (int i = 0; i < bucketCount; i++)
+			buckets[i] = new Bucket(sketchWidth, sketchDepth);
+	}
+
+	/**
+	 * Counts occurrences of a name in the bucket of the given time.
+	 *
+	 * @param name the name, which should already be normalized.
+	 * @param count how often it was seen.
+	 * @param nowMillis the current time in milliseconds.
+	 */
+	public void add(String name, long count, long nowMillis) {
+		addAll(Collections.singletonMap(name, count), nowMillis);
+	}
+
+	/**
+	 * Counts occurrences of several names in the bucket of the given time,
+	 * taking its lock once.
+	 *
+	 * @param counts the names, which should already be normalized, and how often each was seen.
+	 * @param nowMillis the current time in milliseconds.
+	 */
+	public void addAll(Map<String, Long> counts, long nowMillis) {
+		long slot = nowMillis / bucketMillis;
+		Bucket bucket = buckets[(int) (slot % buckets.length)];
+		synchronized (bucket) {
+			if (bucket.slot != slot) {
+				bucket.sketch.clear();
+				bucket.heap.clear();
+				bucket.top.clear();
+				bucket.slot = slot;
+			}
+			for (Map.Entry<String, Long> count : counts.entrySet())
+				add(bucket, count.getKey(), count.getValue());
+		}
+	}
+
+	/**
+	 * Counts a name in a bucket. Must be called with the bucket's lock held.
+	 */
+	private void add(Bucket bucket, String name, long count) {
+		long estimate = bucket.sketch.add(name, count);
+		Entry entry = bucket.top.get(name);
+		if (entry != null) {
+			// Reinsert the entry so the heap sees its new count.
+			bucket.heap.remove(entry);
+			entry.count = estimate;
+			bucket.heap.add(entry);
+		} else if (bucket.top.size() < topCount) {
+			entry = new Entry(name, estimate);
+			bucket.top.put(name, entry);
+			bucket.heap.add(entry);
+		} else if (estimate > bucket.heap.peek().count) {
+			bucket.top.remove(bucket.heap.poll().name);
+			entry = new Entry(name, estimate);
+			bucket.top.put(name, entry);
+			bucket.heap.add(entry);
+		}
+	}
+
+	/**
+	 * Returns the most frequent names over the last buckets.
+	 *
+	 * @param bucketCount how many of the most recent buckets to include,
+	 * at most the number of buckets of the tracker.
+	 * @param limit the maximum number of names to return.
+	 * @param nowMillis the current time in milliseconds.
+	 * @return the names and their estimated counts, most frequent first.
+	 */
+	public List<Entry> getTop(int bucketCount, int limit, long nowMillis) {
+		long lastSlot = nowMillis / bucketMillis;
+		long firstSlot = lastSlot - Math.min(bucketCount, buckets.length) + 1;
+
+		HashSet<String> candidates = new HashSet<String>();
+		for (Bucket bucket : buckets) {
+			synchronized (bucket) {
+				if (bucket.slot >= firstSlot && bucket.slot <= lastSlot)
+					candidates.addAll(bucket.top.keySet());
+			}
+		}
+
+		// Sum the estimates bucket by bucket, so each lock is taken once.
+		HashMap<String, Entry> counts = new HashMap<String, Entry>();
+		for (String name : candidates)
+			counts.put(name, new Entry(name, 0));
+		for (Bucket bucket : buckets) {
+			synchronized (bucket) {
+				if (bucket.slot >= firstSlot && bucket.slot <= lastSlot) {
+					for (Entry entry : counts.values())
+						entry.count += bucket.sketch.estimate(entry.name);
+				}
+			}
+		}
+		ArrayList<Entry> result = new ArrayList<Entry>(counts.values());
+		result.sort(Comparator.comparingLong(Entry::getCount).reversed());
+		return result.subList(0, Math.min(limit, result.size()));
+	}
+
+	/**
+	 * Returns the total count of all names over the last buckets.
+	 *
+	 * @param bucketCount how many of the most recent buckets to include.
+	 * @param nowMillis the current time in milliseconds.
+	 * @return the total count.
+	 */
+	public long getTotal(int bucketCount, long nowMillis) {
+		long lastSlot = nowMillis / bucketMillis;
+		long firstSlot = lastSlot - Math.min(bucketCount, buckets.length) + 1;
+		long total = 0;
+		for (Bucket bucket : buckets) {
+			synchronized (bucket) {
+				if (bucket.slot >= firstSlot && bucket.slot <= lastSlot)
+					total += bucket.sketch.getTotal();
+			}
+		}
+		return total;
+	}
+
+	public int getBucketCount() { return buckets.length; }
+	public long getBucketMillis() { return bucketMillis; }
+
+	/**
+	 * @return the approximate heap memory used by the sketches, in bytes.
+	 */
+	public long estimateMemoryBytes() {
+		long bytes = 0;
+		for (Bucket bucket : buckets)
+			bytes += bucket.sketch.estimateMemoryBytes();
+		return bytes;
+	}
+}
@@ -0,0 +1,202 @@
+package acim.data.structure;
+
+import java.util.function.*;
+
+/**
+ * A hierarchical timing wheel: a timer for many timeouts that are scheduled,
+ * cancelled and expired in constant time each, no matter how many there are.
+ *
+ * Time is counted in ticks, which the caller advances, usually once a
+ * second from a single thread. The wheel has {@link #LEVELS} levels of
+ * {@link #SLOTS} slots. A slot of the first level holds the timeouts of one
+ * tick, a slot of the second level those of {@link #SLOTS} ticks, and so on,
+ * so four levels of 64 slots reach 64^4 ticks ahead, which is over 190 days
+ * at one tick per second. Timeouts further ahead wait in the last level
+ * until they are in reach. When the first level has gone around once, the
+ * next slot of the second level is emptied and its timeouts are spread over
+ * the first level, and likewise for the levels above it.
+ *
+ * Each slot is a doubly-linked list, so a timeout is cancelled by unlinking
+ * it. Advancing costs one step per tick plus one step per timeout that
+ * expires or moves down a level, which happens at most {@link #LEVELS} - 1
+ * times to each timeout.
+ *
+ * The wheel is not thread-safe.
+ *
+ * @param <T> what the timeouts carry.
+ */
+public class HierarchicalTimingWheel<T> {
+	public static final int LEVELS = 4;
+	private static final int SLOT_BITS = 6;
+	public static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	// How many ticks ahead the last level reaches.
+	private static final long RANGE = 1L << (SLOT_BITS * LEVELS);
+
+	/**
+	 * A scheduled timeout, which can be used to cancel it.
+	 *
+	 * @param <T> what the timeout carries.
+	 */
+	public static class Timeout<T> {
+		private final T item;
+		private final long deadline;
+		private Timeout<T> previous, next;
+		private Timeout<T>[] slots;
+		private int slot = -1;
+
+		private Timeout(T item, long deadline) {
+			this.item = item;
+			this.deadline = deadline;
+		}
+
+		public T getItem() { return item; }
+		public long getDeadline() { return deadline; }
+
+		/**
+		 * @return true if the timeout has neither expired nor been cancelled.
+		 */
+		public boolean isPending() { return slot >= 0; }
+	}
+
+	// The first timeout of every slot of every level.
+	private final Timeout<T>[][] wheels;
+	private long currentTick;
+	private int size;
+
+	/**
+	 * Creates an empty wheel.
+	 *
+	 * @param startTick the current tick. Timeouts expire once the wheel is advanced past their deadline.
+	 */
+	@SuppressWarnings("unchecked")
+	public HierarchicalTimingWheel(long startTick) {
+		wheels = (Timeout<T>[][]) new Timeout<?>[LEVELS][SLOTS];
+		currentTick = startTick;
+	}
+
+	/**
+	 * Schedules a timeout.
+	 *
+	 * @param item what the timeout carries.
+	 * @param deadline the tick the timeout expires at. A deadline that has passed expires at the next tick.
+	 * @return the timeout, to cancel it.
+	 */
+	public Timeout<T> schedule(T item, long deadline) {
+		Timeout<T> timeout = new Timeout<T>(item, deadline);
+		// The current tick has been expired already.
+		place(timeout, currentTick + 1);
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * Cancels a timeout.
+	 *
+	 * @param timeout the timeout, or null.
+	 * @return true if the timeout was pending.
+	 */
+	public boolean cancel(Timeout<T> timeout) {
+		if (timeout == null || !timeout.isPending())
+			return false;
+		unlink(timeout);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Advances the wheel tick by tick and expires every timeout whose deadline is passed.
+	 *
+	 * @param tick the new current tick. Ticks before the current one are ignored.
+	 * @param expired called with every expired timeout's item, in the order of their deadlines.
+	 * @return the number of timeouts that expired.
+	 */
+	public int advance(long tick, Consumer<T> expired) {
+		int count = 0;
+		while (currentTick < tick) {
+			long next = currentTick + 1;
+			// Moving to a new slot of a level moves the timeouts of that slot down.
+			for (int level = 1; level < LEVELS && (next & ((1L << (SLOT_BITS * level)) - 1)) == 0; level++)
+				cascade(level, slotOf(next, level), next);
+			currentTick = next;
+
+			Timeout<T>[] slots = wheels[0];
+			int slot = slotOf(next, 0);
+			while (slots[slot] != null) {
+				Timeout<T> timeout = slots[slot];
+				unlink(timeout);
+				size--;
+				count++;
+				expired.accept(timeout.item);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Moves the timeouts of a slot to the levels below it.
+	 */
+	private void cascade(int level, int slot, long base) {
+		Timeout<T> timeout = wheels[level][slot];
+		wheels[level][slot] = null;
+		while (timeout != null) {
+			Timeout<T> next = timeout.next;
+			timeout.previous = timeout.next = null;
+			place(timeout, base);
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Puts a timeout into the lowest level whose slots reach its deadline.
+	 *
+	 * @param base the first tick that has not been expired yet.
+	 */
+	private void place(Timeout<T> timeout, long base) {
+		long deadline = Math.max(timeout.deadline, base);
+		long ahead = deadline - base;
+		int level = 0;
+		while (level < LEVELS - 1 && ahead >= (1L << (SLOT_BITS * (level + 1))))
+			level++;
+		// Timeouts beyond the last level wait in its furthest slot and are placed again when it is emptied.
+		if (ahead >= RANGE)
+			deadline = base + RANGE - 1;
+		link(timeout, wheels[level], slotOf(deadline, level));
+	}
+
+	private static int slotOf(long tick, int level) {
+		return (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+	}
+
+	private void link(Timeout<T> timeout, Timeout<T>[] slots, int slot) {
+		timeout.slots = slots;
+		timeout.slot = slot;
+		timeout.previous = null;
+		timeout.next = slots[slot];
+		if (slots[slot] != null)
+			slots[slot].previous = timeout;
+		slots[slot] = timeout;
+	}
+
+	private void unlink(Timeout<T> timeout) {
+		if (timeout.previous != null)
+			timeout.previous.next = timeout.next;
+		else
+			timeout.slots[timeout.slot] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.previous = timeout.previous;
+		timeout.previous = timeout.next = null;
+		timeout.slots = null;
+		timeout.slot = -1;
+	}
+
+	/**
+	 * @return the tick the wheel was last advanced to.
+	 */
+	public long getCurrentTick() { return currentTick; }
+
+	/**
+	 * @return the number of pending timeouts.
+	 */
+	public int size() { return size; }
+}
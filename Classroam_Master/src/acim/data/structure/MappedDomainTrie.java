@@ -0,0 +1,124 @@
+package acim.data.structure;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * A read-only {@link DomainLabelTrie} that is queried in place inside a
+ * ByteBuffer, usually a memory-mapped ban list image. Nothing is copied
+ * onto the heap, and lookups never allocate.
+ *
+ * The section is laid out as big-endian values:
+ * node count, ban count and allow count (ints), the edge labels (chars),
+ * the child offsets (ints), the terminal bits (longs) and the allow bits (longs).
+ */
+public class MappedDomainTrie implements DomainSet {
+	private final ByteBuffer buffer;
+	private final int nodeCount, banCount, allowCount;
+	private final int labelsOffset, firstChildOffset, terminalOffset, allowedOffset;
+
+	private MappedDomainTrie(ByteBuffer buffer, int offset) {
+		this.buffer = buffer;
+		nodeCount = buffer.getInt(offset);
+		banCount = buffer.getInt(offset + 4);
+		allowCount = buffer.getInt(offset + 8);
+
+		int words = (nodeCount + 63) / 64;
+		labelsOffset = offset + 12;
+		firstChildOffset = labelsOffset + nodeCount * 2;
+		terminalOffset = firstChildOffset + (nodeCount + 1) * 4;
+		allowedOffset = terminalOffset + words * 8;
+	}
+
+	/**
+	 * Writes a trie in the layout read by {@link #read(ByteBuffer)}.
+	 *
+	 * @param trie the trie to write.
+	 * @param out the stream to write to.
+	 * @throws IOException if writing fails.
+	 */
+	public static void write(DomainLabelTrie trie, DataOutputStream out) throws IOException {
+		CompactTrie compact = trie.getTrie();
+		out.writeInt(compact.getNodeCount());
+		out.writeInt(trie.getBanCount());
+		out.writeInt(trie.getAllowCount());
+		for (char label : compact.getLabels())
+			out.writeChar(label);
+		for (int child : compact.getFirstChild())
+			out.writeInt(child);
+		for (long bits : compact.getTerminal())
+			out.writeLong(bits);
+		for (long bits : trie.getAllowed())
+			out.writeLong(bits);
+	}
+
+	/**
+	 * Wraps the trie section that starts at the buffer's position,
+	 * and moves the position past the end of the section.
+	 *
+	 * @param buffer the buffer holding the section, in big-endian order.
+	 * @return the trie, backed by the buffer.
+	 * @throws BufferUnderflowException if the buffer ends before the section does.
+	 */
+	public static MappedDomainTrie read(ByteBuffer buffer) {
+		if (buffer.remaining() < 12)
+			throw new BufferUnderflowException();
+		long nodeCount = buffer.getInt(buffer.position());
+		long bytes = 12 + nodeCount * 2 + (nodeCount + 1) * 4 + (nodeCount + 63) / 64 * 8 * 2;
+		if (nodeCount < 1 || bytes > buffer.remaining())
+			throw new BufferUnderflowException();
+		MappedDomainTrie trie = new MappedDomainTrie(buffer, buffer.position());
+		buffer.position(trie.allowedOffset + ((trie.nodeCount + 63) / 64) * 8);
+		return trie;
+	}
+
+	private int child(int node, char c) {
+		int low = buffer.getInt(firstChildOffset + node * 4);
+		int high = buffer.getInt(firstChildOffset + (node + 1) * 4) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			char label = buffer.getChar(labelsOffset + mid * 2);
+			if (label < c)
+				low = mid + 1;
+			else if (label > c)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	private boolean isSet(int offset, int node) {
+		return (buffer.getLong(offset + (node >>> 6) * 8) & (1L << node)) != 0;
+	}
+
+	/**
+	 * Checks whether the name or any of its parent domains is banned,
+	 * exactly like {@link DomainLabelTrie#contains(CharSequence)}.
+	 */
+	@Override
+	public boolean contains(CharSequence name) {
+		int end = name.length();
+		if (end > 0 && name.charAt(end - 1) == '.')
+			end--;
+
+		boolean banned = false;
+		int node = 0;
+		for (int i = end - 1; i >= 0; i--) {
+			char c = name.charAt(i);
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			node = child(node, c);
+			if (node < 0)
+				break;
+
+			if ((i == 0 || name.charAt(i - 1) == '.') && isSet(terminalOffset, node))
+				banned = !isSet(allowedOffset, node);
+		}
+		return banned;
+	}
+
+	public int getNodeCount() { return nodeCount; }
+	public int getBanCount() { return banCount; }
+	public int getAllowCount() { return allowCount; }
+}
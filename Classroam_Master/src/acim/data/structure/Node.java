@@ -2,7 +2,7 @@ package acim.data.structure;
 
 import java.util.*;
 
-public class Node {
+public class Node implements DomainSet {
 	private ArrayList<Node> children;
 	private char character;
 	private boolean end;
@@ -50,22 +50,27 @@ public class Node {
 		}
 		return child;
 	}
-	public boolean entryExists(String str) {
+	public boolean entryExists(CharSequence str) {
 		Node currentChild = this;
-		String lastStr = "";
-		int i = 0;
-		int origlen = str.length();
-		while (currentChild != null && !currentChild.isEnd() && i < origlen) {
-			for (Iterator<Node> it = currentChild.children.iterator(); it.hasNext(); ) {
-				Node child = (Node) it.next();
-				if (child.character == str.charAt(i)) {
-					lastStr += child.character;
-					currentChild = child;
-					i++;
-					break;
-				}
+		for (int i = 0; i < str.length() && currentChild != null; i++) {
+			currentChild = currentChild.findChild(str.charAt(i));
+		}
+		return currentChild != null && currentChild.isEnd();
+	}
+	@Override
+	public boolean contains(CharSequence str) {
+		return entryExists(str);
+	}
+	private Node findChild(char character) {
+		if (children == null) {
+			return null;
+		}
+		for (int i = 0; i < children.size(); i++) {
+			Node child = children.get(i);
+			if (child.character == character) {
+				return child;
 			}
 		}
-		return str.equals(lastStr);
+		return null;
 	}
 }
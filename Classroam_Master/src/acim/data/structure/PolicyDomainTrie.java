@@ -0,0 +1,173 @@
+package acim.data.structure;
+
+import java.util.*;
+
+/**
+ * A {@link DomainLabelTrie} shared by up to 64 ban policies.
+ *
+ * Every rule is stored once, no matter how many policies use it, and its
+ * terminal node carries two bit masks: the policies that ban the name and
+ * the policies that make an exception for it. A base list that every policy
+ * builds on is therefore stored exactly once, and each overlay only adds the
+ * rules that are new to it. When several rule sets have a rule for the same
+ * name, the later set decides for its policies, so an overlay can ban a name
+ * that the base list makes an exception for, and the other way around.
+ *
+ * A lookup carries the bit mask of the policies to evaluate and walks the
+ * name once from its last label to its first. At every rule on the way, the
+ * verdict of each policy the rule belongs to is overwritten, so the most
+ * specific rule still wins per policy. The name is banned if any of the
+ * selected policies bans it.
+ */
+public class PolicyDomainTrie {
+	public static final int MAXIMUM_POLICIES = 64;
+
+	private final CompactTrie trie;
+	// Masks are only stored for terminal nodes, indexed by the node's rank among them.
+	private final int[] terminalRanks;
+	private final long[] banMasks;
+	private final long[] allowMasks;
+
+	/**
+	 * The rules that a set of policies adds.
+	 */
+	public static class RuleSet {
+		private final long policies;
+		private final Collection<String> banned;
+		private final Collection<String> allowed;
+
+		/**
+		 * @param policies the bit mask of the policies the rules belong to.
+		 * @param banned the banned domains, which also ban their subdomains.
+		 * @param allowed the exceptions to the banned domains.
+		 */
+		public RuleSet(long policies, Collection<String> banned, Collection<String> allowed) {
+			this.policies = policies;
+			this.banned = banned;
+			this.allowed = allowed;
+		}
+	}
+
+	private PolicyDomainTrie(CompactTrie trie, int[] terminalRanks, long[] banMasks, long[] allowMasks) {
+		this.trie = trie;
+		this.terminalRanks = terminalRanks;
+		this.banMasks = banMasks;
+		this.allowMasks = allowMasks;
+	}
+
+	/**
+	 * Builds the shared trie out of the rules of every policy.
+	 * Rules are normalized to lower case and a trailing dot is ignored.
+	 *
+	 * @param ruleSets the rules, for example a base list for all policies
+	 * followed by one overlay per policy. For the same name, a later set
+	 * overrides the rules of the earlier ones for its policies, and within
+	 * a set an exception wins over a ban.
+	 * @return the built trie.
+	 */
+	public static PolicyDomainTrie build(List<RuleSet> ruleSets) {
+		// Merge the masks of rules that appear in several sets, so that a policy's bit is only
+		// ever set in one of them: the ban mask or the allow mask.
+		HashMap<String, long[]> rules = new HashMap<String, long[]>();
+		for (RuleSet ruleSet : ruleSets) {
+			for (String domain : ruleSet.banned) {
+				long[] masks = rules.computeIfAbsent(reverse(domain), key -> new long[2]);
+				masks[0] |= ruleSet.policies;
+				masks[1] &= ~ruleSet.policies;
+			}
+			for (String domain : ruleSet.allowed) {
+				long[] masks = rules.computeIfAbsent(reverse(domain), key -> new long[2]);
+				masks[0] &= ~ruleSet.policies;
+				masks[1] |= ruleSet.policies;
+			}
+		}
+		CompactTrie trie = CompactTrie.build(rules.keySet());
+
+		long[] terminal = trie.getTerminal();
+		int[] terminalRanks = new int[terminal.length + 1];
+		for (int i = 0; i < terminal.length; i++)
+			terminalRanks[i + 1] = terminalRanks[i] + Long.bitCount(terminal[i]);
+		long[] banMasks = new long[trie.size()];
+		long[] allowMasks = new long[trie.size()];
+		PolicyDomainTrie result = new PolicyDomainTrie(trie, terminalRanks, banMasks, allowMasks);
+
+		for (Map.Entry<String, long[]> rule : rules.entrySet()) {
+			String key = rule.getKey();
+			int node = 0;
+			for (int i = 0; i < key.length(); i++)
+				node = trie.child(node, key.charAt(i));
+			int rank = result.rank(node);
+			banMasks[rank] = rule.getValue()[0];
+			allowMasks[rank] = rule.getValue()[1];
+		}
+		return result;
+	}
+
+	private static String reverse(String domain) {
+		String normalized = domain.trim().toLowerCase(Locale.ROOT);
+		if (normalized.endsWith("."))
+			normalized = normalized.substring(0, normalized.length() - 1);
+		return new StringBuilder(normalized).reverse().toString();
+	}
+
+	private int rank(int node) {
+		int word = node >>> 6;
+		return terminalRanks[word] + Long.bitCount(trie.getTerminal()[word] & ((1L << node) - 1));
+	}
+
+	/**
+	 * Checks whether the name or any of its parent domains is banned by any of the
+	 * selected policies, taking each policy's exceptions into account.
+	 *
+	 * @param name the domain name to check.
+	 * @param policies the bit mask of the policies to evaluate.
+	 * @return true if the most specific matching rule of at least one policy is a ban.
+	 */
+	public boolean contains(CharSequence name, long policies) {
+		int end = name.length();
+		if (end > 0 && name.charAt(end - 1) == '.')
+			end--;
+
+		long banned = 0;
+		int node = 0;
+		for (int i = end - 1; i >= 0; i--) {
+			char c = name.charAt(i);
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			node = trie.child(node, c);
+			if (node < 0)
+				break;
+
+			// A rule only matches whole labels. Its ban and allow masks never share a policy.
+			if ((i == 0 || name.charAt(i - 1) == '.') && trie.isTerminal(node)) {
+				int rank = rank(node);
+				banned = (banned | banMasks[rank]) & ~allowMasks[rank];
+			}
+		}
+		return (banned & policies) != 0;
+	}
+
+	/**
+	 * Returns a view of this trie that always evaluates the same policies.
+	 *
+	 * @param policies the bit mask of the policies to evaluate.
+	 * @return the view.
+	 */
+	public DomainSet forPolicies(long policies) {
+		return name -> contains(name, policies);
+	}
+
+	/**
+	 * @return the number of distinct rules, shared between all policies.
+	 */
+	public int getRuleCount() { return banMasks.length; }
+
+	/**
+	 * Estimates the heap memory used by the trie and the policy masks.
+	 *
+	 * @return the approximate size in bytes.
+	 */
+	public long estimateMemoryBytes() {
+		return trie.estimateMemoryBytes() + (long) terminalRanks.length * 4 + (long) banMasks.length * 16;
+	}
+}
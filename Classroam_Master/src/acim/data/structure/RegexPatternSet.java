@@ -0,0 +1,63 @@
+package acim.data.structure;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Matches domain names against glob patterns with a single regular
+ * expression. This is the fallback for pattern sets that would need too
+ * many states as a {@link GlobAutomaton}: it needs no build time, but the
+ * regex engine backtracks, so a lookup gets slower with every pattern.
+ */
+public class RegexPatternSet implements DomainSet {
+	private final Pattern pattern;
+	private final int patternCount;
+
+	/**
+	 * Compiles the glob patterns into one alternation.
+	 *
+	 * @param patterns the glob patterns, in the syntax of {@link GlobAutomaton}.
+	 */
+	public RegexPatternSet(Collection<String> patterns) {
+		StringBuilder regex = new StringBuilder();
+		for (String glob : patterns) {
+			if (regex.length() > 0)
+				regex.append('|');
+			regex.append(toRegex(GlobAutomaton.normalize(glob)));
+		}
+		this.pattern = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+		this.patternCount = patterns.size();
+	}
+
+	/**
+	 * Converts a normalized glob pattern into a regular expression.
+	 *
+	 * @param glob the glob pattern.
+	 * @return the equivalent regular expression.
+	 */
+	public static String toRegex(String glob) {
+		StringBuilder regex = new StringBuilder("(?:");
+		int literalStart = 0;
+		for (int i = 0; i <= glob.length(); i++) {
+			char c = (i < glob.length()) ? glob.charAt(i) : '*';
+			if (c != '*' && c != '?')
+				continue;
+			if (i > literalStart)
+				regex.append(Pattern.quote(glob.substring(literalStart, i)));
+			if (i < glob.length())
+				regex.append(c == '*' ? ".*" : ".");
+			literalStart = i + 1;
+		}
+		return regex.append(')').toString();
+	}
+
+	@Override
+	public boolean contains(CharSequence name) {
+		int end = name.length();
+		if (end > 0 && name.charAt(end - 1) == '.')
+			end--;
+		return pattern.matcher(name).region(0, end).matches();
+	}
+
+	public int getPatternCount() { return patternCount; }
+}
@@ -0,0 +1,289 @@
+package acim.data.structure;
+
+import java.util.*;
+
+/**
+ * An in-memory full-text index that finds documents by the trigrams (runs of
+ * three characters) they share with a query, so it also finds documents
+ * whose words are misspelled in the query.
+ *
+ * Text is lower-cased and split into words at every character that is not a
+ * letter or digit. Every word is padded with two spaces in front and one
+ * behind, so "ann" has the trigrams "  a", " an", "ann" and "nn ". The last
+ * word of a query is not padded behind, because it may still be typed, so
+ * "an" matches every word starting with "an". Each trigram has a posting
+ * list of the documents that contain it.
+ *
+ * A search counts, for every document in the query's posting lists, how
+ * many of the query's trigrams it has. Documents that have at least
+ * {@link #MINIMUM_SIMILARITY} of them are ranked by that share, with a bonus
+ * if they contain the query itself, and more if a word starts with it. A
+ * typo in a word only removes the trigrams around it, so the document still
+ * ranks high. Documents are added, replaced and removed one at a time.
+ *
+ * The index is not thread-safe.
+ */
+public class TrigramIndex {
+	/**
+	 * The share of the query's trigrams a document must have to be found.
+	 */
+	public static final double MINIMUM_SIMILARITY = 0.3;
+	private static final double CONTAINS_BONUS = 0.5;
+	private static final double WORD_PREFIX_BONUS = 1.0;
+
+	/**
+	 * The documents that contain one trigram, in no particular order.
+	 */
+	private static class Postings {
+		private int[] ids = new int[4];
+		private int size;
+
+		private void add(int id) {
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+		}
+
+		private void remove(int id) {
+			for (int i = 0; i < size; i++) {
+				if (ids[i] == id) {
+					ids[i] = ids[--size];
+					return;
+				}
+			}
+		}
+	}
+
+	private final HashMap<Long, Postings> postings = new HashMap<Long, Postings>();
+	// The trigrams and the normalized text of each document, by id.
+	private long[][] documentTrigrams = new long[16][];
+	private String[] documentTexts = new String[16];
+	private int documentCount;
+
+	// Reused by every search: how many query trigrams each document has, and which documents were counted.
+	private int[] counts = new int[16];
+	private int[] touched = new int[16];
+
+	/**
+	 * Adds a document, or replaces the document with the same id.
+	 *
+	 * @param id the id of the document, which should be small since arrays are sized by it.
+	 * @param text the text of the document.
+	 */
+	public void put(int id, String text) {
+		if (id < 0)
+			throw new IllegalArgumentException("Negative document id " + id);
+		remove(id);
+		if (id >= documentTexts.length) {
+			int capacity = Math.max(id + 1, documentTexts.length * 2);
+			documentTrigrams = Arrays.copyOf(documentTrigrams, capacity);
+			documentTexts = Arrays.copyOf(documentTexts, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+		}
+		String normalized = normalize(text);
+		long[] trigrams = trigrams(normalized, true);
+		for (long trigram : trigrams)
+			postings.computeIfAbsent(trigram, key -> new Postings()).add(id);
+		documentTrigrams[id] = trigrams;
+		documentTexts[id] = normalized;
+		documentCount++;
+	}
+
+	/**
+	 * Removes a document.
+	 *
+	 * @param id the id of the document.
+	 * @return true if there was a document with that id.
+	 */
+	public boolean remove(int id) {
+		if (id < 0 || id >= documentTexts.length || documentTexts[id] == null)
+			return false;
+		for (long trigram : documentTrigrams[id]) {
+			Postings list = postings.get(trigram);
+			list.remove(id);
+			if (list.size == 0)
+				postings.remove(trigram);
+		}
+		documentTrigrams[id] = null;
+		documentTexts[id] = null;
+		documentCount--;
+		return true;
+	}
+
+	/**
+	 * Removes every document.
+	 */
+	public void clear() {
+		postings.clear();
+		Arrays.fill(documentTrigrams, null);
+		Arrays.fill(documentTexts, null);
+		documentCount = 0;
+	}
+
+	/**
+	 * Finds the documents that best match a query.
+	 *
+	 * @param query what was typed.
+	 * @param limit the maximum number of documents to return.
+	 * @return the ids of the matching documents, best match first.
+	 */
+	public int[] search(String query, int limit) {
+		String normalized = normalize(query);
+		long[] queryTrigrams = trigrams(normalized, false);
+		if (queryTrigrams.length == 0 || limit <= 0)
+			return new int[0];
+
+		int touchedCount = 0;
+		for (long trigram : queryTrigrams) {
+			Postings list = postings.get(trigram);
+			if (list == null)
+				continue;
+			for (int i = 0; i < list.size; i++) {
+				int id = list.ids[i];
+				if (counts[id]++ == 0) {
+					if (touchedCount == touched.length)
+						touched = Arrays.copyOf(touched, touchedCount * 2);
+					touched[touchedCount++] = id;
+				}
+			}
+		}
+
+		int minimumCount = Math.max(1, (int) Math.ceil(queryTrigrams.length * MINIMUM_SIMILARITY));
+		String phrase = normalized.substring(1);
+		// A min-heap of the best documents so far, by score, so the worst of them is at the top.
+		int[] heapIds = new int[Math.min(limit, touchedCount)];
+		double[] heapScores = new double[heapIds.length];
+		int heapSize = 0;
+		for (int i = 0; i < touchedCount; i++) {
+			int id = touched[i];
+			int count = counts[id];
+			counts[id] = 0;
+			if (count < minimumCount)
+				continue;
+			double score = (double) count / queryTrigrams.length;
+			// Skip documents that cannot beat the worst of the best even with the bonus, before searching their text.
+			if (heapSize == heapIds.length && score + WORD_PREFIX_BONUS <= heapScores[0])
+				continue;
+			String text = documentTexts[id];
+			if (text.contains(normalized))
+				score += WORD_PREFIX_BONUS;
+			else if (text.contains(phrase))
+				score += CONTAINS_BONUS;
+			if (heapSize < heapIds.length) {
+				heapIds[heapSize] = id;
+				heapScores[heapSize] = score;
+				siftUp(heapIds, heapScores, heapSize++);
+			} else if (score > heapScores[0]) {
+				heapIds[0] = id;
+				heapScores[0] = score;
+				siftDown(heapIds, heapScores, heapSize);
+			}
+		}
+
+		// Take the worst out first and fill the result from the back.
+		int[] ids = new int[heapSize];
+		while (heapSize > 0) {
+			ids[heapSize - 1] = heapIds[0];
+			heapSize--;
+			heapIds[0] = heapIds[heapSize];
+			heapScores[0] = heapScores[heapSize];
+			siftDown(heapIds, heapScores, heapSize);
+		}
+		return ids;
+	}
+
+	private static void siftUp(int[] ids, double[] scores, int index) {
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (scores[parent] <= scores[index])
+				return;
+			swap(ids, scores, index, parent);
+			index = parent;
+		}
+	}
+
+	private static void siftDown(int[] ids, double[] scores, int size) {
+		int index = 0;
+		while (true) {
+			int smallest = index;
+			for (int child = 2 * index + 1; child <= 2 * index + 2 && child < size; child++)
+				if (scores[child] < scores[smallest])
+					smallest = child;
+			if (smallest == index)
+				return;
+			swap(ids, scores, index, smallest);
+			index = smallest;
+		}
+	}
+
+	private static void swap(int[] ids, double[] scores, int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		double score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
+	}
+
+	/**
+	 * @return the text lower-cased, with a space before every word and runs of other characters as one space.
+	 */
+	private static String normalize(String text) {
+		StringBuilder normalized = new StringBuilder(text.length() + 1);
+		boolean inWord = false;
+		for (int i = 0; i < text.length(); i++) {
+			char c = Character.toLowerCase(text.charAt(i));
+			if (Character.isLetterOrDigit(c)) {
+				if (!inWord)
+					normalized.append(' ');
+				normalized.append(c);
+				inWord = true;
+			} else {
+				inWord = false;
+			}
+		}
+		return normalized.toString();
+	}
+
+	/**
+	 * @param normalized the normalized text.
+	 * @param padLastWord whether the last word is padded behind, which a query's is not.
+	 * @return the distinct trigrams of the text.
+	 */
+	private static long[] trigrams(String normalized, boolean padLastWord) {
+		LinkedHashSet<Long> trigrams = new LinkedHashSet<Long>();
+		int start = 1;
+		while (start < normalized.length()) {
+			int end = normalized.indexOf(' ', start);
+			if (end < 0)
+				end = normalized.length();
+			boolean padEnd = padLastWord || end < normalized.length();
+			// "  word ": the first trigrams start before the word, and the last one ends after it.
+			for (int i = start - 2; i <= end - (padEnd ? 2 : 3); i++)
+				trigrams.add(trigram(normalized, start, end, i));
+			start = end + 1;
+		}
+		long[] array = new long[trigrams.size()];
+		int i = 0;
+		for (long trigram : trigrams)
+			array[i++] = trigram;
+		return array;
+	}
+
+	private static long trigram(String text, int start, int end, int from) {
+		long trigram = 0;
+		for (int i = from; i < from + 3; i++)
+			trigram = (trigram << 16) | ((i < start || i >= end) ? ' ' : text.charAt(i));
+		return trigram;
+	}
+
+	/**
+	 * @return the number of documents.
+	 */
+	public int size() { return documentCount; }
+
+	/**
+	 * @return the number of distinct trigrams.
+	 */
+	public int getTrigramCount() { return postings.size(); }
+}
@@ -5,7 +5,6 @@ import java.awt.event.*;
 
 import javax.swing.*;
 import javax.swing.border.*;
-import javax.swing.table.*;
 
 import acim.data.*;
 import acim.net.*;
@@ -145,30 +144,32 @@ public class AccountModifierFrame extends JFrame {
 							"Account creation error", JOptionPane.ERROR_MESSAGE);
 					return;
 				}
-				if (DatabaseManager.getAccountByUsername(txtUsername.getText()) != null) {
-					JOptionPane.showMessageDialog(null, "Duplicate usernames are not allowed.",
-							"Account creation error", JOptionPane.ERROR_MESSAGE);
-					return;
-				}
 				
 				Account newAccount = new Account(-1, txtUsername.getText(), null, txtFirstName.getText(),
 						txtLastName.getText(), txtEmail.getText(),
 						txtPhoneNumber.getText(), txtNotes.getText());
 				newAccount.setPassword(new String(txtPassword.getPassword()));
-				DatabaseManager.createNewAccount(newAccount);
-
-				DefaultTableModel model = (DefaultTableModel) table.getModel();
-				model.addRow(new String[] {
-						txtUsername.getText(),
-						"\u2022\u2022\u2022\u2022\u2022\u2022\u2022\u2022", // Dots to censor password
-						txtFirstName.getText(),
-						txtLastName.getText(),
-						txtEmail.getText(),
-						txtPhoneNumber.getText(),
-						txtNotes.getText()
-				});
 
-				dispose();
+				// The database is queried in the background, so disable the button until it answers.
+				btnProceed.setEnabled(false);
+				AsyncDataAccess.onEdt(DatabaseManager.findAccountByUsername(newAccount.getUsername()), existing -> {
+					if (existing != null) {
+						JOptionPane.showMessageDialog(null, "Duplicate usernames are not allowed.",
+								"Account creation error", JOptionPane.ERROR_MESSAGE);
+						btnProceed.setEnabled(true);
+						return;
+					}
+					// The accounts table inserts the new row itself when the account is stored.
+					AsyncDataAccess.onEdt(DatabaseManager.createNewAccount(newAccount), created -> {
+						dispose();
+					}, error -> {
+						AsyncDataAccess.showError(error);
+						btnProceed.setEnabled(true);
+					});
+				}, error -> {
+					AsyncDataAccess.showError(error);
+					btnProceed.setEnabled(true);
+				});
 			}
 		});
 		contentPane.add(btnProceed);
@@ -192,6 +193,9 @@ public class AccountModifierFrame extends JFrame {
 		txtPhoneNumber.setText(modify.getPhoneNumber());
 		txtNotes.setText(modify.getNotes());
 
+		// The username the account is stored with, even if it is changed below.
+		String storedUsername = modify.getUsername();
+
 		btnProceed = new JButton("Modify");
 		btnProceed.addActionListener(new ActionListener() {
 			@Override
@@ -202,18 +206,7 @@ public class AccountModifierFrame extends JFrame {
 					return;
 				}
 					
-				String oldUsername = modify.getUsername();
-				// Check if a computer is currently connected to the user that is selected.
-				ClientConnection connection = ClientManager.getConnectionFromUsername(oldUsername);
 				modify.setUsername(txtUsername.getText());
-				if (connection != null) {
-					// Change the username of the client connection.
-					connection.setCurrentUser(txtUsername.getText());
-					// Change the username and full name in the client panel, too.
-					String ipAddress = connection.getIpAddress();
-					ClientManager.setClientPanelCurrentUser(ipAddress, txtUsername.getText());
-					ClientManager.setClientPanelCurrentName(ipAddress, txtFirstName.getText() + " " + txtLastName.getText());
-				}
 				
 				// Update the account information in the object.
 				String passStr = new String(txtPassword.getPassword());
@@ -225,12 +218,24 @@ public class AccountModifierFrame extends JFrame {
 				modify.setPhoneNumber(txtPhoneNumber.getText());
 				modify.setNotes(txtNotes.getText());
 
-				// Save it to the database file.
-				DatabaseManager.updateAccount(modify);
-				// Instantly update the JTable showing the accounts.
-				DatabaseManager.updateAccountTable(true);
-				
-				dispose();
+				// Save it to the database in the background, and disable the button until it is saved.
+				btnProceed.setEnabled(false);
+				AsyncDataAccess.onEdt(DatabaseManager.updateAccount(modify, storedUsername), updated -> {
+					// Check if a computer is currently connected to the user that is selected.
+					ClientConnection connection = ClientManager.getConnectionFromUsername(storedUsername);
+					if (connection != null) {
+						// Change the username of the client connection.
+						connection.setCurrentUser(modify.getUsername());
+						// Change the username and full name in the client panel, too.
+						String ipAddress = connection.getIpAddress();
+						ClientManager.setClientPanelCurrentUser(ipAddress, modify.getUsername());
+						ClientManager.setClientPanelCurrentName(ipAddress, modify.getFirstName() + " " + modify.getLastName());
+					}
+					dispose();
+				}, error -> {
+					AsyncDataAccess.showError(error);
+					btnProceed.setEnabled(true);
+				});
 			}
 		});
 		contentPane.add(btnProceed);
@@ -0,0 +1,58 @@
+package acim.gui;
+
+import java.util.*;
+
+import javax.swing.table.*;
+
+import acim.data.*;
+
+/**
+ * A table model for the accounts found by a search, with the same columns as
+ * {@link PagedAccountTableModel}, so the accounts table can switch between them.
+ */
+public class AccountSearchTableModel extends AbstractTableModel {
+	private static final long serialVersionUID = 1L;
+
+	private List<Account> accounts = Collections.emptyList();
+
+	/**
+	 * Shows other accounts.
+	 *
+	 * @param accounts the accounts, in the order they are shown.
+	 */
+	public void setAccounts(List<Account> accounts) {
+		this.accounts = accounts;
+		fireTableDataChanged();
+	}
+
+	/**
+	 * @param row the row index.
+	 * @return the account shown in the row, without its password.
+	 */
+	public Account getAccount(int row) { return accounts.get(row); }
+
+	@Override
+	public int getRowCount() {
+		return accounts.size();
+	}
+
+	@Override
+	public int getColumnCount() {
+		return PagedAccountTableModel.COLUMNS.length;
+	}
+
+	@Override
+	public String getColumnName(int column) {
+		return PagedAccountTableModel.COLUMNS[column];
+	}
+
+	@Override
+	public boolean isCellEditable(int row, int column) {
+		return false;
+	}
+
+	@Override
+	public Object getValueAt(int row, int column) {
+		return PagedAccountTableModel.getColumnValue(accounts.get(row), column);
+	}
+}
@@ -7,6 +7,7 @@ import java.util.*;
 
 import javax.swing.*;
 
+import acim.data.*;
 import acim.net.*;
 
 /**
@@ -16,6 +17,8 @@ import acim.net.*;
  */
 public class ComputerManagerPanel extends JPanel {
 	private static final long serialVersionUID = 1L;
+	private static final int STATISTICS_WINDOW_MINUTES = 60;
+	private static final int STATISTICS_TOP_COUNT = 20;
 
 	private JPanel panelComputerList = new JPanel();	
 	public JPanel getComputerListPanel() { return panelComputerList; }
@@ -173,5 +176,32 @@ public class ComputerManagerPanel extends JPanel {
 			}
 		});
 		panelComputerControl.add(btnRestart);
+
+		JButton btnDomainStatistics = new JButton("Domain Statistics");
+		btnDomainStatistics.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				showDomainStatistics(thisPanel);
+			}
+		});
+		panelComputerControl.add(btnDomainStatistics);
+	}
+
+	/**
+	 * Shows the queries and ban hits of the last hour in a dialog that does not
+	 * block the console, see {@link DomainAnalytics}.
+	 */
+	private static void showDomainStatistics(Component parent) {
+		JTextArea text = new JTextArea(DomainAnalytics.getSnapshot(STATISTICS_WINDOW_MINUTES,
+				STATISTICS_TOP_COUNT).toString());
+		text.setEditable(false);
+		text.setCaretPosition(0);
+		JScrollPane scrollPane = new JScrollPane(text);
+		scrollPane.setPreferredSize(new Dimension(560, 400));
+
+		JDialog dialog = new JOptionPane(scrollPane, JOptionPane.INFORMATION_MESSAGE).createDialog(parent,
+				"Domain Statistics");
+		dialog.setModal(false);
+		dialog.setVisible(true);
 	}
 }
@@ -14,6 +14,7 @@ import acim.net.*;
 
 public class MainWindow {
 	private JFrame frame;
+	private static BanListWatcher banListWatcher;
 
 	public static void main(String[] args) {
 		EventQueue.invokeLater(new Runnable() {
@@ -21,9 +22,26 @@ public class MainWindow {
 				try {
 					Env.load();
 					WebsiteChecker.load();
+					WebsiteChecker.setReloadListener(new Runnable() {
+						@Override
+						public void run() {
+							// Push the new ban filter to every connected client.
+							SwingUtilities.invokeLater(new Runnable() {
+								@Override
+								public void run() {
+									ClientManager.broadcastBanFilterUpdate();
+								}
+							});
+						}
+					});
+					banListWatcher = BanListWatcher.startWatching();
+					// Opens the account store in the background while the window is built.
+					DatabaseManager.openAccountStore();
+					DatabaseManager.prefetchConfiguredRoster();
 
 					UIManager.setLookAndFeel(new FlatDarkLaf());
 					
+					SessionAccounting.start();
 					ServerThread.startServer();
 					ClientManager.initialize();
 
@@ -58,6 +76,10 @@ public class MainWindow {
 				} catch (IOException e1) {
 					e1.printStackTrace();
 				}
+				// Write the time used until now before the master exits.
+				SessionAccounting.stop();
+				if (banListWatcher != null)
+					banListWatcher.stopWatching();
 			}
 
 			@Override
@@ -0,0 +1,369 @@
+package acim.gui;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.swing.*;
+import javax.swing.table.*;
+
+import acim.data.*;
+
+/**
+ * A table model for the registered accounts that only loads the rows the
+ * user looks at.
+ *
+ * The accounts are sorted by username and split into pages. A refresh loads
+ * the number of accounts and the first username of every page, and a page is
+ * loaded when one of its rows is first shown, by seeking to its first
+ * username (keyset pagination) instead of counting past the rows before it.
+ * Only a limited number of pages are kept; the least recently shown one is
+ * dropped when the limit is reached. Rows of a page that is still loading
+ * are shown empty, and each loaded page fires one update event. A page that
+ * failed to load is reported once and stays empty until the next refresh,
+ * instead of being loaded again every time the table is painted.
+ *
+ * Changes made through the {@link CachingAccountRepository} the model is
+ * attached to with {@link #attach(CachingAccountRepository)} are applied
+ * without a refresh: the model loads only the changed accounts and inserts,
+ * updates or deletes their rows with one event each. A page's first username
+ * is just where it starts, so pages grow and shrink as accounts are added
+ * and removed, until a page gets so large that the model refreshes.
+ *
+ * All methods except the {@link AccountChangeListener} ones must be called
+ * on the Swing event dispatch thread. Queries run through {@link AsyncDataAccess}.
+ */
+public class PagedAccountTableModel extends AbstractTableModel implements AccountChangeListener {
+	private static final long serialVersionUID = 1L;
+	public static final int PAGE_SIZE = 100;
+	private static final int MAXIMUM_PAGES = 20;
+	// A page that grew this large from inserted accounts is split again by a refresh.
+	private static final int MAXIMUM_PAGE_SIZE = 2 * PAGE_SIZE;
+	static final String[] COLUMNS = { "Username", "Password", "First Name", "Last Name", "Email",
+			"Phone Number", "Notes" };
+	private static final String CENSORED_PASSWORD = "\u2022\u2022\u2022\u2022\u2022\u2022\u2022\u2022";
+	// Usernames are compared without case, like the database sorts them.
+	private static final Comparator<String> USERNAME_ORDER = String.CASE_INSENSITIVE_ORDER;
+
+	private int rowCount = 0;
+	private List<String> pageKeys = Collections.emptyList();
+	// The number of rows of each page and the row each page starts at.
+	private int[] pageSizes = { 0 };
+	private int[] pageStarts = { 0 };
+	// In access order, so the least recently shown page is dropped first.
+	private final LinkedHashMap<Integer, List<Account>> pages = new LinkedHashMap<Integer, List<Account>>(16, 0.75f,
+			true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, List<Account>> eldest) {
+			return size() > MAXIMUM_PAGES;
+		}
+	};
+	private final Set<Integer> loadingPages = new HashSet<Integer>();
+	private final Set<Integer> failedPages = new HashSet<Integer>();
+	// Incremented by every refresh, so pages loaded for an older index are ignored.
+	private int generation = 0;
+	// Incremented by every applied change, so pages that were loading meanwhile are loaded again.
+	private int changeCount = 0;
+	// Changes are applied one after another, in the order they were made.
+	private CompletableFuture<Void> pendingChanges = CompletableFuture.completedFuture(null);
+
+	/**
+	 * The row count and page keys that a refresh loads together.
+	 */
+	private static class Index {
+		private final int rowCount;
+		private final List<String> pageKeys;
+
+		private Index(int rowCount, List<String> pageKeys) {
+			this.rowCount = rowCount;
+			this.pageKeys = pageKeys;
+		}
+	}
+
+	/**
+	 * Follows the changes made through a repository, and loads the accounts.
+	 *
+	 * @param repository the repository the accounts are changed through.
+	 * @return a future that completes once the model has the page index.
+	 */
+	public CompletableFuture<Void> attach(CachingAccountRepository repository) {
+		repository.addChangeListener(this);
+		return refresh();
+	}
+
+	/**
+	 * Reloads the number of accounts and the page index, and drops every loaded
+	 * page, so the rows that are shown are loaded again. Pages that failed to
+	 * load are tried again.
+	 *
+	 * @return a future that completes once the model has the new index.
+	 */
+	public CompletableFuture<Void> refresh() {
+		int refreshGeneration = ++generation;
+		CompletableFuture<Index> index = AsyncDataAccess.supply(() -> {
+			AccountRepository accounts = DatabaseManager.getAccountRepository();
+			List<String> keys = accounts.findSnippetPageKeys(PAGE_SIZE);
+			return new Index(accounts.countSnippets(), keys);
+		});
+		return AsyncDataAccess.onEdt(index, loaded -> {
+			if (refreshGeneration != generation)
+				return;
+			rowCount = loaded.rowCount;
+			pageKeys = loaded.pageKeys;
+			int pageCount = Math.max(1, pageKeys.size());
+			pageSizes = new int[pageCount];
+			pageStarts = new int[pageCount];
+			for (int page = 0; page < pageCount; page++) {
+				pageStarts[page] = page * PAGE_SIZE;
+				pageSizes[page] = Math.max(0, Math.min(PAGE_SIZE, rowCount - pageStarts[page]));
+			}
+			pages.clear();
+			loadingPages.clear();
+			failedPages.clear();
+			fireTableDataChanged();
+		});
+	}
+
+	/**
+	 * Queues a change to an account. The changed accounts are loaded in the
+	 * background and their rows are patched on the EDT. Can be called from any thread.
+	 */
+	@Override
+	public void accountChanged(String oldUsername, String newUsername) {
+		SwingUtilities.invokeLater(() -> {
+			// Whether each username had a row before the change, if its page is not loaded to tell.
+			LinkedHashMap<String, Boolean> usernames = new LinkedHashMap<String, Boolean>();
+			if (oldUsername != null)
+				usernames.put(oldUsername, true);
+			if (newUsername != null)
+				usernames.put(newUsername, newUsername.equals(oldUsername));
+
+			pendingChanges = pendingChanges.thenCompose(previous -> {
+				CompletableFuture<Map<String, Account>> snippets = AsyncDataAccess.supply(() -> {
+					HashMap<String, Account> found = new HashMap<String, Account>();
+					for (String username : usernames.keySet())
+						found.put(username, DatabaseManager.getAccountRepository().findSnippet(username));
+					return found;
+				});
+				int changeGeneration = generation;
+				return AsyncDataAccess.onEdt(snippets, found -> {
+					// A refresh that started in between already has the change.
+					if (changeGeneration != generation)
+						return;
+					for (Map.Entry<String, Boolean> username : usernames.entrySet())
+						applyChange(username.getKey(), username.getValue(), found.get(username.getKey()));
+				});
+			});
+		});
+	}
+
+	/**
+	 * Refreshes the whole table after a bulk change. Can be called from any thread.
+	 */
+	@Override
+	public void accountsChanged() {
+		SwingUtilities.invokeLater(() -> refresh());
+	}
+
+	/**
+	 * Inserts, updates or deletes the row of one username.
+	 *
+	 * @param username the username.
+	 * @param hadRow whether the username had a row, used when its page is not loaded.
+	 * @param snippet the account as the table shows it now, or null if it is not shown anymore.
+	 */
+	private void applyChange(String username, boolean hadRow, Account snippet) {
+		changeCount++;
+		int page = pageOf(username);
+		List<Account> accounts = pages.get(page);
+		int index = 0;
+		if (accounts != null) {
+			index = indexOf(accounts, username);
+			hadRow = index >= 0;
+		}
+
+		if (hadRow && snippet != null) {
+			if (accounts != null) {
+				accounts.set(index, snippet);
+				fireTableRowsUpdated(pageStarts[page] + index, pageStarts[page] + index);
+			}
+		} else if (hadRow) {
+			if (pageSizes[page] == 0)
+				return;
+			if (accounts != null)
+				accounts.remove(index);
+			resize(page, -1);
+			// Without the page loaded, the exact row is not known, but none of its rows are shown yet.
+			int row = pageStarts[page] + Math.max(index, 0);
+			fireTableRowsDeleted(row, row);
+		} else if (snippet != null) {
+			if (accounts != null) {
+				index = -index - 1;
+				accounts.add(index, snippet);
+			}
+			resize(page, 1);
+			int row = pageStarts[page] + index;
+			fireTableRowsInserted(row, row);
+			if (pageSizes[page] > MAXIMUM_PAGE_SIZE)
+				refresh();
+		}
+	}
+
+	private void resize(int page, int change) {
+		pageSizes[page] += change;
+		rowCount += change;
+		for (int later = page + 1; later < pageStarts.length; later++)
+			pageStarts[later] += change;
+	}
+
+	/**
+	 * @return the page a username belongs to: the last page whose first username is not after it.
+	 */
+	private int pageOf(String username) {
+		int low = 1, high = pageKeys.size() - 1, page = 0;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (USERNAME_ORDER.compare(pageKeys.get(middle), username) <= 0) {
+				page = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * @return the page a row is on.
+	 */
+	private int pageAt(int row) {
+		int low = 0, high = pageStarts.length - 1, page = 0;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (pageStarts[middle] <= row) {
+				page = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * @return the index of the username in a loaded page, or (-(insertion point) - 1) if it is not there.
+	 */
+	private static int indexOf(List<Account> accounts, String username) {
+		int low = 0, high = accounts.size() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = USERNAME_ORDER.compare(accounts.get(middle).getUsername(), username);
+			if (comparison < 0)
+				low = middle + 1;
+			else if (comparison > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -(low + 1);
+	}
+
+	private void loadPage(int page) {
+		// The first page starts at the beginning, so accounts inserted before its first username are on it too.
+		String fromUsername = (page > 0 && page < pageKeys.size()) ? pageKeys.get(page) : null;
+		if ((page > 0 && fromUsername == null) || failedPages.contains(page) || !loadingPages.add(page))
+			return;
+		int loadGeneration = generation;
+		int loadChangeCount = changeCount;
+		int size = pageSizes[page];
+
+		CompletableFuture<List<Account>> accounts = AsyncDataAccess
+				.supply(() -> DatabaseManager.getAccountRepository().findSnippetPage(fromUsername, size));
+		AsyncDataAccess.onEdt(accounts, loaded -> {
+			if (loadGeneration != generation)
+				return;
+			loadingPages.remove(page);
+			int firstRow = pageStarts[page];
+			int lastRow = firstRow + pageSizes[page] - 1;
+			// Rows were inserted or deleted while it loaded, so the page may not fit anymore. The
+			// update event makes the table ask for its rows again, which loads it again.
+			if (loadChangeCount == changeCount)
+				pages.put(page, new ArrayList<Account>(loaded));
+			if (lastRow >= firstRow)
+				fireTableRowsUpdated(firstRow, lastRow);
+		}, error -> {
+			if (loadGeneration != generation)
+				return;
+			loadingPages.remove(page);
+			failedPages.add(page);
+			AsyncDataAccess.showError(error);
+		});
+	}
+
+	/**
+	 * Returns the account shown in a row.
+	 *
+	 * @param row the row index.
+	 * @return the account, without its password, or null if its page is not loaded yet.
+	 */
+	public Account getAccount(int row) {
+		if (row < 0 || row >= rowCount)
+			return null;
+		int page = pageAt(row);
+		List<Account> accounts = pages.get(page);
+		if (accounts == null) {
+			loadPage(page);
+			return null;
+		}
+		int index = row - pageStarts[page];
+		return (index < accounts.size()) ? accounts.get(index) : null;
+	}
+
+	@Override
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	@Override
+	public int getColumnCount() {
+		return COLUMNS.length;
+	}
+
+	@Override
+	public String getColumnName(int column) {
+		return COLUMNS[column];
+	}
+
+	@Override
+	public boolean isCellEditable(int row, int column) {
+		return false;
+	}
+
+	@Override
+	public Object getValueAt(int row, int column) {
+		return getColumnValue(getAccount(row), column);
+	}
+
+	/**
+	 * @return what a column shows for an account, or null for an account that is not loaded.
+	 */
+	static Object getColumnValue(Account account, int column) {
+		if (account == null)
+			return null;
+		switch (column) {
+		case 0: return account.getUsername();
+		case 1: return CENSORED_PASSWORD;
+		case 2: return account.getFirstName();
+		case 3: return account.getLastName();
+		case 4: return account.getEmail();
+		case 5: return account.getPhoneNumber();
+		default: return account.getNotes();
+		}
+	}
+
+	/**
+	 * @return the number of pages that are loaded.
+	 */
+	public int getLoadedPageCount() { return pages.size(); }
+}
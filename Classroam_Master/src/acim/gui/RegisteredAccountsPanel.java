@@ -2,8 +2,14 @@ package acim.gui;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.io.*;
+import java.util.List;
+import java.util.concurrent.*;
 
 import javax.swing.*;
+import javax.swing.Timer;
+import javax.swing.event.*;
+import javax.swing.filechooser.*;
 import javax.swing.table.*;
 
 import acim.data.*;
@@ -16,8 +22,14 @@ import acim.net.*;
 public class RegisteredAccountsPanel extends JPanel {
 	private static final long serialVersionUID = 1L;
 
+	private static final int SEARCH_DELAY_MILLISECONDS = 150;
+	private static final int SEARCH_RESULT_LIMIT = 200;
+
 	private JTable tableAccount;
-	private DefaultTableModel tableModel;
+	private PagedAccountTableModel tableModel;
+	private AccountSearchTableModel searchModel = new AccountSearchTableModel();
+	private JTextField txtSearch;
+	private Timer searchTimer;
 	
 	public RegisteredAccountsPanel() {
 		setLayout(new GridLayout(0, 1, 0, 0));
@@ -27,16 +39,9 @@ public class RegisteredAccountsPanel extends JPanel {
 		splitPaneAccountManager.setResizeWeight(0.85);
 		add(splitPaneAccountManager);
 		
-		String column[] = {"Username", "Password", "First Name", "Last Name", "Email", "Phone Number", "Notes"};
-		String data[][] = {};
+		tableModel = new PagedAccountTableModel();
 		tableAccount = new JTable();
-		tableAccount.setModel(new DefaultTableModel(data, column) {
-			private static final long serialVersionUID = 1L;
-			@Override
-			public boolean isCellEditable(int row, int column) {
-				return false;
-			}
-		});
+		tableAccount.setModel(tableModel);
 		// Adjust some column widths...
 		TableColumnModel columnModel = tableAccount.getColumnModel();
 		columnModel.getColumn(0).setPreferredWidth(40);
@@ -45,21 +50,52 @@ public class RegisteredAccountsPanel extends JPanel {
 		columnModel.getColumn(5).setPreferredWidth(70);
 		columnModel.getColumn(6).setPreferredWidth(100);
 		tableAccount.setAutoResizeMode(JTable.AUTO_RESIZE_LAST_COLUMN);
+		// Keep the columns when switching to the search results, which have the same ones.
+		tableAccount.setAutoCreateColumnsFromModel(false);
 		
 		// Only allow the user to select ONE row in the table.
 		tableAccount.setRowSelectionAllowed(true);
 		tableAccount.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 
-		DatabaseManager.setAccountTable(tableAccount);
-		DatabaseManager.updateAccountTable();
-		tableModel = (DefaultTableModel) tableAccount.getModel();
 
 		JScrollPane scrollPaneTableAccount = new JScrollPane();
 		scrollPaneTableAccount.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
 		scrollPaneTableAccount.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_ALWAYS);
 		scrollPaneTableAccount.setViewportView(tableAccount);
+
+		// Search as the user types, once they pause for a moment.
+		txtSearch = new JTextField();
+		txtSearch.setToolTipText("Search by username, name, email or notes");
+		searchTimer = new Timer(SEARCH_DELAY_MILLISECONDS, e -> search());
+		searchTimer.setRepeats(false);
+		txtSearch.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent e) { searchTimer.restart(); }
+			@Override
+			public void removeUpdate(DocumentEvent e) { searchTimer.restart(); }
+			@Override
+			public void changedUpdate(DocumentEvent e) { searchTimer.restart(); }
+		});
+		// The accounts are shown once the store is open; a store that cannot be opened is reported.
+		AsyncDataAccess.onEdt(DatabaseManager.openAccountStore(), store -> {
+			tableModel.attach(DatabaseManager.getAccountRepository());
+			// Show changed accounts in the results, too.
+			DatabaseManager.getAccountSearchIndex().addUpdateListener(() -> SwingUtilities.invokeLater(() -> {
+				if (tableAccount.getModel() == searchModel)
+					search();
+			}));
+		});
+
+		JPanel panelSearch = new JPanel(new BorderLayout(8, 0));
+		panelSearch.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+		panelSearch.add(new JLabel("Search:"), BorderLayout.WEST);
+		panelSearch.add(txtSearch, BorderLayout.CENTER);
+
+		JPanel panelAccounts = new JPanel(new BorderLayout());
+		panelAccounts.add(panelSearch, BorderLayout.NORTH);
+		panelAccounts.add(scrollPaneTableAccount, BorderLayout.CENTER);
 		
-		splitPaneAccountManager.setLeftComponent(scrollPaneTableAccount);
+		splitPaneAccountManager.setLeftComponent(panelAccounts);
 		
 		JPanel panelAccountActions = new JPanel();
 		splitPaneAccountManager.setRightComponent(panelAccountActions);
@@ -100,8 +136,12 @@ public class RegisteredAccountsPanel extends JPanel {
 				}
 				String username = (String) tableAccount.getValueAt(tableAccount.getSelectedRow(), 0);
 				
-				Account account = DatabaseManager.getAccountByUsername(username);
-				JOptionPane.showMessageDialog(null, account.getDialogString());
+				AsyncDataAccess.onEdt(DatabaseManager.findAccountByUsername(username), account -> {
+					if (account == null)
+						JOptionPane.showMessageDialog(null, "The account \"" + username + "\" does not exist anymore.");
+					else
+						JOptionPane.showMessageDialog(null, account.getDialogString());
+				});
 			}
 		});
 		panelAccountActions.add(btnViewInformation);
@@ -132,12 +172,10 @@ public class RegisteredAccountsPanel extends JPanel {
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				AccountModifierFrame.newAccountFrame(tableAccount);
-				DatabaseManager.updateAccountTable(true);
 			}
 		});
 		panelAccountActions.add(btnNewAccount);
 		
-		/*
 		JButton btnPayForMinutes = new JButton("Pay For Minutes");
 		btnPayForMinutes.addActionListener(new ActionListener() {
 			@Override
@@ -147,6 +185,9 @@ public class RegisteredAccountsPanel extends JPanel {
 					JOptionPane.showMessageDialog(null, "Please select a row first.");
 					return;
 				}
+				String username = (String) tableAccount.getValueAt(tableAccount.getSelectedRow(), 0);
+				if (username == null)
+					return;
 				
 				String input = JOptionPane.showInputDialog("How many minutes?");
 				
@@ -157,28 +198,15 @@ public class RegisteredAccountsPanel extends JPanel {
 				try {
 					minutes = Float.parseFloat(input);
 				} catch (NumberFormatException ne) { return; }
+				long seconds = (long) (60 * minutes);
 
-				Account modify = DatabaseManager.getAccountByUsername(
-						(String) tableAccount.getValueAt(tableAccount.getSelectedRow(), 0));
-				
-				// Now add it to the balance.
-				modify.setAvailableSeconds((long) (modify.getAvailableSeconds() + (60 * minutes)));
-
-				DatabaseManager.updateAccount(modify);
-				DatabaseManager.updateAccountTable();
-
-				// Check if a computer is currently connected to the user that is selected.
-				ClientConnection connection = ClientManager.getConnectionFromUsername(modify.getUsername());
-				if (connection != null) {
-					// Update the seconds counter on the computer that's connected to the user.
-					connection.queueCommand("update available seconds " + modify.getAvailableSeconds());
-					connection.setAccount(modify);
-					connection.updateUsageSeconds();
-				}
+				// Add it to the balance; a logged in user gets it right away.
+				AsyncDataAccess.onEdt(AsyncDataAccess.supply(() -> SessionAccounting.addAvailableSeconds(username, seconds)),
+						left -> JOptionPane.showMessageDialog(null, "\"" + username + "\" now has "
+								+ ((left == null) ? "unlimited" : (left / 60) + " minutes of") + " computer time."));
 			}
 		});
 		panelAccountActions.add(btnPayForMinutes);
-		*/
 		
 		JButton btnDeleteAccount = new JButton("Delete Account");
 		btnDeleteAccount.addActionListener(new ActionListener() {
@@ -197,18 +225,85 @@ public class RegisteredAccountsPanel extends JPanel {
 					return;
 				String username = (String) tableAccount.getValueAt(tableAccount.getSelectedRow(), 0);
 				
-				Account modifyingAccount = DatabaseManager.getAccountByUsername(username);
-				DatabaseManager.removeAccount(modifyingAccount);
-				DatabaseManager.updateAccountTable(true);
-
-				// Check if a computer is currently connected to the user that is selected.
-				ClientConnection connection = ClientManager.getConnectionFromUsername(username);
-				if (connection != null) {
-					// Kick out that user since the account is now deleted.
-					connection.kickout();
-				}
+				AsyncDataAccess.onEdt(DatabaseManager.removeAccount(username), removed -> {
+					// Check if a computer is currently connected to the user that is selected.
+					ClientConnection connection = ClientManager.getConnectionFromUsername(username);
+					if (connection != null) {
+						// Kick out that user since the account is now deleted.
+						connection.kickout();
+					}
+				});
 			}
 		});
 		panelAccountActions.add(btnDeleteAccount);
+
+		JButton btnImportAccounts = new JButton("Import CSV");
+		btnImportAccounts.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser chooser = new JFileChooser();
+				chooser.setFileFilter(new FileNameExtensionFilter("CSV files", "csv"));
+				if (chooser.showOpenDialog(RegisteredAccountsPanel.this) != JFileChooser.APPROVE_OPTION)
+					return;
+
+				// Only run one import at a time.
+				btnImportAccounts.setEnabled(false);
+				AsyncDataAccess.onEdt(DatabaseManager.importAccounts(chooser.getSelectedFile().toPath()), result -> {
+					btnImportAccounts.setEnabled(true);
+					StringBuilder message = new StringBuilder(result.toString());
+					List<String> errors = result.getErrors();
+					for (int i = 0; i < Math.min(errors.size(), 20); i++)
+						message.append('\n').append(errors.get(i));
+					if (errors.size() > 20)
+						message.append("\n... and ").append(errors.size() - 20).append(" more.");
+					JOptionPane.showMessageDialog(null, message.toString(), "Account import",
+							errors.isEmpty() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
+				}, error -> {
+					btnImportAccounts.setEnabled(true);
+					AsyncDataAccess.showError(error);
+				});
+			}
+		});
+		panelAccountActions.add(btnImportAccounts);
+
+		JButton btnExportAccounts = new JButton("Export CSV");
+		btnExportAccounts.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser chooser = new JFileChooser();
+				chooser.setFileFilter(new FileNameExtensionFilter("CSV files", "csv"));
+				chooser.setSelectedFile(new File("accounts.csv"));
+				if (chooser.showSaveDialog(RegisteredAccountsPanel.this) != JFileChooser.APPROVE_OPTION)
+					return;
+
+				btnExportAccounts.setEnabled(false);
+				AsyncDataAccess.onEdt(DatabaseManager.exportAccounts(chooser.getSelectedFile().toPath()), count -> {
+					btnExportAccounts.setEnabled(true);
+					JOptionPane.showMessageDialog(null, "Exported " + count + " accounts.");
+				}, error -> {
+					btnExportAccounts.setEnabled(true);
+					AsyncDataAccess.showError(error);
+				});
+			}
+		});
+		panelAccountActions.add(btnExportAccounts);
+	}
+
+	/**
+	 * Shows the accounts that match the search box, or all accounts if it is empty.
+	 */
+	private void search() {
+		String query = txtSearch.getText().trim();
+		if (query.isEmpty()) {
+			tableAccount.setModel(tableModel);
+			return;
+		}
+		// Nothing to search before the account store is open.
+		CompletableFuture<AccountStore> store = DatabaseManager.openAccountStore();
+		if (!store.isDone() || store.isCompletedExceptionally())
+			return;
+		searchModel.setAccounts(DatabaseManager.getAccountSearchIndex().search(query, SEARCH_RESULT_LIMIT));
+		if (tableAccount.getModel() != searchModel)
+			tableAccount.setModel(searchModel);
 	}
 }
@@ -3,14 +3,17 @@ package acim.net;
 import java.awt.image.*;
 import java.io.*;
 import java.net.*;
+import java.sql.SQLException;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.imageio.*;
 import javax.swing.*;
 import javax.swing.table.*;
 
 import acim.data.*;
+import acim.data.structure.DomainSet;
 import acim.gui.*;
 
 /**
@@ -20,10 +23,14 @@ import acim.gui.*;
  * processes client commands like login, messages, screenshots, and monitors
  * session usage time.
  * 
- * Each client has its own threads for reading input, sending output, and monitoring
- * time-based usage limits (account balance).
+ * Each client has its own threads for reading input and sending output. The
+ * time-based usage limits (account balance) of logged in users are charged and
+ * enforced by {@link SessionAccounting}, which ends a session when a kickout
+ * is sent or the client disconnects.
  */
 public class ClientConnection {
+	private static final int BAN_FILTER_CHUNK_SIZE = 4096;
+
 	private Socket client;
 
 	private BufferedReader reader;
@@ -35,8 +42,11 @@ public class ClientConnection {
 	private InputThread inThread;
 	private OutputThread outThread;
 	
+	// Filled by the input thread, the session accounting thread and the Swing event thread.
 	private Queue<String> commandQueue;
-	private String currentUser;
+	// Written by the input and output threads, read by the others.
+	private volatile String currentUser;
+	private long banFilterVersion = -1;
 
 	/**
      * Creates a new client connection handler.
@@ -57,7 +67,7 @@ public class ClientConnection {
 		inThread = new InputThread();
 		outThread = new OutputThread();
 		
-		commandQueue = new LinkedList<String>();
+		commandQueue = new ConcurrentLinkedQueue<String>();
 	}
 	/**
      * Starts input and output threads to handle communication with the client.
@@ -75,9 +85,122 @@ public class ClientConnection {
 		commandQueue.add(command);
 	}
 	/**
+     * Sends the latest ban filter to the client. Clients that are only a few
+     * versions behind receive deltas, everyone else receives the full image.
+     * The pattern rules are always sent in full.
+     */
+	public synchronized void sendBanFilterUpdate() {
+		BanFilter filter = WebsiteChecker.getBanFilter();
+		if (filter == null || filter.getVersion() == banFilterVersion)
+			return;
+
+		List<BanFilter.Delta> deltas = WebsiteChecker.getFilterDeltas(banFilterVersion);
+		if (deltas != null) {
+			for (BanFilter.Delta delta : deltas)
+				queueCommand(delta.toCommand());
+		} else {
+			// Queue the whole image as one command, so that no other command
+			// can end up in the middle of the chunks.
+			queueCommand(encodeFullBanFilter(filter));
+		}
+		// Pattern rules cannot be hashed, so they are sent as text with every update.
+		queueCommand(filter.toPatternsCommand());
+		banFilterVersion = filter.getVersion();
+	}
+	/**
+     * Encodes the whole ban filter image as a multi-line command:
+     * "ban filter full &lt;version&gt; &lt;count&gt;", the image in Base64 chunks
+     * of "chunk length &lt;n&gt;" and data lines, and "ban filter end".
+     *
+     * @param filter the filter to encode.
+     * @return the command to send to the client.
+     */
+	public static String encodeFullBanFilter(BanFilter filter) {
+		byte[] image = filter.toBytes();
+		Base64.Encoder encoder = Base64.getUrlEncoder();
+		StringBuilder builder = new StringBuilder();
+		builder.append("ban filter full ").append(filter.getVersion()).append(" ").append(filter.size());
+		for (int offset = 0; offset < image.length; offset += BAN_FILTER_CHUNK_SIZE) {
+			int length = Math.min(BAN_FILTER_CHUNK_SIZE, image.length - offset);
+			builder.append("\r\nchunk length ").append(length).append("\r\n");
+			builder.append(encoder.encodeToString(Arrays.copyOfRange(image, offset, offset + length)));
+		}
+		builder.append("\r\nban filter end");
+		return builder.toString();
+	}
+	/**
+     * Parses the arguments of a "domain access batch" command. Entries look
+     * like "&lt;domain&gt;:&lt;count&gt;" and are separated by spaces.
+     *
+     * @param arguments the part of the command after "domain access batch ".
+     * @return the query count of every domain, in the order they were sent.
+     */
+	public static LinkedHashMap<String, Integer> parseDomainAccessBatch(String arguments) {
+		LinkedHashMap<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		for (String entry : arguments.trim().split(" ")) {
+			// "queries=" and "resolved=" carry the statistics, see below.
+			if (entry.indexOf('=') >= 0)
+				continue;
+			addDomainCount(counts, entry);
+		}
+		return counts;
+	}
+	/**
+     * Parses the most queried domains among all DNS queries of a client, which
+     * it sends as "resolved=&lt;domain&gt;:&lt;count&gt;,&lt;domain&gt;:&lt;count&gt;..."
+     * in a "domain access batch" command.
+     *
+     * @param arguments the part of the command after "domain access batch ".
+     * @param reported the domains of the batch, for clients that do not send
+     * the most queried domains and report every query instead.
+     * @return the query count of every domain.
+     */
+	public static Map<String, Integer> parseResolvedDomains(String arguments, Map<String, Integer> reported) {
+		for (String entry : arguments.trim().split(" ")) {
+			if (entry.startsWith("resolved=")) {
+				LinkedHashMap<String, Integer> counts = new LinkedHashMap<String, Integer>();
+				for (String domain : entry.substring("resolved=".length()).split(","))
+					addDomainCount(counts, domain);
+				return counts;
+			}
+		}
+		return reported;
+	}
+	private static void addDomainCount(Map<String, Integer> counts, String entry) {
+		int separator = entry.lastIndexOf(':');
+		if (separator <= 0)
+			return;
+		counts.merge(entry.substring(0, separator), Integer.parseInt(entry.substring(separator + 1)), Integer::sum);
+	}
+	/**
+     * Parses how many DNS queries a client answered in total, which it sends as
+     * "queries=&lt;count&gt;" at the start of a "domain access batch" command.
+     *
+     * @param arguments the part of the command after "domain access batch ".
+     * @param reported the domains of the batch, for clients that do not send a
+     * total and report every query instead.
+     * @return the number of queries.
+     */
+	public static long parseDomainQueryCount(String arguments, Map<String, Integer> reported) {
+		String trimmed = arguments.trim();
+		if (trimmed.startsWith("queries=")) {
+			int end = trimmed.indexOf(' ');
+			try {
+				return Long.parseLong(trimmed.substring("queries=".length(), (end < 0) ? trimmed.length() : end));
+			} catch (NumberFormatException e) {
+				// Counted from the domains below.
+			}
+		}
+		long queries = 0;
+		for (int count : reported.values())
+			queries += count;
+		return queries;
+	}
+	/**
      * Forces the client to be kicked out.
      */
 	public void kickout() {
+		queueCommand("kickout");
 		ClientManager.setClientPanelCurrentUser(ipAddress, "");
 		ClientManager.setClientPanelCurrentName(ipAddress, "");
 		ClientManager.setClientPanelStatus(ipAddress, ClientPanel.Status.ACTIVE);
@@ -113,6 +236,7 @@ public class ClientConnection {
 	private void close() {
 		try {
 			closeConnection();
+			SessionAccounting.endSession(this);
 			ClientManager.removeClientConnection(this);
 			System.out.println("Client disconnected: " + client.getInetAddress().getHostAddress() + ":" + client.getPort());
 		} catch (IOException e) {
@@ -120,6 +244,20 @@ public class ClientConnection {
 		}
 	}
 
+	/**
+     * Tells the client which banned sites were accessed and kicks the user out.
+     * 
+     * @param bannedDomains The banned domains that were accessed.
+     * @throws InterruptedException If interrupted while waiting for the message to go out.
+     */
+	private void kickoutForBannedDomains(List<String> bannedDomains) throws InterruptedException {
+		queueCommand("message You are trying to access a banned site. " + bannedDomains);
+		Thread.sleep(100);
+		queueCommand("kickout");
+		
+		ClientManager.setClientPanelStatus(ipAddress, ClientPanel.Status.ACTIVE);
+	}
+
 	/**
      * Handles receiving and processing data from the client.
      */
@@ -189,22 +327,59 @@ public class ClientConnection {
 						} else if (ClientManager.getConnectionFromUsername(clientUsername) != null) {
 							queueCommand("login fail This username is currently in use.<br>Please try again later.");
 						} else {
+							Long availableSeconds = null;
+							try {
+								availableSeconds = SessionAccounting.getAvailableSeconds(clientUsername);
+							} catch (SQLException e) {
+								// Do not lock users out because their balance cannot be read; they get no limit.
+								System.out.println("Cannot read the computer time of " + clientUsername
+										+ ", logging in without a limit:");
+								e.printStackTrace();
+							}
+							if (availableSeconds != null && availableSeconds <= 0) {
+								queueCommand("login fail Your account has no computer time left.");
+								continue;
+							}
 							queueCommand("allow access");
 							ClientManager.setClientPanelCurrentUser(ipAddress, clientUsername);
 							ClientManager.setClientPanelCurrentName(ipAddress,
 									account.getFirstName() + " " + account.getLastName());
 							ClientManager.setClientPanelStatus(ipAddress, ClientPanel.Status.IN_USE);
 							currentUser = clientUsername;
+							SessionAccounting.startSession(ClientConnection.this, clientUsername, availableSeconds);
+						}
+					} else if (input.startsWith("ban filter version ")) {
+						// The client reports which filter version it has.
+						synchronized (ClientConnection.this) {
+							banFilterVersion = Long.parseLong(input.substring("ban filter version ".length()).trim());
 						}
+						sendBanFilterUpdate();
+					} else if (input.startsWith("domain access batch ")) {
+						String arguments = input.substring("domain access batch ".length());
+						Map<String, Integer> entries = parseDomainAccessBatch(arguments);
+						long queries = parseDomainQueryCount(arguments, entries);
+						Map<String, Integer> resolved = parseResolvedDomains(arguments, entries);
+						ArrayList<String> bannedDomains = new ArrayList<String>();
+						DomainSet banList = WebsiteChecker.forClient(ipAddress, currentUser);
+						for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+							if (banList.contains(entry.getKey()))
+								bannedDomains.add(entry.getKey());
+						}
+						DomainAnalytics.record(ipAddress, currentUser, queries, resolved, entries, bannedDomains);
+						if (!entries.isEmpty())
+							System.out.println("Client (" + ipAddress + ") reported " + entries.size() + " domains of "
+									+ queries + " queries (" + bannedDomains.size() + " banned) - "
+									+ WebsiteChecker.getLookupStatistics());
+						if (!bannedDomains.isEmpty())
+							kickoutForBannedDomains(bannedDomains);
 					} else if (input.startsWith("domain access ")) {
 						String domain = input.substring("website access ".length() - 1).trim();
-						System.out.println("Client is trying to access: " + domain);
-						if (WebsiteChecker.isBanned(domain)) {
-							queueCommand("message You are trying to access a banned site. [" + domain + "]");
-							Thread.sleep(100);
-							queueCommand("kickout");
-							
-							ClientManager.setClientPanelStatus(ipAddress, ClientPanel.Status.ACTIVE);
+						boolean banned = WebsiteChecker.forClient(ipAddress, currentUser).contains(domain);
+						Map<String, Integer> queried = Collections.singletonMap(domain, 1);
+						DomainAnalytics.record(ipAddress, currentUser, 1, queried, queried,
+								banned ? Collections.singletonList(domain) : Collections.<String>emptyList());
+						if (banned) {
+							kickoutForBannedDomains(Collections.singletonList(domain));
 						} else {
 							queueCommand("ping");
 						}
@@ -243,11 +418,11 @@ public class ClientConnection {
 						if (command == null)
 							continue;
 						
-						/*
-						if (command.equals("kickout") && usageThread != null && !usageThread.hasEnded()) {
-							usageThread.interrupt();
+						// The user stops using up time once the client locks.
+						if (command.equals("kickout")) {
+							SessionAccounting.endSession(ClientConnection.this);
+							currentUser = null;
 						}
-						*/
 						writer.write(command + "\r\n");
 						writer.flush();
 
@@ -131,6 +131,14 @@ public class ClientManager {
 		return selectedClientConnection.getIpAddress();
 	}
 	/**
+     * Sends the latest ban filter to every connected client.
+     */
+	public static void broadcastBanFilterUpdate() {
+		for (ClientConnection connection : clientConnections) {
+			connection.sendBanFilterUpdate();
+		}
+	}
+	/**
      * Finds a client connection based on the currently logged-in username.
      * 
      * @param username The username to search for.
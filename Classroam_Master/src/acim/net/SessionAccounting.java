@@ -0,0 +1,400 @@
+package acim.net;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import acim.data.*;
+import acim.data.structure.HierarchicalTimingWheel;
+
+/**
+ * SessionAccounting charges the computer time of logged in accounts to their
+ * balance, warns users whose time is running out, and kicks them out when it
+ * is used up.
+ *
+ * Time is counted in ticks of one second. Each account with a session has a
+ * balance: the seconds it had left at the tick it was last settled, and the
+ * machines it is logged in on, which all use up its time together. Nothing
+ * is done per session while time passes. Instead, every balance with a limit
+ * has one timeout in a {@link HierarchicalTimingWheel}, at the tick its
+ * warning is due or its time runs out, and a single thread advances the wheel
+ * every second. A balance is settled, and its timeout moved, only when a
+ * session starts or ends, time is added, or its timeout expires.
+ *
+ * Used time is not written to the database right away. It is added up per
+ * account and written behind every USAGE_FLUSH_SECONDS (30 by default) with
+ * one {@link AccountRepository#addAvailableSeconds(Map)} call for all
+ * accounts, and once more when the master stops. A failed write is kept and
+ * tried again with the next one. Users are warned USAGE_WARNING_SECONDS (300
+ * by default) before their time runs out. Both are read from the .env file.
+ *
+ * Accounts without a limit are tracked too, but nothing is charged to them.
+ */
+public class SessionAccounting {
+	private static final long TICK_MILLIS = 1000;
+
+	/**
+	 * An account's time and the machines it is logged in on.
+	 */
+	private static class Balance {
+		private String username;
+		private final List<ClientConnection> connections = new ArrayList<ClientConnection>(1);
+		// The seconds left at settledTick, or null if the account has no limit.
+		private Long seconds;
+		private long settledTick;
+		private boolean warned;
+		private HierarchicalTimingWheel.Timeout<Balance> timeout;
+
+		private Balance(String username, Long seconds, long settledTick) {
+			this.username = username;
+			this.seconds = seconds;
+			this.settledTick = settledTick;
+		}
+	}
+
+	private static final long startNanos = System.nanoTime();
+	private static final HierarchicalTimingWheel<Balance> wheel = new HierarchicalTimingWheel<Balance>(0);
+	private static final HashMap<String, Balance> balances = new HashMap<String, Balance>();
+	private static final IdentityHashMap<ClientConnection, Balance> sessions = new IdentityHashMap<ClientConnection, Balance>();
+	// Used and added seconds that are not written to the database yet, by username.
+	private static HashMap<String, Long> pendingSeconds = new HashMap<String, Long>();
+	// Held while pending seconds are written, so a lookup never sees them both in the database and pending.
+	private static final Object flushLock = new Object();
+	private static ScheduledExecutorService scheduler = null;
+	private static long warningSeconds = 300;
+
+	private static long usedSeconds, chargedSeconds, warnings, kickouts;
+	private static long flushes, flushedBalances, failedFlushes;
+
+	/**
+	 * Starts advancing the timing wheel and writing used time behind. Does
+	 * nothing if it has been started already.
+	 */
+	public static synchronized void start() {
+		if (scheduler != null)
+			return;
+		warningSeconds = Env.getInt("USAGE_WARNING_SECONDS", 300);
+		int flushSeconds = Env.getInt("USAGE_FLUSH_SECONDS", 30);
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "SessionAccounting");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleAtFixedRate(SessionAccounting::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(SessionAccounting::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+
+		// Balances and pending seconds are kept by username, so they follow renamed accounts. The
+		// repository is there once the store is open, which the accounts panel reports if it fails.
+		DatabaseManager.openAccountStore().thenRun(() -> {
+			DatabaseManager.getAccountRepository().addChangeListener(new AccountChangeListener() {
+				@Override
+				public void accountChanged(String oldUsername, String newUsername) {
+					if (oldUsername != null && newUsername != null && !oldUsername.equals(newUsername))
+						rename(oldUsername, newUsername);
+				}
+
+				@Override
+				public void accountsChanged() {}
+			});
+		});
+		System.out.println("Session accounting started, warning " + warningSeconds + " s before time runs out, "
+				+ "saving used time every " + flushSeconds + " s");
+	}
+
+	/**
+	 * Stops the timing wheel and writes all used time to the database.
+	 */
+	public static void stop() {
+		synchronized (SessionAccounting.class) {
+			if (scheduler == null)
+				return;
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		flush();
+	}
+
+	private static long currentTick() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) / TICK_MILLIS;
+	}
+
+	/**
+	 * Returns how many seconds an account has left, including the time that is
+	 * not written to the database yet. This may wait for the database.
+	 *
+	 * @param username the username of the account.
+	 * @return the seconds left, or null if the account has no limit.
+	 * @throws SQLException if the balance cannot be read.
+	 */
+	public static Long getAvailableSeconds(String username) throws SQLException {
+		synchronized (SessionAccounting.class) {
+			Balance balance = balances.get(username);
+			if (balance != null) {
+				settle(balance, currentTick());
+				return balance.seconds;
+			}
+		}
+		synchronized (flushLock) {
+			Long stored = DatabaseManager.getAccountRepository().findAvailableSeconds(username);
+			Long pending;
+			synchronized (SessionAccounting.class) {
+				Balance balance = balances.get(username);
+				// A session may have started meanwhile, and its balance is the current one.
+				if (balance != null) {
+					settle(balance, currentTick());
+					return balance.seconds;
+				}
+				pending = pendingSeconds.get(username);
+			}
+			if (pending == null)
+				return stored;
+			return Math.max(0, ((stored == null) ? 0 : stored) + pending);
+		}
+	}
+
+	/**
+	 * Adds time to an account and writes it to the database right away. If the
+	 * account is logged in, its machines are told and its timeout is moved.
+	 * This waits for the database, so it must not be called on the EDT.
+	 *
+	 * @param username the username of the account.
+	 * @param seconds the seconds to add, or negative to take away.
+	 * @return the seconds the account has left now.
+	 * @throws SQLException if the time cannot be added. Then the account keeps its balance.
+	 */
+	public static Long addAvailableSeconds(String username, long seconds) throws SQLException {
+		synchronized (flushLock) {
+			DatabaseManager.getAccountRepository().addAvailableSeconds(Collections.singletonMap(username, seconds));
+		}
+		ArrayList<ClientConnection> connections;
+		Long left;
+		synchronized (SessionAccounting.class) {
+			Balance balance = balances.get(username);
+			if (balance == null) {
+				connections = null;
+				left = null;
+			} else {
+				long now = currentTick();
+				settle(balance, now);
+				balance.seconds = Math.max(0, ((balance.seconds == null) ? 0 : balance.seconds) + seconds);
+				if (balance.seconds > warningSeconds)
+					balance.warned = false;
+				reschedule(balance, now);
+				connections = new ArrayList<ClientConnection>(balance.connections);
+				left = balance.seconds;
+			}
+		}
+		// Not logged in, so the balance is the one in the database.
+		if (connections == null)
+			return getAvailableSeconds(username);
+		for (ClientConnection connection : connections)
+			connection.queueCommand("update available seconds " + left);
+		return left;
+	}
+
+	/**
+	 * Starts charging the time of a machine that an account logged in on.
+	 *
+	 * @param connection the machine.
+	 * @param username the username of the account.
+	 * @param availableSeconds the seconds the account has left, from {@link #getAvailableSeconds(String)}.
+	 */
+	public static void startSession(ClientConnection connection, String username, Long availableSeconds) {
+		Long left;
+		synchronized (SessionAccounting.class) {
+			if (sessions.containsKey(connection))
+				endSession(connection);
+			long now = currentTick();
+			Balance balance = balances.get(username);
+			if (balance == null) {
+				balance = new Balance(username, availableSeconds, now);
+				balances.put(username, balance);
+			} else {
+				// Logged in on another machine too, so both use up the same time from now on.
+				settle(balance, now);
+			}
+			balance.connections.add(connection);
+			sessions.put(connection, balance);
+			reschedule(balance, now);
+			left = balance.seconds;
+		}
+		if (left != null)
+			connection.queueCommand("update available seconds " + left);
+	}
+
+	/**
+	 * Stops charging the time of a machine, when it is kicked out or disconnects.
+	 * Does nothing if the machine has no session.
+	 *
+	 * @param connection the machine.
+	 */
+	public static synchronized void endSession(ClientConnection connection) {
+		Balance balance = sessions.remove(connection);
+		if (balance == null)
+			return;
+		long now = currentTick();
+		settle(balance, now);
+		balance.connections.remove(connection);
+		if (balance.connections.isEmpty()) {
+			wheel.cancel(balance.timeout);
+			balance.timeout = null;
+			balances.remove(balance.username);
+		} else {
+			reschedule(balance, now);
+		}
+	}
+
+	private static synchronized void rename(String oldUsername, String newUsername) {
+		Balance balance = balances.remove(oldUsername);
+		if (balance != null) {
+			balance.username = newUsername;
+			balances.put(newUsername, balance);
+		}
+		Long pending = pendingSeconds.remove(oldUsername);
+		if (pending != null)
+			pendingSeconds.merge(newUsername, pending, Long::sum);
+	}
+
+	/**
+	 * Charges the time used since the balance was last settled.
+	 */
+	private static void settle(Balance balance, long now) {
+		if (now <= balance.settledTick)
+			return;
+		long used = (now - balance.settledTick) * balance.connections.size();
+		balance.settledTick = now;
+		usedSeconds += used;
+		if (balance.seconds == null)
+			return;
+		long charged = Math.min(used, balance.seconds);
+		if (charged > 0) {
+			balance.seconds -= charged;
+			chargedSeconds += charged;
+			pendingSeconds.merge(balance.username, -charged, Long::sum);
+		}
+	}
+
+	/**
+	 * Moves the timeout of a settled balance to its next warning or to when its time runs out.
+	 */
+	private static void reschedule(Balance balance, long now) {
+		wheel.cancel(balance.timeout);
+		balance.timeout = null;
+		if (balance.seconds == null || balance.connections.isEmpty())
+			return;
+		int machines = balance.connections.size();
+		long deadline;
+		if (!balance.warned)
+			deadline = now + ceilDivide(Math.max(0, balance.seconds - warningSeconds), machines);
+		else
+			deadline = now + ceilDivide(balance.seconds, machines);
+		balance.timeout = wheel.schedule(balance, deadline);
+	}
+
+	private static long ceilDivide(long dividend, long divisor) {
+		return (dividend + divisor - 1) / divisor;
+	}
+
+	/**
+	 * Advances the wheel to the current second, then warns and kicks out the
+	 * users whose timeouts expired.
+	 */
+	private static void tick() {
+		ArrayList<Runnable> actions = new ArrayList<Runnable>();
+		synchronized (SessionAccounting.class) {
+			long now = currentTick();
+			wheel.advance(now, balance -> {
+				balance.timeout = null;
+				settle(balance, now);
+				List<ClientConnection> connections = new ArrayList<ClientConnection>(balance.connections);
+				long left = balance.seconds;
+				if (left > 0 && balance.warned) {
+					// Rounding left a few seconds.
+					reschedule(balance, now);
+				} else if (left > 0) {
+					balance.warned = true;
+					reschedule(balance, now);
+					warnings++;
+					long minutes = (left + 59) / 60;
+					actions.add(() -> {
+						for (ClientConnection connection : connections) {
+							connection.queueCommand("message You have " + minutes + " minute"
+									+ ((minutes == 1) ? "" : "s") + " of computer time left.");
+							connection.queueCommand("update available seconds " + left);
+						}
+					});
+				} else {
+					// The sessions end when the kickout is sent.
+					kickouts += connections.size();
+					actions.add(() -> {
+						for (ClientConnection connection : connections) {
+							connection.queueCommand("message Your computer time is used up.");
+							connection.kickout();
+						}
+					});
+				}
+			});
+		}
+		for (Runnable action : actions) {
+			try {
+				action.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Settles every balance and writes the time used since the last write to
+	 * the database in one batch. If that fails, the time is kept for the next one.
+	 */
+	private static void flush() {
+		synchronized (flushLock) {
+			HashMap<String, Long> batch;
+			synchronized (SessionAccounting.class) {
+				long now = currentTick();
+				for (Balance balance : balances.values())
+					settle(balance, now);
+				pendingSeconds.values().removeIf(seconds -> seconds == 0);
+				if (pendingSeconds.isEmpty())
+					return;
+				batch = pendingSeconds;
+				pendingSeconds = new HashMap<String, Long>();
+			}
+
+			long startMillis = System.currentTimeMillis();
+			try {
+				DatabaseManager.getAccountRepository().addAvailableSeconds(batch);
+				synchronized (SessionAccounting.class) {
+					flushes++;
+					flushedBalances += batch.size();
+				}
+				System.out.println("Saved the used time of " + batch.size() + " accounts in "
+						+ (System.currentTimeMillis() - startMillis) + " ms - " + getStatistics());
+			} catch (SQLException | RuntimeException e) {
+				e.printStackTrace();
+				synchronized (SessionAccounting.class) {
+					failedFlushes++;
+					for (Map.Entry<String, Long> entry : batch.entrySet())
+						pendingSeconds.merge(entry.getKey(), entry.getValue(), Long::sum);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of machines with a session.
+	 */
+	public static synchronized int getSessionCount() { return sessions.size(); }
+
+	/**
+	 * @return a summary of the sessions and of the time written behind.
+	 */
+	public static synchronized String getStatistics() {
+		return String.format("%d sessions on %d accounts, %d timeouts, %d s used, %d s charged, %d warnings, "
+				+ "%d kickouts, %d writes of %d balances (%d failed), %d balances waiting", sessions.size(),
+				balances.size(), wheel.size(), usedSeconds, chargedSeconds, warnings, kickouts, flushes,
+				flushedBalances, failedFlushes, pendingSeconds.size());
+	}
+}
@@ -0,0 +1,68 @@
+package acim.data.structure;
+
+import java.util.*;
+
+/**
+ * Checks how {@link PolicyDomainTrie} combines a shared base list with the
+ * overlays of single policies. Run it from the repository root:
+ *
+ *     javac -cp "Classroam_Master/lib/*" -d Classroam_Master/test-bin \
+ *         $(find Classroam_Master/src Classroam_Master/test -name '*.java')
+ *     java -cp "Classroam_Master/test-bin:Classroam_Master/lib/*" acim.data.structure.PolicyDomainTrieTest
+ *
+ * It prints every check and exits with status 1 if one fails.
+ */
+public class PolicyDomainTrieTest {
+	private static final long DEFAULT = 1L;
+	private static final long EXAM = 1L << 1;
+	private static final long STAFF = 1L << 2;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) {
+		PolicyDomainTrie trie = PolicyDomainTrie.build(Arrays.asList(
+				new PolicyDomainTrie.RuleSet(-1L, Arrays.asList("games.com", "social.net"),
+						Arrays.asList("edu.games.com", "wiki.org")),
+				new PolicyDomainTrie.RuleSet(EXAM, Arrays.asList("wiki.org", "search.com"), Collections.<String>emptyList()),
+				new PolicyDomainTrie.RuleSet(STAFF, Collections.<String>emptyList(), Arrays.asList("social.net"))));
+
+		// The base list applies to every policy.
+		check("base ban applies to the default policy", trie.contains("www.games.com", DEFAULT));
+		check("base exception applies to the default policy", !trie.contains("edu.games.com", DEFAULT));
+		check("base exception applies to the exam policy", !trie.contains("edu.games.com", EXAM));
+
+		// An overlay ban wins over a base exception of the same name, only for its policy.
+		check("exam overlay bans a base exception", trie.contains("wiki.org", EXAM));
+		check("exam overlay bans subdomains of a base exception", trie.contains("en.wiki.org", EXAM));
+		check("base exception still holds for the default policy", !trie.contains("wiki.org", DEFAULT));
+		check("base exception still holds for the staff policy", !trie.contains("wiki.org", STAFF));
+
+		// An overlay exception wins over a base ban, only for its policy.
+		check("staff overlay excepts a base ban", !trie.contains("social.net", STAFF));
+		check("base ban still holds for the exam policy", trie.contains("social.net", EXAM));
+
+		// Overlay bans only apply to their own policy.
+		check("exam overlay ban applies to the exam policy", trie.contains("Search.COM.", EXAM));
+		check("exam overlay ban does not apply to the default policy", !trie.contains("search.com", DEFAULT));
+
+		// A client with several policies is banned if any of them bans the name.
+		check("combined policies ban what one of them bans", trie.contains("wiki.org", DEFAULT | EXAM));
+
+		// Within one rule set, an exception wins over a ban of the same name.
+		PolicyDomainTrie same = PolicyDomainTrie.build(Collections.singletonList(
+				new PolicyDomainTrie.RuleSet(-1L, Arrays.asList("both.com"), Arrays.asList("both.com"))));
+		check("exception wins within one rule set", !same.contains("both.com", DEFAULT));
+
+		if (failures > 0) {
+			System.out.println(failures + " checks failed.");
+			System.exit(1);
+		}
+		System.out.println("All checks passed.");
+	}
+
+	private static void check(String description, boolean passed) {
+		System.out.println((passed ? "ok   " : "FAIL ") + description);
+		if (!passed)
+			failures++;
+	}
+}